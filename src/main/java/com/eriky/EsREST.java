@@ -1,49 +1,133 @@
 package com.eriky;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.eriky.bulk.BulkAction;
+import com.eriky.bulk.BulkFailureHandler;
+import com.eriky.bulk.BulkListener;
+import com.eriky.bulk.BulkLoadSession;
+import com.eriky.bulk.BulkProcessor;
+import com.eriky.bulk.BulkWriteListener;
+import com.eriky.bulk.FlushPolicy;
+import com.eriky.bulk.Reindex;
+import com.eriky.json.JsonEncoder;
+import com.eriky.json.JsonEncoders;
 import com.eriky.requests.Get;
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
+import com.eriky.requests.GetCache;
+import com.eriky.requests.GetCoalescer;
+import com.eriky.requests.MultiGet;
+import com.eriky.requests.MultiSearch;
+import com.eriky.requests.Response;
+import com.eriky.requests.Scroll;
+import com.eriky.requests.Search;
+import com.eriky.transport.JsonEntity;
+import com.eriky.transport.NodeSelector;
+import com.eriky.transport.Transport;
+import com.eriky.transport.TransportConfig;
 import com.mashape.unirest.http.exceptions.UnirestException;
-import com.mashape.unirest.request.GetRequest;
-import com.mashape.unirest.request.HttpRequest;
-import com.mashape.unirest.request.HttpRequestWithBody;
 
 /**
  * <p>
- * EsREST class.
+ * EsREST class. One instance can be shared by all threads that talk to the
+ * same cluster; {@link #bulkIndex} collects documents from all of them into
+ * full-size batches.
+ * </p>
+ * <p>
+ * Every instance has its own {@link Transport} with its own pool of
+ * connections. Call {@link #close()} when the client is no longer needed to
+ * send the last queued documents and close those connections.
+ * </p>
+ * <p>
+ * The methods ending in <code>Async</code> send the same request as their
+ * blocking counterpart, but return a Future right away, and call the optional
+ * callback when the response is in. They are served by the few I/O threads of
+ * the transport, so many requests can be in flight without a thread waiting
+ * for each. Callbacks run on those I/O threads and must not block. The
+ * requests of {@link #getDocument()}, {@link #search()}, {@link #multiSearch()}
+ * and {@link MultiGet} have an <code>executeAsync</code> method for the same.
+ * Scrolls and bulk requests have none; they already read ahead or send from
+ * worker threads.
+ * </p>
+ * <p>
+ * On Java 21 and later, the bulk workers and other background threads of the
+ * client can be virtual threads, see
+ * {@link com.eriky.util.NamedThreadFactory#useVirtualThreads(boolean)}.
  * </p>
  *
  * @author eriky
  * @version $Id: $
  */
-public class EsREST {
-    private static final int MAX_BULK_LENGTH = 1024 * 10000;
+public class EsREST implements Closeable {
     private Logger log = LoggerFactory.getLogger(EsREST.class);
-    private String url;
-    private int bulkSize = 200;
-    private int currentBulkSize = 0;
-    /*
-     * Estimate the initial capacity for the StringBuilder to improve
-     * performance
-     */
-    private int initialStringBuilderCapacity = bulkSize * 1024;
-    private StringBuilder bulkString = new StringBuilder(
-            initialStringBuilderCapacity);
+    private final Transport transport;
+    private final BulkProcessor bulkProcessor;
+    private volatile GetCoalescer getCoalescer;
+    private volatile GetCache getCache;
 
     /**
-     * Create a new esResty client.
+     * Create a new esResty client with the default {@link TransportConfig}.
      *
      * @param elasticSearchUrl
      *            the full url to the ElasticSearch server without trailing
      *            slash, e.g. http://localhost:9200
      */
     public EsREST(String elasticSearchUrl) {
-        url = elasticSearchUrl;
+        this(elasticSearchUrl, new TransportConfig());
+    }
+
+    /**
+     * Create a new esResty client with its own connection pool.
+     *
+     * @param elasticSearchUrl
+     *            the full url to the ElasticSearch server without trailing
+     *            slash, e.g. http://localhost:9200
+     * @param config
+     *            the settings of the connection pool
+     */
+    public EsREST(String elasticSearchUrl, TransportConfig config) {
+        this(Collections.singletonList(elasticSearchUrl), config);
+    }
+
+    /**
+     * Create a new esResty client that spreads its requests over several
+     * nodes of the same cluster, as chosen by the {@link NodeSelector} of the
+     * config. Nodes that fail are skipped until they are back.
+     *
+     * @param elasticSearchUrls
+     *            the full urls to the nodes without trailing slash, e.g.
+     *            http://es1:9200 and http://es2:9200
+     * @param config
+     *            the settings of the connection pool and the nodes
+     */
+    public EsREST(List<String> elasticSearchUrls, TransportConfig config) {
+        transport = new Transport(elasticSearchUrls, config);
+        bulkProcessor = new BulkProcessor(transport);
     }
 
     /**
@@ -54,7 +138,7 @@ public class EsREST {
      * @throws UnirestException
      */
     public JSONObject getBanner() throws UnirestException {
-        return Unirest.get(url).asJson().getBody().getObject();
+        return getJson("/");
     }
 
     /**
@@ -64,8 +148,7 @@ public class EsREST {
      * @throws UnirestException
      */
     public JSONObject getHealth() throws UnirestException {
-        String completeUrl = url + "/_cluster/health";
-        return Unirest.get(completeUrl).asJson().getBody().getObject();
+        return getJson("/_cluster/health");
 
     }
 
@@ -83,15 +166,12 @@ public class EsREST {
      */
     public boolean waitForClusterStatus(String status, int timeout)
             throws UnirestException {
-        JSONObject json;
-        HttpResponse<JsonNode> result = Unirest.get(
-                url + "/_cluster/health?wait_for_status=" + status
-                        + "&timeout=" + timeout + "s").asJson();
+        Response result = execute(new HttpGet(
+                "/_cluster/health?wait_for_status=" + status + "&timeout="
+                        + timeout + "s"));
 
-        json = result.getBody().getObject();
-
-        if (result.getStatus() == 200) {
-            return !json.getBoolean("timed_out");
+        if (result.hasStatus(200)) {
+            return !result.getBodyAsJson().getBoolean("timed_out");
         } else {
             return false;
         }
@@ -105,8 +185,7 @@ public class EsREST {
      * @return true if index exists, false otherwise
      */
     public boolean indexExists(String indexName) {
-        GetRequest result = Unirest.head(url + '/' + indexName);
-        return compareResponseCode(result, 200);
+        return compareResponseCode(new HttpHead('/' + indexName), 200);
     }
 
     /**
@@ -117,10 +196,7 @@ public class EsREST {
      * @return true on success, false otherwise
      */
     public boolean createIndex(String indexName) {
-        HttpRequestWithBody result = Unirest.put(url + "/{index}").routeParam(
-                "index", indexName);
-
-        return compareResponseCode(result, 200);
+        return compareResponseCode(new HttpPut('/' + indexName), 200);
     }
 
     /**
@@ -134,9 +210,8 @@ public class EsREST {
      */
     public boolean createIndexWithSettings(String indexName, JSONObject settings) {
 
-        HttpRequest result = Unirest.put(url + '/' + indexName)
-                .body(settings.toString()).getHttpRequest();
-        return compareResponseCode(result, 200);
+        return compareResponseCode(
+                withBody(new HttpPut('/' + indexName), settings), 200);
     }
 
     /**
@@ -147,9 +222,14 @@ public class EsREST {
      * @return true on success, false otherwise
      */
     public boolean deleteIndex(String indexName) {
-        HttpRequest result = Unirest.delete(url + '/' + indexName)
-                .getHttpRequest();
-        return compareResponseCode(result, 200);
+        try {
+            return compareResponseCode(new HttpDelete('/' + indexName), 200);
+        } finally {
+            GetCache cache = getCache;
+            if (cache != null) {
+                cache.invalidateIndex(indexName);
+            }
+        }
     }
 
     /**
@@ -166,15 +246,12 @@ public class EsREST {
      */
     public boolean putMapping(String indexName, String type, JSONObject mapping) {
 
-        String completeUrl = url + '/' + indexName + '/' + type + "/_mapping";
+        String path = '/' + indexName + '/' + type + "/_mapping";
         // Since Elasticsearch 1.x, this should be:
-        // String completeUrl = url + '/' + indexName + "/_mapping" + '/' +
-        // type;
+        // String path = '/' + indexName + "/_mapping" + '/' + type;
         // But up to 1.4.0, ES is backwards compatible with the old url so we
         // keep it this way for now
-        HttpRequest result = Unirest.put(completeUrl).body(mapping.toString())
-                .getHttpRequest();
-        return compareResponseCode(result, 200);
+        return compareResponseCode(withBody(new HttpPut(path), mapping), 200);
     }
 
     /**
@@ -187,9 +264,8 @@ public class EsREST {
      * @return true on success, false otherwise
      */
     public boolean createAlias(String indexName, String alias) {
-        String completeUrl = url + '/' + indexName + "/_alias" + '/' + alias;
-        HttpRequest result = Unirest.put(completeUrl).getHttpRequest();
-        return compareResponseCode(result, 200);
+        String path = '/' + indexName + "/_alias" + '/' + alias;
+        return compareResponseCode(new HttpPut(path), 200);
     }
 
     /**
@@ -208,11 +284,8 @@ public class EsREST {
      */
     public boolean createFilterAlias(String indexName, String alias,
             JSONObject filter) {
-        String completeUrl = url + '/' + indexName + "/_alias" + '/' + alias;
-
-        HttpRequest result = Unirest.put(completeUrl).body(filter.toString())
-                .getHttpRequest();
-        return compareResponseCode(result, 200);
+        String path = '/' + indexName + "/_alias" + '/' + alias;
+        return compareResponseCode(withBody(new HttpPut(path), filter), 200);
     }
 
     /**
@@ -232,11 +305,64 @@ public class EsREST {
     public boolean index(String indexName, String type, String id,
             JSONObject document) {
 
-        String completeUrl = url + '/' + indexName + '/' + type + '/' + id;
+        return index(indexName, type, id, document, JsonEncoders.JSON_OBJECT);
+    }
 
-        HttpRequest result = Unirest.put(completeUrl).body(document.toString())
-                .getHttpRequest();
-        return compareResponseCode(result, 201);
+    /**
+     * Index a document that is already serialized, with the given id. The
+     * bytes are sent as they are.
+     *
+     * @param source
+     *            the document as UTF-8 encoded JSON
+     * @return true on success, false otherwise
+     * @see #index(String, String, String, JSONObject)
+     */
+    public boolean index(String indexName, String type, String id,
+            byte[] source) {
+        return index(indexName, type, id, new ByteArrayEntity(source,
+                ContentType.APPLICATION_JSON));
+    }
+
+    /**
+     * Index a document that is already serialized, with the given id. The
+     * remaining bytes of the buffer are sent, its position is not changed.
+     *
+     * @param source
+     *            the document as UTF-8 encoded JSON
+     * @return true on success, false otherwise
+     * @see #index(String, String, String, JSONObject)
+     */
+    public boolean index(String indexName, String type, String id,
+            ByteBuffer source) {
+        return index(indexName, type, id, new JsonEntity<ByteBuffer>(source,
+                JsonEncoders.BYTE_BUFFER));
+    }
+
+    /**
+     * Index a document with the given id, written straight to the connection
+     * by the encoder.
+     *
+     * @param document
+     *            the document, e.g. a POJO
+     * @param encoder
+     *            the {@link JsonEncoder} that serializes the document
+     * @return true on success, false otherwise
+     * @see #index(String, String, String, JSONObject)
+     */
+    public <T> boolean index(String indexName, String type, String id,
+            T document, JsonEncoder<? super T> encoder) {
+        return index(indexName, type, id, new JsonEntity<T>(document, encoder));
+    }
+
+    private boolean index(String indexName, String type, String id,
+            HttpEntity source) {
+        HttpPut request = new HttpPut('/' + indexName + '/' + type + '/' + id);
+        request.setEntity(source);
+        try {
+            return compareResponseCode(request, 201);
+        } finally {
+            invalidateCached(indexName, id);
+        }
     }
 
     /**
@@ -252,10 +378,197 @@ public class EsREST {
      * @return true on success, false otherwise
      */
     public boolean index(String indexName, String type, JSONObject document) {
-        String completeUrl = url + '/' + indexName + '/' + type;
-        HttpRequest result = Unirest.post(completeUrl)
-                .body(document.toString()).getHttpRequest();
-        return compareResponseCode(result, 201);
+        String path = '/' + indexName + '/' + type;
+        return compareResponseCode(withBody(new HttpPost(path), document), 201);
+    }
+
+    /**
+     * Get the banner without blocking, see {@link #getBanner()}.
+     * 
+     * @param callback
+     *            called with the banner or the failure, or null
+     * @return a Future with the banner
+     */
+    public Future<JSONObject> getBannerAsync(FutureCallback<JSONObject> callback) {
+        return getJsonAsync("/", callback);
+    }
+
+    /**
+     * Retrieve cluster wide health without blocking, see {@link #getHealth()}.
+     * 
+     * @param callback
+     *            called with the health or the failure, or null
+     * @return a Future with the health
+     */
+    public Future<JSONObject> getHealthAsync(FutureCallback<JSONObject> callback) {
+        return getJsonAsync("/_cluster/health", callback);
+    }
+
+    /**
+     * Wait for a cluster status without blocking, see
+     * {@link #waitForClusterStatus(String, int)}.
+     * 
+     * @param callback
+     *            called with the result or the failure, or null
+     * @return a Future that completes with true if the status was reached, or
+     *         fails if the request failed
+     */
+    public Future<Boolean> waitForClusterStatusAsync(String status,
+            int timeout, FutureCallback<Boolean> callback) {
+        return transport.executeAsync(new HttpGet(
+                "/_cluster/health?wait_for_status=" + status + "&timeout="
+                        + timeout + "s"), new ResponseHandler<Boolean>() {
+            public Boolean handleResponse(HttpResponse response)
+                    throws IOException {
+                Response result = Transport.toResponse(response);
+                return result.hasStatus(200)
+                        && !result.getBodyAsJson().getBoolean("timed_out");
+            }
+        }, callback);
+    }
+
+    /**
+     * Check if index exists, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of {@link #indexExists(String)}
+     */
+    public Future<Boolean> indexExistsAsync(String indexName,
+            FutureCallback<Boolean> callback) {
+        return compareResponseCodeAsync(new HttpHead('/' + indexName), 200,
+                callback);
+    }
+
+    /**
+     * Create index, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of {@link #createIndex(String)}
+     */
+    public Future<Boolean> createIndexAsync(String indexName,
+            FutureCallback<Boolean> callback) {
+        return compareResponseCodeAsync(new HttpPut('/' + indexName), 200,
+                callback);
+    }
+
+    /**
+     * Create index with settings, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #createIndexWithSettings(String, JSONObject)}
+     */
+    public Future<Boolean> createIndexWithSettingsAsync(String indexName,
+            JSONObject settings, FutureCallback<Boolean> callback) {
+        return compareResponseCodeAsync(
+                withBody(new HttpPut('/' + indexName), settings), 200, callback);
+    }
+
+    /**
+     * Delete index, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of {@link #deleteIndex(String)}
+     */
+    public Future<Boolean> deleteIndexAsync(String indexName,
+            FutureCallback<Boolean> callback) {
+        return compareResponseCodeAsync(new HttpDelete('/' + indexName), 200,
+                callback, indexName, null);
+    }
+
+    /**
+     * Put mapping for index and type, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #putMapping(String, String, JSONObject)}
+     */
+    public Future<Boolean> putMappingAsync(String indexName, String type,
+            JSONObject mapping, FutureCallback<Boolean> callback) {
+        String path = '/' + indexName + '/' + type + "/_mapping";
+        return compareResponseCodeAsync(withBody(new HttpPut(path), mapping),
+                200, callback);
+    }
+
+    /**
+     * Create an index alias, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #createAlias(String, String)}
+     */
+    public Future<Boolean> createAliasAsync(String indexName, String alias,
+            FutureCallback<Boolean> callback) {
+        String path = '/' + indexName + "/_alias" + '/' + alias;
+        return compareResponseCodeAsync(new HttpPut(path), 200, callback);
+    }
+
+    /**
+     * Create an index alias with filter and optional routing, without
+     * blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #createFilterAlias(String, String, JSONObject)}
+     */
+    public Future<Boolean> createFilterAliasAsync(String indexName,
+            String alias, JSONObject filter, FutureCallback<Boolean> callback) {
+        String path = '/' + indexName + "/_alias" + '/' + alias;
+        return compareResponseCodeAsync(withBody(new HttpPut(path), filter),
+                200, callback);
+    }
+
+    /**
+     * Index a document with the given id, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #index(String, String, String, JSONObject)}
+     */
+    public Future<Boolean> indexAsync(String indexName, String type,
+            String id, JSONObject document, FutureCallback<Boolean> callback) {
+        return indexAsync(indexName, type, id, document,
+                JsonEncoders.JSON_OBJECT, callback);
+    }
+
+    /**
+     * Index a document with the given id, written by the encoder, without
+     * blocking. The document must not be changed until the Future is done.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #index(String, String, String, Object, JsonEncoder)}
+     */
+    public <T> Future<Boolean> indexAsync(String indexName, String type,
+            String id, T document, JsonEncoder<? super T> encoder,
+            FutureCallback<Boolean> callback) {
+        HttpPut request = new HttpPut('/' + indexName + '/' + type + '/' + id);
+        request.setEntity(new JsonEntity<T>(document, encoder));
+        return compareResponseCodeAsync(request, 201, callback, indexName, id);
+    }
+
+    /**
+     * Index a document with an id created by Elasticsearch, without blocking.
+     * 
+     * @param callback
+     *            called with the result, or null
+     * @return a Future with the result of
+     *         {@link #index(String, String, JSONObject)}
+     */
+    public Future<Boolean> indexAsync(String indexName, String type,
+            JSONObject document, FutureCallback<Boolean> callback) {
+        String path = '/' + indexName + '/' + type;
+        return compareResponseCodeAsync(withBody(new HttpPost(path), document),
+                201, callback);
     }
 
     /**
@@ -264,7 +577,165 @@ public class EsREST {
      * @return a {@link Get} object that you can build on by chaining methods
      */
     public Get getDocument() {
-        return new Get(url);
+        return new Get(transport).coalesceWith(getCoalescer).cacheWith(
+                getCache);
+    }
+
+    /**
+     * Get many documents from Elasticsearch in one request.
+     * 
+     * @return a {@link MultiGet} object that you can build on by chaining
+     *         methods
+     */
+    public MultiGet getDocuments() {
+        return new MultiGet(transport);
+    }
+
+    /**
+     * Read all hits of a query, page by page.
+     * 
+     * @return a {@link Scroll} object that you can build on by chaining
+     *         methods
+     */
+    public Scroll scroll() {
+        return new Scroll(transport);
+    }
+
+    /**
+     * Search for one page of hits, decoded one by one while they are read.
+     * 
+     * @return a {@link Search} object that you can build on by chaining
+     *         methods
+     */
+    public Search search() {
+        return new Search(transport);
+    }
+
+    /**
+     * Send many searches in one request, each with its own Future.
+     * 
+     * @return a {@link MultiSearch} object that you can add searches to, see
+     *         {@link #search()}
+     */
+    public MultiSearch multiSearch() {
+        return new MultiSearch(transport);
+    }
+
+    /**
+     * Load many documents into one index with refreshing and replicas turned
+     * off, see {@link BulkLoadSession}. Close the session in a finally block to
+     * put the settings back. Documents of the index that this client has
+     * cached are dropped when the session is closed.
+     * 
+     * @param indexName
+     *            the index to load
+     * @param workers
+     *            the number of threads sending bulk requests concurrently
+     * @return the started session
+     * @throws EsRESTException
+     *             if the settings of the index could not be changed
+     */
+    public BulkLoadSession startBulkLoad(final String indexName, int workers)
+            throws EsRESTException {
+        return new BulkLoadSession(transport, indexName, workers, workers) {
+            @Override
+            public synchronized void close() throws EsRESTException {
+                try {
+                    super.close();
+                } finally {
+                    GetCache cache = getCache;
+                    if (cache != null) {
+                        cache.invalidateIndex(indexName);
+                    }
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Copy all documents of one index into another, see {@link Reindex}.
+     * Documents of the target and the alias that this client has cached are
+     * dropped when the reindex is done.
+     * 
+     * @param sourceIndex
+     *            the index to read from
+     * @param targetIndex
+     *            the index to write to
+     * @return a {@link Reindex} object that you can build on by chaining
+     *         methods
+     */
+    public Reindex reindex(String sourceIndex, String targetIndex) {
+        return new Reindex(transport, sourceIndex, targetIndex) {
+            @Override
+            public long execute() throws EsRESTException {
+                try {
+                    return super.execute();
+                } finally {
+                    GetCache cache = getCache;
+                    if (cache != null) {
+                        cache.invalidateIndex(getTargetIndex());
+                        if (getAlias() != null) {
+                            cache.invalidateIndex(getAlias());
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Merge the Gets of {@link #getDocument()} that different threads execute
+     * at about the same time into one multi get request, see
+     * {@link GetCoalescer}.
+     *
+     * @param window
+     *            how long the first Get waits for others, 0 to send every Get
+     *            on its own again
+     * @param unit
+     *            the unit of window
+     * @param maxBatchSize
+     *            the number of Gets after which they are sent right away
+     */
+    public void setGetCoalescing(long window, TimeUnit unit, int maxBatchSize) {
+        if (window <= 0) {
+            getCoalescer = null;
+        } else {
+            getCoalescer = new GetCoalescer(transport, window, unit,
+                    maxBatchSize);
+        }
+    }
+
+    /**
+     * Answer the Gets of {@link #getDocument()} from a cache when they can.
+     * Documents that are written with {@link #index} or {@link #bulkIndex}
+     * are removed from the cache, and bulk documents once more when their
+     * batch has been sent.
+     *
+     * @param cache
+     *            the {@link GetCache}, or null to not cache documents
+     */
+    public void setGetCache(GetCache cache) {
+        getCache = cache;
+        if (cache == null) {
+            bulkProcessor.setWriteListener(null);
+            return;
+        }
+        // A get between the add and the batch being applied may have cached
+        // the old document, so bulk documents are invalidated once more when
+        // their batch is done.
+        bulkProcessor.setWriteListener(new BulkWriteListener() {
+            public void afterWrite(String indexName, String id) {
+                invalidateCached(indexName, id);
+            }
+        });
+    }
+
+    /**
+     * @return the {@link GetCache}, with its hit and miss counts, or null if
+     *         documents are not cached
+     */
+    public GetCache getGetCache() {
+        return getCache;
     }
 
     /**
@@ -275,7 +746,77 @@ public class EsREST {
      *            ES.
      */
     public void setBulkSize(int numberOfDocuments) {
-        bulkSize = numberOfDocuments;
+        bulkProcessor.setBulkSize(numberOfDocuments);
+    }
+
+    /**
+     * Set when queued documents are sent to ES: after a number of documents,
+     * a number of bytes or a maximum time, whichever comes first.
+     *
+     * @param policy
+     *            the {@link FlushPolicy}
+     */
+    public void setBulkFlushPolicy(FlushPolicy policy) {
+        bulkProcessor.setFlushPolicy(policy);
+    }
+
+    /**
+     * Send bulk requests from a pool of background threads instead of from
+     * the thread calling {@link #bulkIndex}. Documents that are still queued
+     * are sent first.
+     *
+     * @param workers
+     *            the number of threads sending bulk requests concurrently, 0
+     *            to send on the calling thread again
+     * @param maxPendingBatches
+     *            the number of full batches that may wait for a free worker
+     *            before {@link #bulkIndex} blocks
+     */
+    public void setBulkWorkers(int workers, int maxPendingBatches) {
+        bulkProcessor.setWorkers(workers, maxPendingBatches);
+    }
+
+    /**
+     * Group the documents of {@link #bulkIndex} by index or by shard, and send
+     * each bulk request to the node that holds those shards, see
+     * {@link BulkProcessor#setPartitioning}.
+     *
+     * @param partitioning
+     *            how to group the documents
+     */
+    public void setBulkPartitioning(BulkProcessor.Partitioning partitioning) {
+        bulkProcessor.setPartitioning(partitioning);
+    }
+
+    /**
+     * Set the listener that is notified after every bulk request.
+     *
+     * @param listener
+     *            the listener, or null to remove it
+     */
+    public void setBulkListener(BulkListener listener) {
+        bulkProcessor.setListener(listener);
+    }
+
+    /**
+     * Set the handler for bulk items that Elasticsearch refused, or kept
+     * rejecting after all retries. By default these items are logged.
+     *
+     * @param failureHandler
+     *            the handler
+     */
+    public void setBulkFailureHandler(BulkFailureHandler failureHandler) {
+        bulkProcessor.setFailureHandler(failureHandler);
+    }
+
+    /**
+     * Get the bulk processor behind {@link #bulkIndex}. Use it directly to get
+     * a Future for the batch that a document ends up in.
+     *
+     * @return the {@link BulkProcessor} of this client
+     */
+    public BulkProcessor getBulkProcessor() {
+        return bulkProcessor;
     }
 
     /**
@@ -285,7 +826,7 @@ public class EsREST {
      * @return the number of queued documents
      */
     public int getCurrentBulkSize() {
-        return currentBulkSize;
+        return bulkProcessor.getCurrentBulkSize();
     }
 
     /**
@@ -301,105 +842,248 @@ public class EsREST {
      *            a {@link java.lang.String} object.
      * @param document
      *            a {@link JSONObject} object.
-     * @return a boolean.
+     * @return false if the bulk request for this document has already failed
+     *         or one of its items could not be indexed, true otherwise
      */
     public boolean bulkIndex(String indexName, String type, String id,
             JSONObject document) {
-        addIndexActionToBulk(indexName, type, id, document);
-
-        if (bulkRequestNeeded()) {
-            boolean success = doBulkRequest();
-            if (success) {
-                currentBulkSize = 0;
-                bulkString.setLength(0);
-                // bulkString = new StringBuilder(initialStringBuilderCapacity);
-                return true;
-            } else {
-                return false;
-            }
-        } else {
-            return true;
-        }
+        invalidateCached(indexName, id);
+        return resultIfDone(bulkProcessor.add(indexName, type, id, document));
     }
 
     /**
-     * Test if we need to do a bulk request, either because of the number of
-     * docs in queue or because the StringBuilder is becoming too large for our
-     * taste. The latter is done to prevent OOME's because of dumb users and/or
-     * unexpectedly large documents.
-     * 
-     * @return true if a bulk request needs to be performed, false otherwise
+     * Queue an action without a source, i.e. a delete, for the next bulk
+     * request.
+     *
+     * @param action
+     *            the action, e.g. {@link BulkAction#delete}
+     * @return false if the bulk request for this action has already failed or
+     *         one of its items could not be applied, true otherwise
      */
-    private boolean bulkRequestNeeded() {
-        if (currentBulkSize == bulkSize) {
-            return true;
-        }
-        if (bulkString.length() > MAX_BULK_LENGTH) {
-            return true;
+    public boolean bulk(BulkAction action) {
+        invalidateCached(action.getIndexName(), action.getId());
+        return resultIfDone(bulkProcessor.add(action));
+    }
+
+    /**
+     * Queue an index, create or update action for the next bulk request.
+     *
+     * @param action
+     *            the action with the metadata of the document
+     * @param source
+     *            the document, or for an update the update body, e.g. from
+     *            {@link BulkAction#doc(JSONObject, boolean)}
+     * @return false if the bulk request for this action has already failed or
+     *         one of its items could not be applied, true otherwise
+     */
+    public boolean bulk(BulkAction action, JSONObject source) {
+        invalidateCached(action.getIndexName(), action.getId());
+        return resultIfDone(bulkProcessor.add(action, source));
+    }
+
+    /**
+     * Queue a document that is already serialized for the next bulk request.
+     * The bytes are copied into the bulk request as they are.
+     *
+     * @param source
+     *            the document as UTF-8 encoded JSON, on a single line
+     * @return false if the bulk request for this document has already failed
+     *         or one of its items could not be indexed, true otherwise
+     * @see #bulkIndex(String, String, String, JSONObject)
+     */
+    public boolean bulkIndex(String indexName, String type, String id,
+            byte[] source) {
+        invalidateCached(indexName, id);
+        return resultIfDone(bulkProcessor.add(indexName, type, id, source));
+    }
+
+    /**
+     * Queue a document that is already serialized for the next bulk request.
+     * The remaining bytes of the buffer are copied into the bulk request, its
+     * position is not changed.
+     *
+     * @param source
+     *            the document as UTF-8 encoded JSON, on a single line
+     * @return false if the bulk request for this document has already failed
+     *         or one of its items could not be indexed, true otherwise
+     * @see #bulkIndex(String, String, String, JSONObject)
+     */
+    public boolean bulkIndex(String indexName, String type, String id,
+            ByteBuffer source) {
+        invalidateCached(indexName, id);
+        return resultIfDone(bulkProcessor.add(indexName, type, id, source));
+    }
+
+    /**
+     * Queue a document for the next bulk request, written straight into the
+     * bulk request by the encoder.
+     *
+     * @param document
+     *            the document, e.g. a POJO
+     * @param encoder
+     *            the {@link JsonEncoder} that serializes the document, without
+     *            line breaks
+     * @return false if the document could not be serialized, its bulk request
+     *         has already failed or one of its items could not be indexed,
+     *         true otherwise
+     * @see #bulkIndex(String, String, String, JSONObject)
+     */
+    public <T> boolean bulkIndex(String indexName, String type, String id,
+            T document, JsonEncoder<? super T> encoder) {
+        invalidateCached(indexName, id);
+        try {
+            return resultIfDone(bulkProcessor.add(indexName, type, id,
+                    document, encoder));
+        } catch (IOException e) {
+            log.error("Could not serialize document " + id + ": "
+                    + e.getMessage());
+            return false;
         }
-        return false;
     }
 
     /**
-     * <p>
-     * doBulkRequest
-     * </p>
+     * Send the documents that are currently queued and wait for the result.
      *
-     * @return a boolean.
+     * @return true if Elasticsearch accepted the bulk request, false otherwise
      */
     public boolean doBulkRequest() {
+        return waitFor(bulkProcessor.flush());
+    }
 
-        String bulkRequest = bulkString.toString();
-        String completeUrl = url + "/_bulk";
-        HttpRequest result = Unirest.put(completeUrl).body(bulkRequest)
-                .getHttpRequest();
-
-        // try {
-        // JSONObject resultDoc = result.asJson().getBody().getObject();
-        // log.warn("bulk request done");
-        // if (resultDoc.getBoolean("errors")) {
-        // log.warn("there were errors in the bulk request!");
-        // return false;
-        // }
-        // } catch (org.json.JSONException e) {
-        // log.warn("Could not check for errors in JSON, most probably you are using an old version of Elasticsearch.");
-        // log.warn("The errors field in bulk responses was added in ES 1.0. Exception was:");
-        // log.warn(e.getMessage());
-        // return true;
-        // } catch (UnirestException e) {
-        // log.error(e.getMessage());
-        // return false;
-        // }
-        if (compareResponseCode(result, 200)) {
-            bulkString = new StringBuilder(initialStringBuilderCapacity);
-            return true;
+    /**
+     * Get the transport that this client sends its requests with.
+     *
+     * @return the {@link Transport} of this client
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Send the documents that are still queued, stop the bulk workers, if
+     * any, and close all connections of this client.
+     */
+    public void close() {
+        try {
+            bulkProcessor.close();
+        } finally {
+            transport.close();
+        }
+    }
+
+    private boolean resultIfDone(Future<Boolean> batch) {
+        if (batch.isDone()) {
+            return waitFor(batch);
         } else {
+            return true;
+        }
+    }
+
+    private boolean waitFor(Future<Boolean> batch) {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            log.error(e.getMessage());
             return false;
         }
     }
 
-    private void addIndexActionToBulk(String indexName, String type, String id,
-            JSONObject document) {
-        bulkString.append("{ \"index\" : { \"_index\" : \"");
-        bulkString.append(indexName);
-        bulkString.append("\", \"_type\" : \"");
-        bulkString.append(type);
-        bulkString.append("\", \"_id\" : \"");
-        bulkString.append(id);
-        bulkString.append("\" } }");
-        bulkString.append('\n');
-        bulkString.append(document.toString());
-        bulkString.append('\n');
-        currentBulkSize += 1;
-    }
-
-    private boolean compareResponseCode(HttpRequest result, int expectedCode) {
+    private void invalidateCached(String indexName, String id) {
+        GetCache cache = getCache;
+        if (cache != null && id != null) {
+            cache.invalidate(indexName, id);
+        }
+    }
+
+    private JSONObject getJson(String path) throws UnirestException {
+        return execute(new HttpGet(path)).getBodyAsJson();
+    }
+
+    private Response execute(HttpRequestBase request) throws UnirestException {
         try {
-            if (result.asBinary().getStatus() == expectedCode) {
-                return true;
-            } else {
-                return false;
+            return transport.execute(request);
+        } catch (IOException e) {
+            throw new UnirestException(e);
+        }
+    }
+
+    private Future<JSONObject> getJsonAsync(String path,
+            FutureCallback<JSONObject> callback) {
+        return transport.executeAsync(new HttpGet(path),
+                new ResponseHandler<JSONObject>() {
+                    public JSONObject handleResponse(HttpResponse response)
+                            throws IOException {
+                        return Transport.toResponse(response).getBodyAsJson();
+                    }
+                }, callback);
+    }
+
+    private Future<Boolean> compareResponseCodeAsync(HttpRequestBase request,
+            int expectedCode, FutureCallback<Boolean> callback) {
+        return compareResponseCodeAsync(request, expectedCode, callback, null,
+                null);
+    }
+
+    /**
+     * Like {@link #compareResponseCode(HttpRequestBase, int)}, a failed
+     * request is logged and completes the Future with false. Cached copies of
+     * the written document, or of the whole index when there is no id, are
+     * dropped before the Future completes.
+     */
+    private Future<Boolean> compareResponseCodeAsync(HttpRequestBase request,
+            final int expectedCode, FutureCallback<Boolean> callback,
+            final String writtenIndex, final String writtenId) {
+        final BasicFuture<Boolean> result = new BasicFuture<Boolean>(callback);
+        transport.executeAsync(request, new ResponseHandler<Boolean>() {
+            public Boolean handleResponse(HttpResponse response) {
+                return response.getStatusLine().getStatusCode() == expectedCode;
             }
+        }, new FutureCallback<Boolean>() {
+            public void completed(Boolean matches) {
+                invalidateWritten();
+                result.completed(matches);
+            }
+
+            public void failed(Exception e) {
+                invalidateWritten();
+                log.error(e.getMessage());
+                result.completed(false);
+            }
+
+            public void cancelled() {
+                invalidateWritten();
+                result.cancel();
+            }
+
+            private void invalidateWritten() {
+                GetCache cache = getCache;
+                if (cache == null || writtenIndex == null) {
+                    return;
+                }
+                if (writtenId == null) {
+                    cache.invalidateIndex(writtenIndex);
+                } else {
+                    cache.invalidate(writtenIndex, writtenId);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static HttpRequestBase withBody(
+            HttpEntityEnclosingRequestBase request, JSONObject body) {
+        request.setEntity(new StringEntity(body.toString(),
+                ContentType.APPLICATION_JSON));
+        return request;
+    }
+
+    private boolean compareResponseCode(HttpRequestBase request,
+            int expectedCode) {
+        try {
+            return execute(request).hasStatus(expectedCode);
         } catch (UnirestException e) {
             log.error(e.getMessage());
             return false;
@@ -0,0 +1,81 @@
+package com.eriky.bulk;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized byte arrays that {@link BulkBuffer}s are built from.
+ * Arrays are handed back to the pool once a batch has been sent, so that the
+ * next batch can reuse them instead of allocating new ones.
+ *
+ * @author eriky
+ */
+public class BufferPool {
+    /** The default size of one chunk, 64 KB. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /** The default number of idle chunks that are kept, 16 MB in total. */
+    public static final int DEFAULT_MAX_IDLE_CHUNKS = 256;
+
+    private final ConcurrentLinkedQueue<byte[]> idleChunks = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int chunkSize;
+    private final int maxIdleChunks;
+
+    public BufferPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IDLE_CHUNKS);
+    }
+
+    /**
+     * @param chunkSize
+     *            the size of every byte array in this pool
+     * @param maxIdleChunks
+     *            the maximum number of arrays that are kept for reuse, arrays
+     *            that are released when the pool is full are left to the
+     *            garbage collector
+     */
+    public BufferPool(int chunkSize, int maxIdleChunks) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.maxIdleChunks = maxIdleChunks;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get an array of {@link #getChunkSize()} bytes, either from the pool or
+     * newly allocated.
+     */
+    public byte[] acquire() {
+        byte[] chunk = idleChunks.poll();
+        if (chunk == null) {
+            return new byte[chunkSize];
+        }
+        idleCount.decrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Hand an array back to the pool. The caller must not use it afterwards.
+     */
+    public void release(byte[] chunk) {
+        if (chunk.length != chunkSize) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdleChunks) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idleChunks.offer(chunk);
+    }
+
+    /**
+     * @return the number of arrays that are currently waiting for reuse
+     */
+    public int getIdleChunks() {
+        return idleCount.get();
+    }
+}
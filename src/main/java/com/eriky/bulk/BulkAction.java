@@ -0,0 +1,218 @@
+package com.eriky.bulk;
+
+import org.json.JSONObject;
+
+/**
+ * The action line of one bulk item: what to do with which document, and the
+ * optional routing and version of that document.
+ * <p>
+ * An <code>index</code> or <code>create</code> action is followed by the
+ * document, an <code>update</code> action by the update body, e.g. from
+ * {@link #doc(JSONObject, boolean)} or {@link #script(JSONObject, JSONObject)},
+ * and a <code>delete</code> action by nothing:
+ * </p>
+ *
+ * <pre>
+ * processor.add(BulkAction.update(&quot;twitter&quot;, &quot;tweet&quot;, &quot;1&quot;).retryOnConflict(3),
+ *         BulkAction.doc(changes, true));
+ * processor.add(BulkAction.delete(&quot;twitter&quot;, &quot;tweet&quot;, &quot;2&quot;).version(7)
+ *         .versionType(&quot;external&quot;));
+ * </pre>
+ *
+ * @author eriky
+ */
+public class BulkAction {
+    private final String action;
+    private final String indexName;
+    private final String type;
+    private final String id;
+    private String routing;
+    private long version = -1;
+    private String versionType;
+    private int retryOnConflict;
+
+    private BulkAction(String action, String indexName, String type, String id) {
+        this.action = action;
+        this.indexName = indexName;
+        this.type = type;
+        this.id = id;
+    }
+
+    /**
+     * Index a document, replacing it if it exists.
+     *
+     * @param id
+     *            the id of the document, or null to let Elasticsearch pick one
+     */
+    public static BulkAction index(String indexName, String type, String id) {
+        return new BulkAction("index", indexName, type, id);
+    }
+
+    /**
+     * Index a document, failing with status 409 if it already exists.
+     *
+     * @param id
+     *            the id of the document, or null to let Elasticsearch pick one
+     */
+    public static BulkAction create(String indexName, String type, String id) {
+        return new BulkAction("create", indexName, type, id);
+    }
+
+    /**
+     * Change part of a document, or run a script on it.
+     */
+    public static BulkAction update(String indexName, String type, String id) {
+        return new BulkAction("update", indexName, type, requireId(id));
+    }
+
+    public static BulkAction delete(String indexName, String type, String id) {
+        return new BulkAction("delete", indexName, type, requireId(id));
+    }
+
+    /**
+     * The body of an update that merges the partial document into the
+     * existing one.
+     *
+     * @param partial
+     *            the fields to change
+     * @param docAsUpsert
+     *            true to index the partial document as it is when the document
+     *            does not exist yet
+     */
+    public static JSONObject doc(JSONObject partial, boolean docAsUpsert) {
+        JSONObject body = new JSONObject().put("doc", partial);
+        if (docAsUpsert) {
+            body.put("doc_as_upsert", true);
+        }
+        return body;
+    }
+
+    /**
+     * The body of an update that merges the partial document into the
+     * existing one, or indexes the upsert document when there is none.
+     */
+    public static JSONObject upsert(JSONObject partial, JSONObject upsert) {
+        return new JSONObject().put("doc", partial).put("upsert", upsert);
+    }
+
+    /**
+     * The body of an update that runs a script on the document.
+     *
+     * @param script
+     *            the script, in the form of the Elasticsearch version, e.g.
+     *            <code>{"inline": "ctx._source.count += params.n", "params": {"n": 1}}</code>
+     * @param upsert
+     *            the document to index when there is none yet, or null to fail
+     *            in that case
+     */
+    public static JSONObject script(JSONObject script, JSONObject upsert) {
+        JSONObject body = new JSONObject().put("script", script);
+        if (upsert != null) {
+            body.put("upsert", upsert);
+        }
+        return body;
+    }
+
+    public BulkAction routing(String routing) {
+        this.routing = routing;
+        return this;
+    }
+
+    /**
+     * Only apply the action if the document has this version, or with an
+     * external version type, if this version is newer.
+     */
+    public BulkAction version(long version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * @param versionType
+     *            internal, external, external_gte or force
+     */
+    public BulkAction versionType(String versionType) {
+        this.versionType = versionType;
+        return this;
+    }
+
+    /**
+     * @param retries
+     *            how often Elasticsearch retries an update when the document
+     *            was changed in the meantime
+     */
+    public BulkAction retryOnConflict(int retries) {
+        if (!"update".equals(action)) {
+            throw new IllegalStateException(
+                    "retry_on_conflict only applies to updates");
+        }
+        this.retryOnConflict = retries;
+        return this;
+    }
+
+    /**
+     * @return index, create, update or delete
+     */
+    public String getAction() {
+        return action;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    /**
+     * @return true if a source line follows the action line
+     */
+    public boolean hasSource() {
+        return !"delete".equals(action);
+    }
+
+    /**
+     * Write the action line, with its line break.
+     */
+    void writeTo(BulkBuffer buffer) {
+        buffer.append("{ \"").append(action).append("\" : { \"_index\" : ")
+                .append(JSONObject.quote(indexName));
+        if (type != null) {
+            buffer.append(", \"_type\" : ").append(JSONObject.quote(type));
+        }
+        if (id != null) {
+            buffer.append(", \"_id\" : ").append(JSONObject.quote(id));
+        }
+        if (routing != null) {
+            buffer.append(", \"_routing\" : ").append(JSONObject.quote(routing));
+        }
+        if (version >= 0) {
+            buffer.append(", \"_version\" : ").append(Long.toString(version));
+        }
+        if (versionType != null) {
+            buffer.append(", \"_version_type\" : ").append(
+                    JSONObject.quote(versionType));
+        }
+        if (retryOnConflict > 0) {
+            buffer.append(", \"_retry_on_conflict\" : ").append(
+                    Integer.toString(retryOnConflict));
+        }
+        buffer.append(" } }\n");
+    }
+
+    private static String requireId(String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("The id is required");
+        }
+        return id;
+    }
+}
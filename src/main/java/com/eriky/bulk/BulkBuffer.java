@@ -0,0 +1,283 @@
+package com.eriky.bulk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * The body of one bulk request, encoded as UTF-8 straight into chunks that are
+ * borrowed from a {@link BufferPool}. Documents are written to the chunks
+ * without building an intermediate String for the whole batch, and the chunks
+ * are written to the connection one by one when the request is sent.
+ *
+ * @author eriky
+ */
+public class BulkBuffer extends OutputStream {
+    private final BufferPool pool;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private byte[] current;
+    private int position;
+    private long size;
+    private long[] itemOffsets = new long[16];
+    private int itemCount;
+    private Writer writer;
+
+    public BulkBuffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Mark the start of the next bulk item, i.e. its action line and optional
+     * source. Items can be copied to another buffer individually, which is
+     * used to retry items that were rejected by Elasticsearch.
+     */
+    public void startItem() {
+        if (itemCount == itemOffsets.length) {
+            long[] grown = new long[itemOffsets.length * 2];
+            System.arraycopy(itemOffsets, 0, grown, 0, itemCount);
+            itemOffsets = grown;
+        }
+        itemOffsets[itemCount++] = size;
+    }
+
+    /**
+     * @return the number of items started with {@link #startItem()}
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Copy one item to the end of another buffer.
+     *
+     * @param item
+     *            the position of the item in this buffer, starting at 0
+     * @param target
+     *            the buffer to append the item to
+     */
+    public void copyItemTo(int item, BulkBuffer target) {
+        target.startItem();
+        try {
+            writeRange(itemStart(item), itemEnd(item), target);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Remove the last item that was started, with everything that was written
+     * after it, e.g. when its document could not be serialized completely.
+     */
+    public void discardItem() {
+        if (itemCount == 0) {
+            return;
+        }
+        long start = itemOffsets[--itemCount];
+        int chunkSize = pool.getChunkSize();
+        int keep = (int) ((start + chunkSize - 1) / chunkSize);
+        while (chunks.size() > keep) {
+            pool.release(chunks.remove(chunks.size() - 1));
+        }
+        if (keep == 0) {
+            current = null;
+            position = 0;
+        } else {
+            current = chunks.get(keep - 1);
+            position = (int) (start - (long) (keep - 1) * chunkSize);
+        }
+        size = start;
+    }
+
+    /**
+     * @param item
+     *            the position of the item in this buffer, starting at 0
+     * @return a copy of the bytes of one item
+     */
+    public byte[] getItem(int item) {
+        long start = itemStart(item);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                (int) (itemEnd(item) - start));
+        try {
+            writeRange(start, itemEnd(item), out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Append a String, encoded as UTF-8.
+     */
+    public BulkBuffer append(String s) {
+        try {
+            Writer w = writer();
+            w.write(s);
+            w.flush();
+        } catch (IOException e) {
+            // we only write to memory
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Append a JSON document, serialized and encoded as UTF-8 without building
+     * a String of the document first.
+     */
+    public BulkBuffer append(JSONObject document) {
+        try {
+            Writer w = writer();
+            document.write(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        size += 1;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Append the remaining bytes of a buffer, without changing its position.
+     */
+    public void write(ByteBuffer src) {
+        ByteBuffer in = src.duplicate();
+        while (in.hasRemaining()) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(in.remaining(), current.length - position);
+            in.get(current, position, n);
+            position += n;
+            size += n;
+        }
+    }
+
+    /**
+     * @return the number of bytes in this buffer
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Write the contents of this buffer to the given stream, chunk by chunk.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int last = chunks.size() - 1;
+        for (int i = 0; i < last; i++) {
+            out.write(chunks.get(i));
+        }
+        if (last >= 0) {
+            out.write(chunks.get(last), 0, position);
+        }
+    }
+
+    /**
+     * @return a stream that reads the contents of this buffer without copying
+     *         it
+     */
+    public InputStream getInputStream() {
+        List<InputStream> streams = new ArrayList<InputStream>(chunks.size());
+        int last = chunks.size() - 1;
+        for (int i = 0; i < last; i++) {
+            streams.add(new ByteArrayInputStream(chunks.get(i)));
+        }
+        if (last >= 0) {
+            streams.add(new ByteArrayInputStream(chunks.get(last), 0, position));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * Hand all chunks back to the pool and empty this buffer, so that it can
+     * be filled again.
+     */
+    public void release() {
+        for (byte[] chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
+        itemCount = 0;
+    }
+
+    private long itemStart(int item) {
+        if (item < 0 || item >= itemCount) {
+            throw new IndexOutOfBoundsException("No item " + item);
+        }
+        return itemOffsets[item];
+    }
+
+    private long itemEnd(int item) {
+        return item + 1 < itemCount ? itemOffsets[item + 1] : size;
+    }
+
+    /*
+     * All chunks come from the same pool and have the same length, so the
+     * chunk holding an offset can be computed directly.
+     */
+    private void writeRange(long from, long to, OutputStream out)
+            throws IOException {
+        int chunkSize = pool.getChunkSize();
+        while (from < to) {
+            int offset = (int) (from % chunkSize);
+            int length = (int) Math.min(to - from, chunkSize - offset);
+            out.write(chunks.get((int) (from / chunkSize)), offset, length);
+            from += length;
+        }
+    }
+
+    private Writer writer() {
+        if (writer == null) {
+            try {
+                writer = new OutputStreamWriter(this, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return writer;
+    }
+
+    private void nextChunk() {
+        current = pool.acquire();
+        chunks.add(current);
+        position = 0;
+    }
+}
@@ -0,0 +1,44 @@
+package com.eriky.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request entity that writes a {@link BulkBuffer} to the connection chunk by
+ * chunk, so that the body of a bulk request is never copied into one large
+ * array.
+ *
+ * @author eriky
+ */
+public class BulkEntity extends AbstractHttpEntity {
+    private final BulkBuffer buffer;
+
+    public BulkEntity(BulkBuffer buffer) {
+        this.buffer = buffer;
+        setContentType("application/json; charset=UTF-8");
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return buffer.size();
+    }
+
+    public InputStream getContent() {
+        return buffer.getInputStream();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        buffer.writeTo(out);
+        out.flush();
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+}
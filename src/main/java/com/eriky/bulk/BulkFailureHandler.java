@@ -0,0 +1,19 @@
+package com.eriky.bulk;
+
+/**
+ * Receives the bulk items that could not be indexed, either because
+ * Elasticsearch refused them permanently or because they were still rejected
+ * after the last retry.
+ *
+ * @author eriky
+ */
+public interface BulkFailureHandler {
+    /**
+     * Called once for every failed item, from the thread that sent the bulk
+     * request.
+     *
+     * @param failure
+     *            the failed item
+     */
+    void onFailure(BulkItemFailure failure);
+}
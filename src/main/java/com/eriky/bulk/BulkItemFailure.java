@@ -0,0 +1,94 @@
+package com.eriky.bulk;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONObject;
+
+/**
+ * A bulk item that could not be indexed. Besides the status and error, it
+ * holds the raw action and source of the item so that it can be stored or
+ * sent again later.
+ *
+ * @author eriky
+ */
+public class BulkItemFailure {
+    private final byte[] item;
+    private final int status;
+    private final String error;
+    private JSONObject action;
+
+    /**
+     * @param item
+     *            the raw item, i.e. the action line and optional source
+     * @param status
+     *            the status Elasticsearch returned for the item, or 0 if no
+     *            response was received
+     * @param error
+     *            the error Elasticsearch returned, or a description of why the
+     *            item could not be sent
+     */
+    public BulkItemFailure(byte[] item, int status, String error) {
+        this.item = item;
+        this.status = status;
+        this.error = error;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return index, create, update or delete
+     */
+    public String getAction() {
+        return (String) action().keys().next();
+    }
+
+    public String getIndex() {
+        return getMetadata("_index");
+    }
+
+    public String getType() {
+        return getMetadata("_type");
+    }
+
+    public String getId() {
+        return getMetadata("_id");
+    }
+
+    /**
+     * @return the raw action line and optional source of the item, as they
+     *         were sent to Elasticsearch
+     */
+    public byte[] getItem() {
+        return item;
+    }
+
+    public String toString() {
+        return "[" + getIndex() + "][" + getType() + "][" + getId()
+                + "] status " + status + ": " + error;
+    }
+
+    private String getMetadata(String key) {
+        return action().getJSONObject(getAction()).optString(key, null);
+    }
+
+    private JSONObject action() {
+        if (action == null) {
+            int end = 0;
+            while (end < item.length && item[end] != '\n') {
+                end++;
+            }
+            try {
+                action = new JSONObject(new String(item, 0, end, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return action;
+    }
+}
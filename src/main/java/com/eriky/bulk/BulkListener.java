@@ -0,0 +1,24 @@
+package com.eriky.bulk;
+
+/**
+ * Callback that is notified every time a batch of the {@link BulkProcessor}
+ * has been sent to Elasticsearch.
+ *
+ * @author eriky
+ */
+public interface BulkListener {
+    /**
+     * Called after a batch was sent. Note that this is called from the thread
+     * that performed the request, which is a worker thread when the processor
+     * was created with one or more workers.
+     *
+     * @param numberOfDocuments
+     *            the number of documents in the batch
+     * @param success
+     *            true if Elasticsearch accepted the batch, false otherwise;
+     *            without workers, a batch that could not be sent at all is
+     *            also reported with false, while its documents stay queued and
+     *            are reported again with the batch that sends them
+     */
+    void afterBulk(int numberOfDocuments, boolean success);
+}
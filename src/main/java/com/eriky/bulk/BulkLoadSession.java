@@ -0,0 +1,300 @@
+package com.eriky.bulk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.EsRESTException;
+import com.eriky.json.JsonEncoder;
+import com.eriky.requests.Response;
+import com.eriky.transport.Transport;
+
+/**
+ * Loads a large number of documents into one index as fast as possible.
+ * <p>
+ * {@link #start()} saves the refresh_interval and number_of_replicas of the
+ * index and turns both off: the index is not refreshed and nothing is copied
+ * to replicas while the documents come in. The documents are sent with a
+ * {@link BulkProcessor} of the session. {@link #close()} sends what is left,
+ * puts the saved settings back, refreshes the index and waits until the
+ * cluster is healthy again. Always call close in a finally block, so that the
+ * settings are also restored when the load fails partway:
+ * </p>
+ *
+ * <pre>
+ * BulkLoadSession session = client.startBulkLoad(&quot;twitter&quot;);
+ * try {
+ *     for (...) {
+ *         session.add(&quot;tweet&quot;, id, document);
+ *     }
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ *
+ * @author eriky
+ */
+public class BulkLoadSession {
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+    private static final String DEFAULT_NUMBER_OF_REPLICAS = "1";
+    private Logger log = LoggerFactory.getLogger(BulkLoadSession.class);
+    private final Transport transport;
+    private final String indexName;
+    private final BulkProcessor processor;
+    private final AtomicInteger failedBatches = new AtomicInteger();
+    private volatile BulkListener listener;
+    private boolean changeSettings = true;
+    private String waitForStatus = "yellow";
+    private int waitTimeout = 60;
+    private JSONObject savedSettings;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * @param transport
+     *            the transport to send the requests with
+     * @param indexName
+     *            the index to load
+     * @param workers
+     *            the number of threads sending bulk requests concurrently
+     * @param maxPendingBatches
+     *            the number of full batches that may wait for a free worker
+     */
+    public BulkLoadSession(Transport transport, String indexName, int workers,
+            int maxPendingBatches) {
+        this.transport = transport;
+        this.indexName = indexName;
+        this.processor = new BulkProcessor(transport, workers,
+                maxPendingBatches);
+        processor.setListener(new BulkListener() {
+            public void afterBulk(int numberOfDocuments, boolean success) {
+                if (!success) {
+                    failedBatches.incrementAndGet();
+                }
+                BulkListener next = listener;
+                if (next != null) {
+                    next.afterBulk(numberOfDocuments, success);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param change
+     *            false to leave refresh_interval and number_of_replicas
+     *            alone, true by default
+     */
+    public BulkLoadSession changeSettings(boolean change) {
+        this.changeSettings = change;
+        return this;
+    }
+
+    /**
+     * The cluster status that {@link #close()} waits for, see
+     * {@link com.eriky.EsREST#waitForClusterStatus(String, int)}. By default
+     * close waits up to 60 seconds for yellow; wait for green to also have
+     * all replicas copied again, on a cluster with enough nodes for them.
+     *
+     * @param status
+     *            one of green, yellow or red, or null to not wait
+     * @param timeout
+     *            how long to wait, in seconds
+     */
+    public BulkLoadSession waitForStatus(String status, int timeout) {
+        this.waitForStatus = status;
+        this.waitTimeout = timeout;
+        return this;
+    }
+
+    public void setBulkSize(int numberOfDocuments) {
+        processor.setBulkSize(numberOfDocuments);
+    }
+
+    public void setFlushPolicy(FlushPolicy policy) {
+        processor.setFlushPolicy(policy);
+    }
+
+    public void setListener(BulkListener listener) {
+        this.listener = listener;
+    }
+
+    public void setFailureHandler(BulkFailureHandler failureHandler) {
+        processor.setFailureHandler(failureHandler);
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * @return the number of bulk requests so far that were not fully indexed
+     */
+    public int getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * Save the settings of the index and turn off refreshing and replicas.
+     *
+     * @return this session
+     * @throws EsRESTException
+     *             if the settings could not be changed
+     */
+    public synchronized BulkLoadSession start() throws EsRESTException {
+        if (started) {
+            throw new IllegalStateException("Session already started");
+        }
+        started = true;
+        if (changeSettings) {
+            boolean changed = false;
+            try {
+                JSONObject saved = getLoadSettings();
+                putSettings(new JSONObject().put("refresh_interval", "-1")
+                        .put("number_of_replicas", 0));
+                savedSettings = saved;
+                changed = true;
+            } catch (IOException e) {
+                throw new EsRESTException(e);
+            } finally {
+                if (!changed) {
+                    closed = true;
+                    processor.close();
+                }
+            }
+        }
+        return this;
+    }
+
+    public Future<Boolean> add(String type, String id, JSONObject document) {
+        return processor.add(indexName, type, id, document);
+    }
+
+    public Future<Boolean> add(String type, String id, byte[] document) {
+        return processor.add(indexName, type, id, document);
+    }
+
+    public Future<Boolean> add(String type, String id, ByteBuffer document) {
+        return processor.add(indexName, type, id, document);
+    }
+
+    public <T> Future<Boolean> add(String type, String id, T document,
+            JsonEncoder<? super T> encoder) throws IOException {
+        return processor.add(indexName, type, id, document, encoder);
+    }
+
+    /**
+     * Send the documents that are left and wait for all bulk requests, put
+     * the saved settings back, refresh the index and wait for the cluster
+     * status. The settings are put back even if sending fails.
+     *
+     * @throws EsRESTException
+     *             if bulk requests failed, the settings could not be put back
+     *             or the cluster did not reach the status in time
+     */
+    public synchronized void close() throws EsRESTException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            try {
+                processor.close();
+            } finally {
+                if (savedSettings != null) {
+                    putSettings(savedSettings);
+                }
+            }
+            expect(send(new HttpPost('/' + indexName + "/_refresh")),
+                    "refresh " + indexName);
+            if (waitForStatus != null && !waitForClusterStatus()) {
+                throw new EsRESTException("Cluster did not reach "
+                        + waitForStatus + " within " + waitTimeout
+                        + "s after loading " + indexName);
+            }
+        } catch (IOException e) {
+            throw new EsRESTException(e);
+        }
+        if (failedBatches.get() > 0) {
+            throw new EsRESTException(failedBatches.get()
+                    + " bulk requests into " + indexName
+                    + " were not fully indexed");
+        }
+    }
+
+    /*
+     * The settings that are changed while loading, as they are now. Settings
+     * that were never set are put back as the defaults.
+     */
+    private JSONObject getLoadSettings() throws IOException, EsRESTException {
+        Response response = send(new HttpGet('/' + indexName
+                + "/_settings?flat_settings=true"));
+        expect(response, "read the settings of " + indexName);
+        JSONObject body = response.getBodyAsJson();
+        JSONObject settings = null;
+        Iterator<?> indices = body.keys();
+        if (indices.hasNext()) {
+            settings = body.getJSONObject((String) indices.next())
+                    .optJSONObject("settings");
+        }
+        if (settings == null) {
+            settings = new JSONObject();
+        }
+        return new JSONObject().put(
+                "refresh_interval",
+                settings.optString("index.refresh_interval",
+                        DEFAULT_REFRESH_INTERVAL)).put(
+                "number_of_replicas",
+                settings.optString("index.number_of_replicas",
+                        DEFAULT_NUMBER_OF_REPLICAS));
+    }
+
+    private void putSettings(JSONObject settings) throws IOException,
+            EsRESTException {
+        HttpPut request = new HttpPut('/' + indexName + "/_settings");
+        expect(send(withBody(request, new JSONObject().put("index", settings))),
+                "change the settings of " + indexName);
+    }
+
+    private boolean waitForClusterStatus() throws IOException {
+        Response result = send(new HttpGet("/_cluster/health?wait_for_status="
+                + waitForStatus + "&timeout=" + waitTimeout + "s"));
+        if (result.hasStatus(200)) {
+            return !result.getBodyAsJson().optBoolean("timed_out");
+        } else {
+            log.warn("Cluster health request failed: " + result.getStatus());
+            return false;
+        }
+    }
+
+    private Response send(HttpRequestBase request) throws IOException {
+        return transport.execute(request);
+    }
+
+    private static void expect(Response response, String what)
+            throws EsRESTException {
+        if (!response.hasStatus(200)) {
+            throw new EsRESTException("Could not " + what + ": "
+                    + response.getStatus() + " " + response.getBodyAsString());
+        }
+    }
+
+    private static HttpRequestBase withBody(
+            HttpEntityEnclosingRequestBase request, JSONObject body) {
+        request.setEntity(new StringEntity(body.toString(),
+                ContentType.APPLICATION_JSON));
+        return request;
+    }
+}
@@ -0,0 +1,1102 @@
+package com.eriky.bulk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpPut;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.json.JsonEncoder;
+import com.eriky.json.JsonEncoders;
+import com.eriky.transport.ConcurrencyLimiter;
+import com.eriky.transport.Transport;
+import com.eriky.util.NamedThreadFactory;
+
+/**
+ * Collects bulk actions into batches and sends them to the _bulk endpoint of
+ * Elasticsearch. Besides index actions, any {@link BulkAction} can be added,
+ * so creates, updates and deletes go into the same batches.
+ * <p>
+ * A batch is sent when the {@link FlushPolicy} says so: when it holds enough
+ * documents or bytes, or, checked by a background flusher, when its oldest
+ * document has waited long enough. Without workers, a batch is sent on the
+ * thread that adds the document that fills it up. With one or more workers,
+ * full batches are handed to a pool of background threads that send them
+ * concurrently. At most <code>workers + maxPendingBatches</code> batches can be
+ * in flight or waiting for a worker; when that limit is reached, {@link #add}
+ * blocks until a worker has finished a batch.
+ * </p>
+ * <p>
+ * Without workers, a batch that could not be sent at all, e.g. because no
+ * node could be reached, is not lost: its documents stay queued and go along
+ * with the next batch of the same stripe. Its Future does complete, with
+ * false, and the {@link BulkListener} is called with false, so for an inline
+ * batch false can also mean "not sent yet"; {@link #getCurrentBulkSize()}
+ * tells the documents that are still waiting. The documents that are sent
+ * later belong to the Future of that later batch. A worker cannot keep a
+ * batch, so it hands the items of a batch that could not be sent to the
+ * {@link BulkFailureHandler}.
+ * </p>
+ * <p>
+ * A BulkProcessor can be shared by many threads. Instead of one batch behind
+ * one lock, it collects several batches at once, in stripes. Every thread
+ * always adds to the same stripe, and each stripe fills up and is sent on its
+ * own, so threads on different stripes never wait for each other.
+ * </p>
+ * <p>
+ * The response of every batch is read item by item. Items that Elasticsearch
+ * rejected because it was too busy (status 429) are collected and sent again
+ * after a delay that doubles with every retry. Items that fail for any other
+ * reason, or that are still rejected after the last retry, are handed to the
+ * {@link BulkFailureHandler}.
+ * </p>
+ *
+ * @author eriky
+ */
+public class BulkProcessor {
+    private static final JsonEncoder<JSONObject> APPEND_JSON = new JsonEncoder<JSONObject>() {
+        public void encode(JSONObject document, OutputStream out) {
+            ((BulkBuffer) out).append(document);
+        }
+    };
+    private static final JsonEncoder<ByteBuffer> APPEND_BYTE_BUFFER = new JsonEncoder<ByteBuffer>() {
+        public void encode(ByteBuffer document, OutputStream out) {
+            ((BulkBuffer) out).write(document);
+        }
+    };
+    private Logger log = LoggerFactory.getLogger(BulkProcessor.class);
+    private final Transport transport;
+    private final String bulkUrl;
+    private final Stripe[] stripes;
+    private final BufferPool bufferPool = new BufferPool();
+    private volatile Workers workers;
+    private volatile BulkListener listener;
+    private volatile BulkWriteListener writeListener;
+    private volatile BulkFailureHandler failureHandler = new LoggingFailureHandler();
+    private volatile int maxRetries = 3;
+    private volatile long initialBackoffMillis = 100;
+    private volatile FlushPolicy flushPolicy = new FlushPolicy();
+    private ScheduledExecutorService flusher;
+    private volatile boolean closed = false;
+    private volatile Partitioning partitioning = Partitioning.NONE;
+    private ShardLocator shardLocator;
+    private final ConcurrentMap<String, Stripe> partitions = new ConcurrentHashMap<String, Stripe>();
+
+    /**
+     * How actions are grouped into batches.
+     */
+    public enum Partitioning {
+        /**
+         * Every thread adds to its own stripe, whatever the index. This is the
+         * default.
+         */
+        NONE,
+        /**
+         * One batch per index, sent to the node that holds most primaries of
+         * that index.
+         */
+        INDEX,
+        /**
+         * Actions with a routing value are grouped by the shard they go to,
+         * and sent to the node holding its primary. Other actions are grouped
+         * per index, as with {@link #INDEX}.
+         */
+        SHARD
+    }
+
+    /**
+     * Create a bulk processor that sends batches on the calling thread.
+     *
+     * @param url
+     *            the full url to the ElasticSearch server without trailing
+     *            slash, e.g. http://localhost:9200
+     */
+    public BulkProcessor(String url) {
+        this(url, 0, 0);
+    }
+
+    /**
+     * Create a bulk processor that sends batches from a pool of worker
+     * threads, with one stripe per available processor.
+     *
+     * @param url
+     *            the full url to the ElasticSearch server without trailing
+     *            slash, e.g. http://localhost:9200
+     * @param workers
+     *            the number of threads sending bulk requests concurrently, 0
+     *            to send on the calling thread
+     * @param maxPendingBatches
+     *            the number of full batches that may wait for a free worker
+     *            before {@link #add} blocks
+     */
+    public BulkProcessor(String url, int workers, int maxPendingBatches) {
+        this(url, workers, maxPendingBatches, Runtime.getRuntime()
+                .availableProcessors());
+    }
+
+    /**
+     * Create a bulk processor with a given number of stripes.
+     *
+     * @param url
+     *            the full url to the ElasticSearch server without trailing
+     *            slash, e.g. http://localhost:9200
+     * @param workers
+     *            the number of threads sending bulk requests concurrently, 0
+     *            to send on the calling thread
+     * @param maxPendingBatches
+     *            the number of full batches that may wait for a free worker
+     *            before {@link #add} blocks
+     * @param stripes
+     *            the number of batches that are collected at the same time.
+     *            More stripes means less contention between threads that add
+     *            documents, but also more documents waiting in memory.
+     */
+    public BulkProcessor(String url, int workers, int maxPendingBatches,
+            int stripes) {
+        this(Transport.getDefault(), url + "/_bulk", workers,
+                maxPendingBatches, stripes);
+    }
+
+    /**
+     * Create a bulk processor that sends batches on the calling thread over
+     * the connections of the given transport.
+     *
+     * @param transport
+     *            the {@link Transport} to send bulk requests with
+     */
+    public BulkProcessor(Transport transport) {
+        this(transport, 0, 0);
+    }
+
+    /**
+     * Create a bulk processor that sends batches from a pool of worker
+     * threads over the connections of the given transport, with one stripe
+     * per available processor.
+     *
+     * @param transport
+     *            the {@link Transport} to send bulk requests with
+     * @param workers
+     *            the number of threads sending bulk requests concurrently, 0
+     *            to send on the calling thread
+     * @param maxPendingBatches
+     *            the number of full batches that may wait for a free worker
+     *            before {@link #add} blocks
+     */
+    public BulkProcessor(Transport transport, int workers,
+            int maxPendingBatches) {
+        this(transport, "/_bulk", workers, maxPendingBatches, Runtime
+                .getRuntime().availableProcessors());
+    }
+
+    private BulkProcessor(Transport transport, String bulkUrl, int workers,
+            int maxPendingBatches, int stripes) {
+        this.transport = transport;
+        this.bulkUrl = bulkUrl;
+        this.stripes = new Stripe[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.workers = Workers.start(workers, maxPendingBatches);
+    }
+
+    /**
+     * Change the number of worker threads. The documents that are queued are
+     * sent first, and batches that are in flight are finished by the previous
+     * workers before this method returns.
+     *
+     * @param workers
+     *            the number of threads sending bulk requests concurrently, 0
+     *            to send on the calling thread
+     * @param maxPendingBatches
+     *            the number of full batches that may wait for a free worker
+     *            before {@link #add} blocks
+     */
+    public void setWorkers(int workers, int maxPendingBatches) {
+        if (closed) {
+            throw new IllegalStateException("BulkProcessor is closed");
+        }
+        Workers previous = this.workers;
+        this.workers = Workers.start(workers, maxPendingBatches);
+        flush();
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Set the maximum number of documents in one batch.
+     *
+     * @param numberOfDocuments
+     *            the number of docs after which the batch will be submitted to
+     *            ES.
+     */
+    public synchronized void setBulkSize(int numberOfDocuments) {
+        flushPolicy = flushPolicy.copy().maxDocuments(numberOfDocuments);
+    }
+
+    /**
+     * Set when batches are sent. The policy is copied, so changing it
+     * afterwards has no effect until it is set again. When the policy has a
+     * maximum age, a background thread checks the age of the current batches
+     * four times per maximum age.
+     *
+     * @param policy
+     *            the {@link FlushPolicy}
+     */
+    public synchronized void setFlushPolicy(FlushPolicy policy) {
+        if (closed) {
+            throw new IllegalStateException("BulkProcessor is closed");
+        }
+        flushPolicy = policy.copy();
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+        long maxAgeNanos = flushPolicy.getMaxAge(TimeUnit.NANOSECONDS);
+        if (maxAgeNanos > 0) {
+            flusher = Executors
+                    .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                            "bulk-flusher"));
+            long period = Math.max(maxAgeNanos / 4,
+                    TimeUnit.MILLISECONDS.toNanos(1));
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flushExpired();
+                }
+            }, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return a copy of the current {@link FlushPolicy}
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy.copy();
+    }
+
+    /**
+     * Set the listener that is notified after every batch.
+     *
+     * @param listener
+     *            the listener, or null to remove it
+     */
+    public void setListener(BulkListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the listener that is told which documents a batch may have changed,
+     * once the batch is done. Only items added after it was set are reported.
+     *
+     * @param writeListener
+     *            the listener, or null to remove it
+     */
+    public void setWriteListener(BulkWriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Set the handler for items that could not be indexed. By default they
+     * are logged.
+     *
+     * @param failureHandler
+     *            the handler
+     */
+    public void setFailureHandler(BulkFailureHandler failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Configure how often rejected items are retried.
+     *
+     * @param maxRetries
+     *            the number of times a rejected item is sent again, 0 to never
+     *            retry
+     * @param initialBackoffMillis
+     *            the delay before the first retry, every next retry waits twice
+     *            as long
+     */
+    public void setRetries(int maxRetries, long initialBackoffMillis) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * Group the actions that are added from now on by index or by shard
+     * instead of by thread, see {@link ShardLocator}. Each batch then goes to
+     * the node that holds its shards, so that Elasticsearch does not forward
+     * the items to other nodes, and the bulk queues of the nodes fill up
+     * evenly. Works best when the nodes of the transport are sniffed, so that
+     * their urls are the ones the cluster publishes. The shards are looked up
+     * in the background; until the shard of an action is known, it is batched
+     * with the other actions of its index.
+     *
+     * @param partitioning
+     *            how to group the actions
+     * @throws IllegalStateException
+     *             if this processor sends to a single url instead of the
+     *             nodes of a {@link Transport}
+     */
+    public synchronized void setPartitioning(Partitioning partitioning) {
+        if (partitioning != Partitioning.NONE) {
+            if (bulkUrl.charAt(0) != '/') {
+                throw new IllegalStateException(
+                        "Partitioning needs a BulkProcessor created with a Transport");
+            }
+            if (shardLocator == null) {
+                shardLocator = new ShardLocator(transport);
+            }
+        }
+        this.partitioning = partitioning;
+    }
+
+    /**
+     * @return the {@link ShardLocator} of the partitions, e.g. to look up the
+     *         shards of an index before an ingest starts, or null if this
+     *         processor was never partitioned
+     */
+    public synchronized ShardLocator getShardLocator() {
+        return shardLocator;
+    }
+
+    /**
+     * Get the number of documents that are currently waiting for a batch to
+     * be sent, over all stripes.
+     *
+     * @return the number of queued documents
+     */
+    public int getCurrentBulkSize() {
+        int size = 0;
+        for (Stripe stripe : allStripes()) {
+            size += stripe.documents;
+        }
+        return size;
+    }
+
+    /**
+     * Add an index action to the current batch of the calling thread's stripe.
+     * The batch is sent when it is full.
+     *
+     * @param indexName
+     *            the index name
+     * @param type
+     *            the document type
+     * @param id
+     *            the id of the document
+     * @param document
+     *            the document as a JSONObject
+     * @return a Future that completes with true when the batch containing this
+     *         document was accepted by Elasticsearch, false otherwise; without
+     *         workers, false may also mean that the batch could not be sent
+     *         yet and its documents are still queued
+     */
+    public Future<Boolean> add(String indexName, String type, String id,
+            JSONObject document) {
+        return addUnchecked(indexName, type, id, document, APPEND_JSON);
+    }
+
+    /**
+     * Add an index action for a document that is already serialized. The
+     * bytes are copied into the batch as they are.
+     *
+     * @param source
+     *            the document as UTF-8 encoded JSON, on a single line
+     * @throws IllegalArgumentException
+     *             if the document contains a line break, which would break
+     *             the bulk request
+     * @see #add(String, String, String, JSONObject)
+     */
+    public Future<Boolean> add(String indexName, String type, String id,
+            byte[] source) {
+        for (byte b : source) {
+            if (b == '\n') {
+                throw new IllegalArgumentException(
+                        "A bulk document must not contain line breaks");
+            }
+        }
+        return addUnchecked(indexName, type, id, source, JsonEncoders.BYTES);
+    }
+
+    /**
+     * Add an index action for a document that is already serialized. The
+     * remaining bytes of the buffer are copied into the batch, its position
+     * is not changed.
+     *
+     * @param source
+     *            the document as UTF-8 encoded JSON, on a single line
+     * @throws IllegalArgumentException
+     *             if the document contains a line break, which would break
+     *             the bulk request
+     * @see #add(String, String, String, JSONObject)
+     */
+    public Future<Boolean> add(String indexName, String type, String id,
+            ByteBuffer source) {
+        for (int i = source.position(); i < source.limit(); i++) {
+            if (source.get(i) == '\n') {
+                throw new IllegalArgumentException(
+                        "A bulk document must not contain line breaks");
+            }
+        }
+        return addUnchecked(indexName, type, id, source, APPEND_BYTE_BUFFER);
+    }
+
+    /**
+     * Add an index action for a document that the encoder writes straight
+     * into the batch. The encoder is called on the calling thread, and must
+     * not write line breaks.
+     *
+     * @param document
+     *            the document, e.g. a POJO
+     * @param encoder
+     *            the {@link JsonEncoder} that serializes the document
+     * @throws IOException
+     *             if the encoder failed; nothing of the document is left in
+     *             the batch
+     * @see #add(String, String, String, JSONObject)
+     */
+    public <T> Future<Boolean> add(String indexName, String type, String id,
+            T document, JsonEncoder<? super T> encoder) throws IOException {
+        return add(BulkAction.index(indexName, type, id), document, encoder);
+    }
+
+    /**
+     * Add an action without a source, i.e. a delete.
+     *
+     * @param action
+     *            the action, e.g. {@link BulkAction#delete}
+     * @throws IllegalArgumentException
+     *             if the action needs a source
+     * @see #add(String, String, String, JSONObject)
+     */
+    public Future<Boolean> add(BulkAction action) {
+        if (action.hasSource()) {
+            throw new IllegalArgumentException("A " + action.getAction()
+                    + " action needs a source");
+        }
+        return addUnchecked(action, null, null);
+    }
+
+    /**
+     * Add an index, create or update action.
+     *
+     * @param action
+     *            the action with the metadata of the document
+     * @param source
+     *            the document, or for an update the update body, e.g. from
+     *            {@link BulkAction#doc(JSONObject, boolean)}
+     * @see #add(String, String, String, JSONObject)
+     */
+    public Future<Boolean> add(BulkAction action, JSONObject source) {
+        return addUnchecked(action, source, APPEND_JSON);
+    }
+
+    /**
+     * Add an index, create or update action with a source that the encoder
+     * writes straight into the batch, see
+     * {@link #add(String, String, String, Object, JsonEncoder)}.
+     *
+     * @throws IOException
+     *             if the encoder failed; nothing of the item is left in the
+     *             batch
+     */
+    public <T> Future<Boolean> add(BulkAction action, T source,
+            JsonEncoder<? super T> encoder) throws IOException {
+        if (!action.hasSource()) {
+            throw new IllegalArgumentException("A " + action.getAction()
+                    + " action has no source");
+        }
+        Stripe stripe = stripeFor(action);
+        synchronized (stripe) {
+            if (closed) {
+                throw new IllegalStateException("BulkProcessor is closed");
+            }
+            Batch batch = stripe.currentBatch();
+            addActionToBulk(stripe, action, source, encoder);
+            batch.written(action);
+
+            if (flushPolicy.isFull(stripe.documents, stripe.buffer.size())) {
+                dispatch(stripe);
+            }
+            return batch.future;
+        }
+    }
+
+    /**
+     * For the encoders that only write to memory. A delete has no encoder.
+     */
+    private <T> Future<Boolean> addUnchecked(String indexName, String type,
+            String id, T document, JsonEncoder<? super T> encoder) {
+        return addUnchecked(BulkAction.index(indexName, type, id), document,
+                encoder);
+    }
+
+    private <T> Future<Boolean> addUnchecked(BulkAction action, T source,
+            JsonEncoder<? super T> encoder) {
+        if (encoder != null) {
+            try {
+                return add(action, source, encoder);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        Stripe stripe = stripeFor(action);
+        synchronized (stripe) {
+            if (closed) {
+                throw new IllegalStateException("BulkProcessor is closed");
+            }
+            Batch batch = stripe.currentBatch();
+            stripe.buffer.startItem();
+            action.writeTo(stripe.buffer);
+            stripe.documents += 1;
+            batch.written(action);
+
+            if (flushPolicy.isFull(stripe.documents, stripe.buffer.size())) {
+                dispatch(stripe);
+            }
+            return batch.future;
+        }
+    }
+
+    /**
+     * Send the current batches of all stripes, even if they are not full yet.
+     *
+     * @return a Future that completes with true when all batches were
+     *         accepted by Elasticsearch, false otherwise, including when an
+     *         inline batch could not be sent yet
+     */
+    public Future<Boolean> flush() {
+        List<Future<Boolean>> batches = new ArrayList<Future<Boolean>>();
+        for (Stripe stripe : allStripes()) {
+            synchronized (stripe) {
+                if (stripe.documents > 0) {
+                    batches.add(stripe.currentBatch().future);
+                    dispatch(stripe);
+                }
+            }
+        }
+        return new AllSucceeded(batches);
+    }
+
+    /**
+     * Send the remaining documents and wait until all batches have been sent.
+     * The processor cannot be used anymore afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (flusher != null) {
+                flusher.shutdown();
+            }
+        }
+        flush();
+        Workers last = workers;
+        if (last != null) {
+            last.shutdown();
+        }
+        synchronized (this) {
+            if (shardLocator != null) {
+                shardLocator.close();
+            }
+        }
+    }
+
+    /*
+     * Without partitioning the stripe of the calling thread, otherwise the
+     * stripe of the partition of the action.
+     */
+    private Stripe stripeFor(BulkAction action) {
+        Partitioning mode = partitioning;
+        if (mode == Partitioning.NONE) {
+            long id = Thread.currentThread().getId();
+            return stripes[(int) (id % stripes.length)];
+        }
+        String routing = mode == Partitioning.SHARD ? action.getRouting()
+                : null;
+        ShardLocator.Location location = shardLocator.locate(
+                action.getIndexName(), routing);
+        Stripe stripe = partitions.get(location.getPartition());
+        if (stripe == null) {
+            Stripe created = new Stripe(location);
+            stripe = partitions.putIfAbsent(location.getPartition(), created);
+            if (stripe == null) {
+                stripe = created;
+            }
+        }
+        return stripe;
+    }
+
+    private List<Stripe> allStripes() {
+        List<Stripe> all = new ArrayList<Stripe>(stripes.length
+                + partitions.size());
+        Collections.addAll(all, stripes);
+        all.addAll(partitions.values());
+        return all;
+    }
+
+    /*
+     * Called by the flusher. A batch that failed inline gets a new start time,
+     * so a dead cluster is tried once per maximum age and not every period.
+     */
+    private void flushExpired() {
+        for (Stripe stripe : allStripes()) {
+            synchronized (stripe) {
+                try {
+                    if (!closed
+                            && stripe.documents > 0
+                            && flushPolicy.isExpired(System.nanoTime()
+                                    - stripe.batchStartNanos)) {
+                        dispatch(stripe);
+                    }
+                } catch (RuntimeException e) {
+                    // an exception would cancel the flusher
+                    log.error("Could not flush bulk request: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * Seal the current batch of a stripe and send it, either inline or on a
+     * worker. An inline batch that could not be sent at all stays in the
+     * buffer so that the next flush tries again; its Future has completed with
+     * false, and the documents move on to the Future of the next batch. Must
+     * hold the stripe lock.
+     */
+    private void dispatch(Stripe stripe) {
+        final Batch batch = stripe.batch;
+        batch.body = stripe.buffer;
+        batch.numberOfDocuments = stripe.documents;
+        if (stripe.location != null) {
+            batch.preferredUrl = stripe.location.getUrl();
+        }
+
+        while (true) {
+            Workers current = workers;
+            if (current == null) {
+                batch.inline = true;
+                batch.future.run();
+                if (!batch.sent) {
+                    stripe.batch = null;
+                    stripe.currentBatch().written.addAll(batch.written);
+                    return;
+                }
+                stripe.buffer.release();
+                break;
+            }
+            if (current.submit(batch)) {
+                stripe.buffer = new BulkBuffer(bufferPool);
+                break;
+            }
+            // the workers were replaced while we were submitting, try the
+            // new ones
+        }
+        stripe.batch = null;
+        stripe.documents = 0;
+    }
+
+    private <T> void addActionToBulk(Stripe stripe, BulkAction action,
+            T source, JsonEncoder<? super T> encoder) throws IOException {
+        BulkBuffer bulkBuffer = stripe.buffer;
+        bulkBuffer.startItem();
+        action.writeTo(bulkBuffer);
+        try {
+            encoder.encode(source, bulkBuffer);
+        } catch (IOException e) {
+            bulkBuffer.discardItem();
+            throw e;
+        } catch (RuntimeException e) {
+            bulkBuffer.discardItem();
+            throw e;
+        }
+        bulkBuffer.write('\n');
+        stripe.documents += 1;
+    }
+
+    /**
+     * Send a batch and retry the items that were rejected until they are
+     * accepted or the retries run out.
+     *
+     * @return true if all items were indexed, false if one or more items were
+     *         handed to the failure handler
+     * @throws IOException
+     *             if the batch could not be sent at all
+     */
+    private boolean sendWithRetries(BulkBuffer body, String preferredUrl)
+            throws IOException {
+        BulkBuffer pending = body;
+        long backoff = initialBackoffMillis;
+        boolean complete = true;
+        for (int attempt = 0;; attempt++) {
+            BulkBuffer rejected = new BulkBuffer(bufferPool);
+            try {
+                complete &= send(pending, rejected, attempt < maxRetries,
+                        preferredUrl);
+            } catch (IOException e) {
+                if (pending == body) {
+                    rejected.release();
+                    throw e;
+                }
+                failAll(pending, e.getMessage());
+                complete = false;
+            }
+            if (pending != body) {
+                pending.release();
+            }
+            pending = rejected;
+
+            if (pending.getItemCount() == 0) {
+                pending.release();
+                return complete;
+            }
+            ConcurrencyLimiter limiter = transport.getConcurrencyLimiter();
+            if (limiter != null) {
+                limiter.overloaded();
+            }
+            log.info("Retrying " + pending.getItemCount()
+                    + " rejected bulk items in " + backoff + " ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failAll(pending, "interrupted before retry");
+                pending.release();
+                return false;
+            }
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * Send one bulk request and sort out the items of the response.
+     *
+     * @param bulkRequest
+     *            the items to send
+     * @param rejected
+     *            the buffer that rejected items are copied to, so that they
+     *            can be retried
+     * @param canRetry
+     *            false if this is the last attempt and rejected items should
+     *            go to the failure handler
+     * @param preferredUrl
+     *            the node to send to first, or null for any node
+     * @return true if no item was handed to the failure handler
+     * @throws IOException
+     *             if the request failed before any item was handled; once
+     *             Elasticsearch answered 200 OK the items were applied, and
+     *             the items of a response that cannot be read to the end go
+     *             to the failure handler instead
+     */
+    private boolean send(final BulkBuffer bulkRequest,
+            final BulkBuffer rejected, final boolean canRetry,
+            String preferredUrl) throws IOException {
+        HttpPut request = new HttpPut(bulkUrl);
+        request.setEntity(new BulkEntity(bulkRequest));
+        return transport.execute(request, new ResponseHandler<Boolean>() {
+            public Boolean handleResponse(HttpResponse response)
+                    throws IOException {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == 429 && canRetry) {
+                    for (int i = 0; i < bulkRequest.getItemCount(); i++) {
+                        bulkRequest.copyItemTo(i, rejected);
+                    }
+                    return true;
+                } else if (status != 200) {
+                    throw new IOException("Bulk request to " + bulkUrl
+                            + " failed with status " + status);
+                }
+                ItemSorter sorter = new ItemSorter(bulkRequest, rejected,
+                        canRetry);
+                try {
+                    BulkResponseParser.parse(response.getEntity()
+                            .getContent(), sorter);
+                } catch (IOException e) {
+                    sorter.failUnhandled("Could not read bulk response: "
+                            + e.getMessage());
+                } catch (RuntimeException e) {
+                    sorter.failUnhandled("Could not read bulk response: "
+                            + e.getMessage());
+                }
+                return sorter.complete;
+            }
+        }, preferredUrl);
+    }
+
+    private void failAll(BulkBuffer items, String reason) {
+        for (int i = 0; i < items.getItemCount(); i++) {
+            failureHandler.onFailure(new BulkItemFailure(items.getItem(i), 0,
+                    reason));
+        }
+    }
+
+    /**
+     * One batch of documents. The body is filled in when the batch is sealed,
+     * right before it is sent.
+     */
+    private class Batch implements Callable<Boolean> {
+        private final FutureTask<Boolean> future = new FutureTask<Boolean>(
+                this);
+        private BulkBuffer body;
+        private int numberOfDocuments;
+        private String preferredUrl;
+        private boolean inline = false;
+        private boolean sent = false;
+        private final List<BulkAction> written = new ArrayList<BulkAction>();
+
+        public Boolean call() {
+            boolean success;
+            try {
+                success = sendWithRetries(body, preferredUrl);
+                sent = true;
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                if (!inline) {
+                    // nothing keeps the body for another try after this
+                    failAll(body, e.getMessage());
+                }
+                success = false;
+            }
+            BulkWriteListener batchWriteListener = writeListener;
+            if (batchWriteListener != null) {
+                for (BulkAction action : written) {
+                    batchWriteListener.afterWrite(action.getIndexName(),
+                            action.getId());
+                }
+            }
+            BulkListener batchListener = listener;
+            if (batchListener != null) {
+                batchListener.afterBulk(numberOfDocuments, success);
+            }
+            return success;
+        }
+
+        /**
+         * Remember an item with an id for the write listener, if there is one.
+         * Must hold the stripe lock.
+         */
+        void written(BulkAction action) {
+            if (writeListener != null && action.getId() != null) {
+                written.add(action);
+            }
+        }
+    }
+
+    /**
+     * The batch that is being collected by the threads that map to this
+     * stripe, or by the actions of one partition. All fields are guarded by
+     * the stripe itself, except documents, which is also read without the
+     * lock to sum up the queue size.
+     */
+    private class Stripe {
+        private final ShardLocator.Location location;
+        private BulkBuffer buffer = new BulkBuffer(bufferPool);
+        private Batch batch;
+        private volatile int documents;
+        private long batchStartNanos;
+
+        Stripe() {
+            this(null);
+        }
+
+        /**
+         * @param location
+         *            the location of the partition, whose url is kept up to
+         *            date by the {@link ShardLocator}; null for a thread stripe
+         */
+        Stripe(ShardLocator.Location location) {
+            this.location = location;
+        }
+
+        Batch currentBatch() {
+            if (batch == null) {
+                batch = new Batch();
+                batchStartNanos = System.nanoTime();
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * A pool of worker threads together with the permits that limit how many
+     * batches can be in flight or waiting.
+     */
+    private static class Workers {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        private Workers(ExecutorService executor, Semaphore permits) {
+            this.executor = executor;
+            this.permits = permits;
+        }
+
+        static Workers start(int workers, int maxPendingBatches) {
+            if (workers <= 0) {
+                return null;
+            }
+            return new Workers(Executors.newFixedThreadPool(workers,
+                    new NamedThreadFactory("bulk-worker")), new Semaphore(
+                    workers + Math.max(0, maxPendingBatches)));
+        }
+
+        /**
+         * @return false if these workers were shut down and the batch was not
+         *         submitted
+         */
+        boolean submit(final Batch batch) {
+            permits.acquireUninterruptibly();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            batch.future.run();
+                        } finally {
+                            batch.body.release();
+                            permits.release();
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                return false;
+            }
+        }
+
+        void shutdown() {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Completes with true when all batches succeeded.
+     */
+    private static class AllSucceeded implements Future<Boolean> {
+        private final List<Future<Boolean>> batches;
+
+        AllSucceeded(List<Future<Boolean>> batches) {
+            this.batches = batches;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            for (Future<Boolean> batch : batches) {
+                if (!batch.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Boolean get() throws InterruptedException, ExecutionException {
+            boolean success = true;
+            for (Future<Boolean> batch : batches) {
+                success &= batch.get();
+            }
+            return success;
+        }
+
+        public Boolean get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            boolean success = true;
+            for (Future<Boolean> batch : batches) {
+                success &= batch.get(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            }
+            return success;
+        }
+    }
+
+    /**
+     * Copies items that are worth retrying to the rejected buffer and hands
+     * the others to the failure handler.
+     */
+    private class ItemSorter implements BulkResponseParser.ItemHandler {
+        private final BulkBuffer bulkRequest;
+        private final BulkBuffer rejected;
+        private final boolean canRetry;
+        private final BitSet handled = new BitSet();
+        private boolean complete = true;
+
+        ItemSorter(BulkBuffer bulkRequest, BulkBuffer rejected, boolean canRetry) {
+            this.bulkRequest = bulkRequest;
+            this.rejected = rejected;
+            this.canRetry = canRetry;
+        }
+
+        public void onItem(int position, String action, int status,
+                String error) {
+            handled.set(position);
+            if (status < 300 || (status == 404 && error == null)) {
+                // a delete of a document that does not exist has no error
+                return;
+            }
+            if (status == 429 && canRetry) {
+                bulkRequest.copyItemTo(position, rejected);
+            } else {
+                complete = false;
+                failureHandler.onFailure(new BulkItemFailure(
+                        bulkRequest.getItem(position), status, error));
+            }
+        }
+
+        /**
+         * Hand the items that are not in the part of the response that was
+         * read to the failure handler, once.
+         */
+        void failUnhandled(String reason) {
+            log.error(reason);
+            for (int i = 0; i < bulkRequest.getItemCount(); i++) {
+                if (!handled.get(i)) {
+                    handled.set(i);
+                    complete = false;
+                    failureHandler.onFailure(new BulkItemFailure(
+                            bulkRequest.getItem(i), 0, reason));
+                }
+            }
+        }
+    }
+
+    private class LoggingFailureHandler implements BulkFailureHandler {
+        public void onFailure(BulkItemFailure failure) {
+            log.warn("Bulk item failed: " + failure);
+        }
+    }
+}
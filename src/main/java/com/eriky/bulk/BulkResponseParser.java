@@ -0,0 +1,112 @@
+package com.eriky.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.eriky.json.JsonReader;
+
+/**
+ * Reads the response of a bulk request item by item, straight from the
+ * connection. Of every item only the action, status and error are read; no
+ * JSON tree is built, except for an error that is an object. When
+ * Elasticsearch reports <code>"errors": false</code> before the items (which
+ * it does since 1.0) the items are not read at all.
+ *
+ * @author eriky
+ */
+public class BulkResponseParser {
+
+    /**
+     * Receives the result of every item in a bulk response.
+     */
+    public interface ItemHandler {
+        /**
+         * @param position
+         *            the position of the item in the bulk request, starting at
+         *            0
+         * @param action
+         *            the action of the item, e.g. index or delete
+         * @param status
+         *            the status of the item, 200 if the response has none
+         * @param error
+         *            the error of the item as text, or null if it has none
+         */
+        void onItem(int position, String action, int status, String error);
+    }
+
+    private BulkResponseParser() {
+    }
+
+    /**
+     * Parse a bulk response.
+     *
+     * @param in
+     *            the response body
+     * @param handler
+     *            the handler that is called for every item
+     * @return true if the response contains no errors, false otherwise
+     * @throws IOException
+     *             if the response cannot be read or is not a bulk response
+     */
+    public static boolean parse(InputStream in, ItemHandler handler)
+            throws IOException {
+        return parse(new JsonReader(in), handler);
+    }
+
+    static boolean parse(JsonReader reader, ItemHandler handler)
+            throws IOException {
+        boolean errors = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if ("errors".equals(key)) {
+                errors = reader.nextBoolean();
+                if (!errors) {
+                    return true;
+                }
+            } else if ("items".equals(key)) {
+                errors |= parseItems(reader, handler);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return !errors;
+    }
+
+    private static boolean parseItems(JsonReader reader, ItemHandler handler)
+            throws IOException {
+        boolean errors = false;
+        int position = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            String action = reader.nextName();
+            int status = 200;
+            String error = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("status".equals(name)) {
+                    status = reader.nextInt();
+                } else if ("error".equals(name)) {
+                    error = reader.readValue().toString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                reader.skipValue();
+            }
+            reader.endObject();
+            if (status >= 300) {
+                errors = true;
+            }
+            handler.onItem(position++, action, status, error);
+        }
+        reader.endArray();
+        return errors;
+    }
+}
@@ -0,0 +1,21 @@
+package com.eriky.bulk;
+
+/**
+ * Callback that is notified of every document a batch of the
+ * {@link BulkProcessor} may have changed, once the batch is done, e.g. to
+ * drop cached copies of those documents.
+ *
+ * @author eriky
+ */
+public interface BulkWriteListener {
+    /**
+     * Called for every item with an id after its batch was sent, whether
+     * Elasticsearch applied it or not, from the thread that sent the batch.
+     *
+     * @param indexName
+     *            the index of the item
+     * @param id
+     *            the id of the document
+     */
+    void afterWrite(String indexName, String id);
+}
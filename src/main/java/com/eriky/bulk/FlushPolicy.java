@@ -0,0 +1,117 @@
+package com.eriky.bulk;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the {@link BulkProcessor} sends the batch it is collecting:
+ * after a number of documents, after a number of bytes, or when the oldest
+ * document in the batch has waited long enough, whichever comes first.
+ * <p>
+ * For example, to send at least every second and never more than 5 MB at a
+ * time:
+ * </p>
+ *
+ * <pre>
+ * new FlushPolicy().maxDocuments(1000).maxBytes(5 * 1024 * 1024)
+ *         .maxAge(1, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author eriky
+ */
+public class FlushPolicy {
+    /** The default number of documents per batch. */
+    public static final int DEFAULT_MAX_DOCUMENTS = 200;
+    /** The default maximum size of a batch, about 10 MB. */
+    public static final long DEFAULT_MAX_BYTES = 1024 * 10000;
+
+    private int maxDocuments = DEFAULT_MAX_DOCUMENTS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxAgeNanos = 0;
+
+    /**
+     * @param maxDocuments
+     *            send the batch once it holds this many documents
+     * @return this policy
+     */
+    public FlushPolicy maxDocuments(int maxDocuments) {
+        if (maxDocuments <= 0) {
+            throw new IllegalArgumentException("maxDocuments must be positive");
+        }
+        this.maxDocuments = maxDocuments;
+        return this;
+    }
+
+    /**
+     * @param maxBytes
+     *            send the batch once its body is larger than this many bytes
+     * @return this policy
+     */
+    public FlushPolicy maxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param maxAge
+     *            send the batch once its first document has waited this long,
+     *            0 to wait until the batch is full
+     * @param unit
+     *            the unit of maxAge
+     * @return this policy
+     */
+    public FlushPolicy maxAge(long maxAge, TimeUnit unit) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge must not be negative");
+        }
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        return this;
+    }
+
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAge(TimeUnit unit) {
+        return unit.convert(maxAgeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return a copy of this policy, so that later changes to this policy do
+     *         not affect a processor that uses the copy
+     */
+    public FlushPolicy copy() {
+        FlushPolicy copy = new FlushPolicy();
+        copy.maxDocuments = maxDocuments;
+        copy.maxBytes = maxBytes;
+        copy.maxAgeNanos = maxAgeNanos;
+        return copy;
+    }
+
+    /**
+     * @param documents
+     *            the number of documents in the batch
+     * @param bytes
+     *            the size of the batch in bytes
+     * @return true if a batch of this size must be sent
+     */
+    public boolean isFull(int documents, long bytes) {
+        return documents >= maxDocuments || bytes > maxBytes;
+    }
+
+    /**
+     * @param ageNanos
+     *            the time the first document of the batch has waited, in
+     *            nanoseconds
+     * @return true if a batch of this age must be sent
+     */
+    public boolean isExpired(long ageNanos) {
+        return maxAgeNanos > 0 && ageNanos >= maxAgeNanos;
+    }
+}
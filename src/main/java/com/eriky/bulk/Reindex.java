@@ -0,0 +1,302 @@
+package com.eriky.bulk;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.eriky.EsRESTException;
+import com.eriky.json.JsonDecoders;
+import com.eriky.requests.Response;
+import com.eriky.requests.Scroll;
+import com.eriky.requests.ScrollIterator;
+import com.eriky.requests.SlicedScroll;
+import com.eriky.transport.Transport;
+import com.eriky.util.RateLimiter;
+
+/**
+ * Copies all documents of one index into another: the source is read with a
+ * {@link Scroll}, every document can be changed or left out by a
+ * {@link Transform}, and the result is loaded into the target with a
+ * {@link BulkLoadSession}. The _type and _id of every document are kept.
+ * <p>
+ * While the documents are loaded, refreshing and replicas of the target are
+ * turned off, because both slow down indexing a lot; the previous settings
+ * are put back afterwards, also when the reindex fails. When an alias is
+ * given, it is moved to the target in one atomic step once all documents
+ * have been indexed, so that searches on the alias switch from the old index
+ * to the new one at once.
+ * </p>
+ *
+ * @author eriky
+ */
+public class Reindex {
+    private final Transport transport;
+    private final String sourceIndex;
+    private final String targetIndex;
+    private JSONObject query;
+    private int size = 500;
+    private int slices = 1;
+    private Transform transform;
+    private double docsPerSecond;
+    private JSONObject targetSettings;
+    private String alias;
+    private boolean disableRefreshAndReplicas = true;
+    private int bulkSize = 1000;
+    private int bulkWorkers = 2;
+
+    /**
+     * Changes a document on its way from the source to the target.
+     */
+    public interface Transform {
+        /**
+         * Called for every document of the source, from several threads at
+         * once when the source is read in slices.
+         *
+         * @param hit
+         *            the hit, with _index, _type, _id and _source
+         * @return the document to index into the target, or null to leave
+         *         this document out
+         */
+        JSONObject transform(JSONObject hit);
+    }
+
+    public Reindex(Transport transport, String sourceIndex, String targetIndex) {
+        this.transport = transport;
+        this.sourceIndex = sourceIndex;
+        this.targetIndex = targetIndex;
+    }
+
+    /**
+     * Only copy the documents that match the query.
+     */
+    public Reindex query(JSONObject query) {
+        this.query = query;
+        return this;
+    }
+
+    /**
+     * @param size
+     *            the number of documents per scroll page, 500 by default
+     */
+    public Reindex size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Read the source as a number of slices in parallel, see
+     * {@link SlicedScroll}. Needs Elasticsearch 5.0 or later.
+     *
+     * @param slices
+     *            the number of slices, e.g. the number of shards of the source
+     */
+    public Reindex slices(int slices) {
+        this.slices = Math.max(1, slices);
+        return this;
+    }
+
+    public Reindex transform(Transform transform) {
+        this.transform = transform;
+        return this;
+    }
+
+    /**
+     * Index no more than the given number of documents per second, to leave
+     * room for other work on the cluster.
+     *
+     * @param docsPerSecond
+     *            the maximum rate, 0 for no limit
+     */
+    public Reindex throttle(double docsPerSecond) {
+        this.docsPerSecond = docsPerSecond;
+        return this;
+    }
+
+    /**
+     * Create the target with these settings and mappings when it does not
+     * exist yet.
+     */
+    public Reindex targetSettings(JSONObject settings) {
+        this.targetSettings = settings;
+        return this;
+    }
+
+    /**
+     * Move this alias to the target when the reindex is done. The alias is
+     * removed from all indices it pointed to before.
+     */
+    public Reindex alias(String alias) {
+        this.alias = alias;
+        return this;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getTargetIndex() {
+        return targetIndex;
+    }
+
+    /**
+     * @param disable
+     *            false to leave refresh_interval and number_of_replicas of the
+     *            target alone while loading, true by default
+     */
+    public Reindex disableRefreshAndReplicas(boolean disable) {
+        this.disableRefreshAndReplicas = disable;
+        return this;
+    }
+
+    /**
+     * @param numberOfDocuments
+     *            the number of documents per bulk request, 1000 by default
+     * @param workers
+     *            the number of bulk requests sent at the same time, 2 by
+     *            default
+     */
+    public Reindex bulk(int numberOfDocuments, int workers) {
+        this.bulkSize = numberOfDocuments;
+        this.bulkWorkers = workers;
+        return this;
+    }
+
+    /**
+     * Copy the documents. The alias, if any, is only moved when every
+     * document was indexed.
+     *
+     * @return the number of documents indexed into the target
+     * @throws EsRESTException
+     *             if the source could not be read or documents could not be
+     *             indexed
+     */
+    public long execute() throws EsRESTException {
+        try {
+            if (targetSettings != null && !exists(targetIndex)) {
+                expect(send(withBody(new HttpPut('/' + targetIndex),
+                        targetSettings)), "create " + targetIndex);
+            }
+            BulkLoadSession session = new BulkLoadSession(transport,
+                    targetIndex, bulkWorkers, bulkWorkers)
+                    .changeSettings(disableRefreshAndReplicas);
+            session.setBulkSize(bulkSize);
+            session.start();
+            long indexed;
+            try {
+                indexed = load(session);
+            } finally {
+                session.close();
+            }
+            if (alias != null) {
+                swapAlias();
+            }
+            return indexed;
+        } catch (IOException e) {
+            throw new EsRESTException(e);
+        }
+    }
+
+    private long load(final BulkLoadSession session) throws EsRESTException {
+        final AtomicInteger indexed = new AtomicInteger();
+        final RateLimiter limiter = docsPerSecond > 0 ? new RateLimiter(
+                docsPerSecond) : null;
+        SlicedScroll.HitHandler<JSONObject> handler = new SlicedScroll.HitHandler<JSONObject>() {
+            public void onHit(JSONObject hit) {
+                JSONObject document = transform == null ? hit
+                        .optJSONObject("_source") : transform.transform(hit);
+                if (document == null) {
+                    return;
+                }
+                if (limiter != null) {
+                    try {
+                        limiter.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(
+                                "Interrupted while throttled");
+                    }
+                }
+                session.add(hit.getString("_type"), hit.getString("_id"),
+                        document);
+                indexed.incrementAndGet();
+            }
+        };
+        Scroll scroll = new Scroll(transport).withIndex(sourceIndex)
+                .size(size).query(query);
+        try {
+            if (slices > 1) {
+                scroll.sliced(slices).forEach(JsonDecoders.JSON_OBJECT,
+                        handler);
+            } else {
+                ScrollIterator<JSONObject> hits = scroll.execute();
+                try {
+                    while (hits.hasNext()) {
+                        handler.onHit(hits.next());
+                    }
+                } finally {
+                    hits.close();
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new EsRESTException(e);
+        }
+        return indexed.get();
+    }
+
+    /*
+     * One _aliases request removes the alias from every index it points to
+     * and adds it to the target, so there is no moment without it.
+     */
+    private void swapAlias() throws IOException, EsRESTException {
+        JSONArray actions = new JSONArray();
+        Response current = send(new HttpGet("/_alias/" + alias));
+        if (current.hasStatus(200)) {
+            Iterator<?> indices = current.getBodyAsJson().keys();
+            while (indices.hasNext()) {
+                String index = (String) indices.next();
+                if (!index.equals(targetIndex)) {
+                    actions.put(new JSONObject().put("remove", new JSONObject()
+                            .put("index", index).put("alias", alias)));
+                }
+            }
+        }
+        actions.put(new JSONObject().put("add", new JSONObject().put("index",
+                targetIndex).put("alias", alias)));
+        expect(send(withBody(new HttpPost("/_aliases"), new JSONObject().put(
+                "actions", actions))), "move alias " + alias);
+    }
+
+    private boolean exists(String index) throws IOException {
+        return send(new HttpHead('/' + index)).hasStatus(200);
+    }
+
+    private Response send(HttpRequestBase request) throws IOException {
+        return transport.execute(request);
+    }
+
+    private static void expect(Response response, String what)
+            throws EsRESTException {
+        if (!response.hasStatus(200)) {
+            throw new EsRESTException("Could not " + what + ": "
+                    + response.getStatus() + " " + response.getBodyAsString());
+        }
+    }
+
+    private static HttpRequestBase withBody(
+            HttpEntityEnclosingRequestBase request, JSONObject body) {
+        request.setEntity(new StringEntity(body.toString(),
+                ContentType.APPLICATION_JSON));
+        return request;
+    }
+}
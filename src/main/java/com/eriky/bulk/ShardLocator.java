@@ -0,0 +1,375 @@
+package com.eriky.bulk;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.requests.Response;
+import com.eriky.transport.Sniffer;
+import com.eriky.transport.Transport;
+import com.eriky.util.NamedThreadFactory;
+
+/**
+ * Finds the node that holds the primary shard that a bulk action goes to,
+ * so that the {@link BulkProcessor} can send it there and Elasticsearch does
+ * not have to forward it to another node.
+ * <p>
+ * For every index, the node of each primary shard is read from
+ * <code>_search_shards</code>, with the node ids mapped to the HTTP addresses
+ * of <code>/_nodes/http</code>. Elasticsearch itself computes the shard of a
+ * routing value, also through <code>_search_shards</code>; since that shard
+ * does not change, it is asked once per routing value, and at most 10000 of
+ * them are kept per index. Without a routing value, the shard depends on the
+ * id of each document, so the location of an index as a whole is used: the
+ * node that holds most of its primaries.
+ * </p>
+ * <p>
+ * {@link #locate(String, String)} never waits for Elasticsearch. What is not
+ * known yet is looked up in the background, and until then the location of
+ * the index is returned, without a url. The nodes of an index are looked up
+ * again in the background after a minute, and the {@link Location}s that were
+ * handed out get the new urls.
+ * </p>
+ *
+ * @author eriky
+ */
+public class ShardLocator {
+    private static final long MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int MAX_ROUTINGS = 10000;
+    private Logger log = LoggerFactory.getLogger(ShardLocator.class);
+    private final Transport transport;
+    private final ConcurrentMap<String, IndexLayout> layouts = new ConcurrentHashMap<String, IndexLayout>();
+    private final ExecutorService refresher = Executors
+            .newSingleThreadExecutor(new NamedThreadFactory("shard-locator"));
+    private Map<String, String> nodeUrls = Collections.emptyMap();
+    private long nodeUrlsNanos;
+
+    /**
+     * Where the actions of one partition go.
+     */
+    public static class Location {
+        private final String partition;
+        private volatile String url;
+
+        Location(String partition, String url) {
+            this.partition = partition;
+            this.url = url;
+        }
+
+        /**
+         * @return the index, or the index and shard number for a routing
+         *         value; actions with the same partition go to the same shard
+         *         or index
+         */
+        public String getPartition() {
+            return partition;
+        }
+
+        /**
+         * @return the url of the node that holds the primary, or null if it
+         *         is not known (yet)
+         */
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    /**
+     * @param transport
+     *            the transport to ask, with at least one node
+     */
+    public ShardLocator(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Get what is known about the location of an action, without waiting for
+     * Elasticsearch.
+     *
+     * @param indexName
+     *            the index, or an alias
+     * @param routing
+     *            the routing value, or null for the index as a whole
+     * @return the location of the shard of the routing value if it is known,
+     *         otherwise the location of the index
+     */
+    public Location locate(String indexName, String routing) {
+        IndexLayout layout = layoutOf(indexName);
+        if (System.nanoTime() - layout.fetchedNanos >= MAX_AGE_NANOS) {
+            refreshInBackground(layout, null);
+        }
+        if (routing == null) {
+            return layout.index;
+        }
+        Integer shard = layout.shardOf(routing);
+        if (shard == null) {
+            refreshInBackground(layout, routing);
+            return layout.index;
+        }
+        return layout.shard(shard);
+    }
+
+    /**
+     * Look up the nodes of an index, and the shards of the given routing
+     * values, right away, e.g. before an ingest starts.
+     *
+     * @param indexName
+     *            the index, or an alias
+     * @param routings
+     *            routing values that will be used
+     * @throws IOException
+     *             if Elasticsearch could not be asked
+     */
+    public void refresh(String indexName, String... routings)
+            throws IOException {
+        IndexLayout layout = layoutOf(indexName);
+        fetchLayout(layout);
+        for (String routing : routings) {
+            fetchRouting(layout, routing);
+        }
+    }
+
+    /**
+     * Forget all locations, e.g. after shards were moved.
+     */
+    public void clear() {
+        layouts.clear();
+        synchronized (this) {
+            nodeUrlsNanos = 0;
+        }
+    }
+
+    /**
+     * Stop the background lookups.
+     */
+    public void close() {
+        refresher.shutdown();
+    }
+
+    private IndexLayout layoutOf(String indexName) {
+        IndexLayout layout = layouts.get(indexName);
+        if (layout == null) {
+            IndexLayout created = new IndexLayout(indexName);
+            layout = layouts.putIfAbsent(indexName, created);
+            if (layout == null) {
+                layout = created;
+            }
+        }
+        return layout;
+    }
+
+    /*
+     * Look up the nodes of the index, or the shard of a routing value, at most
+     * once at a time.
+     */
+    private void refreshInBackground(final IndexLayout layout,
+            final String routing) {
+        final AtomicBoolean pending = routing == null ? layout.refreshing
+                : layout.pendingRouting(routing);
+        if (pending == null || !pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (routing == null) {
+                            fetchLayout(layout);
+                        } else {
+                            fetchRouting(layout, routing);
+                        }
+                        pending.set(false);
+                    } catch (IOException e) {
+                        // tried again with the next refresh of the index
+                        log.debug("Could not locate shards of "
+                                + layout.indexName + ": " + e.getMessage());
+                        if (routing == null) {
+                            layout.fetchedNanos = System.nanoTime();
+                            pending.set(false);
+                        }
+                    } catch (RuntimeException e) {
+                        log.debug("Could not locate shards of "
+                                + layout.indexName + ": " + e.getMessage());
+                        if (routing == null) {
+                            layout.fetchedNanos = System.nanoTime();
+                            pending.set(false);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+            pending.set(false);
+        }
+    }
+
+    private void fetchLayout(IndexLayout layout) throws IOException {
+        JSONArray shards = searchShards(layout.indexName, null);
+        Map<String, String> urls = getNodeUrls();
+        Map<Integer, String> primaries = new HashMap<Integer, String>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        String busiest = null;
+        for (int i = 0; i < shards.length(); i++) {
+            JSONArray copies = shards.getJSONArray(i);
+            for (int j = 0; j < copies.length(); j++) {
+                JSONObject copy = copies.getJSONObject(j);
+                if (!copy.optBoolean("primary")
+                        || !"STARTED".equals(copy.optString("state"))) {
+                    continue;
+                }
+                String node = copy.getString("node");
+                primaries.put(copy.optInt("shard", i), urls.get(node));
+                Integer count = counts.get(node);
+                count = count == null ? 1 : count + 1;
+                counts.put(node, count);
+                if (busiest == null || count > counts.get(busiest)) {
+                    busiest = node;
+                }
+            }
+        }
+        layout.update(shards.length(), primaries,
+                busiest == null ? null : urls.get(busiest));
+    }
+
+    private void fetchRouting(IndexLayout layout, String routing)
+            throws IOException {
+        JSONArray shards = searchShards(layout.indexName, routing);
+        if (shards.length() != 1) {
+            return;
+        }
+        JSONArray copies = shards.getJSONArray(0);
+        for (int j = 0; j < copies.length(); j++) {
+            int shard = copies.getJSONObject(j).optInt("shard", -1);
+            if (shard >= 0) {
+                layout.putShard(routing, shard);
+                return;
+            }
+        }
+    }
+
+    private JSONArray searchShards(String indexName, String routing)
+            throws IOException {
+        String path = '/' + indexName + "/_search_shards";
+        if (routing != null) {
+            path += "?routing=" + URLEncoder.encode(routing, "UTF-8");
+        }
+        Response response = transport.execute(new HttpGet(path));
+        if (!response.hasStatus(200)) {
+            throw new IOException("Expected 200 OK from " + path + " but got "
+                    + response.getStatus());
+        }
+        return response.getBodyAsJson().getJSONArray("shards");
+    }
+
+    private synchronized Map<String, String> getNodeUrls() throws IOException {
+        if (nodeUrlsNanos == 0
+                || System.nanoTime() - nodeUrlsNanos >= MAX_AGE_NANOS) {
+            nodeUrls = new Sniffer(transport).getHttpUrls();
+            nodeUrlsNanos = System.nanoTime();
+        }
+        return nodeUrls;
+    }
+
+    /**
+     * The node of every primary shard of one index, and the shards of the
+     * routing values that were seen.
+     */
+    private static class IndexLayout {
+        private final String indexName;
+        private final Location index;
+        private final ConcurrentMap<Integer, Location> shards = new ConcurrentHashMap<Integer, Location>();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private final Set<String> pendingRoutings = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Map<String, Integer> routingShards = new LinkedHashMap<String, Integer>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Integer> eldest) {
+                return size() > MAX_ROUTINGS;
+            }
+        };
+        private volatile Map<Integer, String> primaries = Collections
+                .emptyMap();
+        private volatile long fetchedNanos = System.nanoTime()
+                - MAX_AGE_NANOS;
+        private int numberOfShards = -1;
+
+        IndexLayout(String indexName) {
+            this.indexName = indexName;
+            this.index = new Location(indexName, null);
+        }
+
+        Integer shardOf(String routing) {
+            synchronized (routingShards) {
+                return routingShards.get(routing);
+            }
+        }
+
+        void putShard(String routing, int shard) {
+            synchronized (routingShards) {
+                routingShards.put(routing, shard);
+            }
+            pendingRoutings.remove(routing);
+        }
+
+        /**
+         * @return a flag for a lookup of the routing value, or null if one is
+         *         already waiting
+         */
+        AtomicBoolean pendingRouting(String routing) {
+            return pendingRoutings.add(routing) ? new AtomicBoolean() : null;
+        }
+
+        Location shard(int shard) {
+            Location location = shards.get(shard);
+            if (location == null) {
+                Location created = new Location(indexName + '/' + shard,
+                        primaries.get(shard));
+                location = shards.putIfAbsent(shard, created);
+                if (location == null) {
+                    location = created;
+                }
+            }
+            return location;
+        }
+
+        void update(int shardCount, Map<Integer, String> newPrimaries,
+                String busiestUrl) {
+            synchronized (routingShards) {
+                if (numberOfShards != shardCount) {
+                    // the index was created again, e.g. after a split
+                    routingShards.clear();
+                    numberOfShards = shardCount;
+                }
+            }
+            // lookups of routing values that failed get another chance
+            pendingRoutings.clear();
+            primaries = newPrimaries;
+            index.url = busiestUrl;
+            for (Map.Entry<Integer, Location> shard : shards.entrySet()) {
+                shard.getValue().url = newPrimaries.get(shard.getKey());
+            }
+            fetchedNanos = System.nanoTime();
+        }
+    }
+}
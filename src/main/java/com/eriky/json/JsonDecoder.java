@@ -0,0 +1,24 @@
+package com.eriky.json;
+
+import java.io.IOException;
+
+/**
+ * Turns a JSON value into an object of the caller's choice, e.g. a POJO,
+ * while it is read from the response. See {@link JsonDecoders} for decoders
+ * that come with esREST.
+ *
+ * @author eriky
+ */
+public interface JsonDecoder<T> {
+    /**
+     * Read exactly one value from the reader, including everything nested in
+     * it.
+     *
+     * @param reader
+     *            the reader, positioned before the value
+     * @return the decoded value
+     * @throws IOException
+     *             if the value cannot be read or has an unexpected shape
+     */
+    T decode(JsonReader reader) throws IOException;
+}
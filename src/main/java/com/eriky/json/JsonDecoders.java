@@ -0,0 +1,60 @@
+package com.eriky.json;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/**
+ * Decoders for common cases.
+ *
+ * @author eriky
+ */
+public class JsonDecoders {
+    /**
+     * Decodes an object into a {@link JSONObject}, for callers that want the
+     * whole tree after all.
+     */
+    public static final JsonDecoder<JSONObject> JSON_OBJECT = new JsonDecoder<JSONObject>() {
+        public JSONObject decode(JsonReader reader) throws IOException {
+            Object value = reader.readValue();
+            if (!(value instanceof JSONObject)) {
+                throw new IOException("Expected a JSON object");
+            }
+            return (JSONObject) value;
+        }
+    };
+
+    private JsonDecoders() {
+    }
+
+    /**
+     * Decode one field of an object and skip all other fields, e.g.
+     * <code>field("_source", myDecoder)</code> to only bind the source of a
+     * document.
+     *
+     * @param name
+     *            the name of the field
+     * @param decoder
+     *            the decoder for the value of the field
+     * @return a decoder that returns the decoded field, or null if the object
+     *         does not have the field
+     */
+    public static <T> JsonDecoder<T> field(final String name,
+            final JsonDecoder<T> decoder) {
+        return new JsonDecoder<T>() {
+            public T decode(JsonReader reader) throws IOException {
+                T result = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (name.equals(reader.nextName())) {
+                        result = decoder.decode(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,27 @@
+package com.eriky.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a document of the caller's choice, e.g. a POJO, as JSON. The JSON is
+ * written straight into the request body or bulk buffer, so no String or
+ * {@link org.json.JSONObject} of the document is needed. See
+ * {@link JsonEncoders} for encoders that come with esREST.
+ *
+ * @author eriky
+ */
+public interface JsonEncoder<T> {
+    /**
+     * Write the document as UTF-8 encoded JSON. For bulk requests the JSON
+     * must not contain line breaks.
+     *
+     * @param document
+     *            the document
+     * @param out
+     *            the stream to write to; it must not be closed
+     * @throws IOException
+     *             if the document cannot be written
+     */
+    void encode(T document, OutputStream out) throws IOException;
+}
@@ -0,0 +1,64 @@
+package com.eriky.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import org.json.JSONObject;
+
+/**
+ * Encoders for the kinds of documents esREST accepts itself.
+ *
+ * @author eriky
+ */
+public class JsonEncoders {
+    /**
+     * Writes a {@link JSONObject} without building a String of it first.
+     */
+    public static final JsonEncoder<JSONObject> JSON_OBJECT = new JsonEncoder<JSONObject>() {
+        public void encode(JSONObject document, OutputStream out)
+                throws IOException {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            document.write(writer);
+            writer.flush();
+        }
+    };
+
+    /**
+     * Writes a document that is already UTF-8 encoded JSON, as it is.
+     */
+    public static final JsonEncoder<byte[]> BYTES = new JsonEncoder<byte[]>() {
+        public void encode(byte[] document, OutputStream out)
+                throws IOException {
+            out.write(document);
+        }
+    };
+
+    /**
+     * Writes the remaining bytes of a buffer that holds UTF-8 encoded JSON,
+     * without changing the position of the buffer.
+     */
+    public static final JsonEncoder<ByteBuffer> BYTE_BUFFER = new JsonEncoder<ByteBuffer>() {
+        public void encode(ByteBuffer document, OutputStream out)
+                throws IOException {
+            if (document.hasArray()) {
+                out.write(document.array(),
+                        document.arrayOffset() + document.position(),
+                        document.remaining());
+            } else {
+                ByteBuffer in = document.duplicate();
+                byte[] copy = new byte[Math.min(in.remaining(), 8192)];
+                while (in.hasRemaining()) {
+                    int n = Math.min(copy.length, in.remaining());
+                    in.get(copy, 0, n);
+                    out.write(copy, 0, n);
+                }
+            }
+        }
+    };
+
+    private JsonEncoders() {
+    }
+}
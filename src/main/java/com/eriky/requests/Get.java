@@ -1,14 +1,23 @@
 package com.eriky.requests;
 
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.client.utils.URIBuilder;
 import org.json.JSONObject;
 
 import com.eriky.EsRESTException;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import com.mashape.unirest.request.HttpRequest;
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonReader;
+import com.eriky.transport.Transport;
 
 public class Get extends Request {
     private boolean sourceOnly = false;
@@ -18,12 +27,27 @@ public class Get extends Request {
     private String type;
     private String id;
     private Map<String, Object> queryStrings = new HashMap<String, Object>();
+    private GetCoalescer coalescer;
+    private GetCache cache;
 
     public Get(String url) {
+        super(Transport.getDefault());
         this.url = url;
         type = "_all";
     }
 
+    /**
+     * Create a Get that is sent to the url of the given transport, over its
+     * connections.
+     *
+     * @param transport
+     *            the {@link Transport} to send the request with
+     */
+    public Get(Transport transport) {
+        super(transport);
+        type = "_all";
+    }
+
     public Get withUrl(String url) {
         this.url = url;
         return this;
@@ -44,6 +68,34 @@ public class Get extends Request {
         return this;
     }
 
+    /**
+     * Send this Get together with the Gets of other threads in one
+     * <code>_mget</code>, see {@link GetCoalescer}. Has no effect when the
+     * Get was given its own url.
+     *
+     * @param coalescer
+     *            the coalescer, or null to send this Get on its own
+     * @return this Get
+     */
+    public Get coalesceWith(GetCoalescer coalescer) {
+        this.coalescer = coalescer;
+        return this;
+    }
+
+    /**
+     * Answer this Get from the cache when it can, see {@link GetCache}. Gets
+     * with their own url, or with the refresh or version option, always go to
+     * Elasticsearch.
+     *
+     * @param cache
+     *            the cache, or null to not use one
+     * @return this Get
+     */
+    public Get cacheWith(GetCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
     public Get sourceOnly(boolean sourceOnly) {
         this.sourceOnly = sourceOnly;
         return this;
@@ -95,33 +147,240 @@ public class Get extends Request {
             throw new EsRESTException("No document id specified");
         }
 
-        String completeUrl = getUrl();
+        if (cache != null && url == null && !queryStrings.containsKey("refresh")
+                && !queryStrings.containsKey("version")) {
+            return executeCached();
+        }
+        return fetch();
+    }
 
-        HttpRequest httpRequest = Unirest.get(completeUrl).queryString(
-                queryStrings);
+    /**
+     * Fetch the document without blocking; the Future completes with what
+     * {@link #execute()} would return. A fresh document from the cache
+     * completes the Future right away, and a fetched document is stored in
+     * it. An expired document is fetched again instead of being revalidated,
+     * and coalescing is not used, as both would block.
+     *
+     * @param callback
+     *            called with the document, or null
+     * @return a Future with the document, or with null if it was not found or
+     *         could not be fetched
+     * @throws EsRESTException
+     *             if no index or id is specified
+     */
+    public Future<JSONObject> executeAsync(FutureCallback<JSONObject> callback)
+            throws EsRESTException {
+        if (indexName == null) {
+            throw new EsRESTException("No index name specified");
+        }
+
+        if (id == null) {
+            throw new EsRESTException("No document id specified");
+        }
 
-        log.debug("all parameters set for request: " + httpRequest.getUrl());
+        final BasicFuture<JSONObject> future = new BasicFuture<JSONObject>(
+                callback);
+        final GetCache.Lookup lookup;
+        if (cache != null && url == null && !queryStrings.containsKey("refresh")
+                && !queryStrings.containsKey("version")) {
+            lookup = cache.lookup(indexName, id, getCacheKey());
+            if (lookup.result != null && lookup.result.isFresh()) {
+                cache.hit();
+                future.completed(lookup.result.document);
+                return future;
+            }
+            cache.miss();
+        } else {
+            lookup = null;
+        }
+
+        transport.executeAsync(buildRequest(url == null ? getPath() : getUrl(),
+                queryStrings), new ResponseHandler<JSONObject>() {
+            public JSONObject handleResponse(HttpResponse response)
+                    throws IOException {
+                int status = response.getStatusLine().getStatusCode();
+                if (status != 200) {
+                    log.warn("Expected 200 OK from a GET to " + getUrl()
+                            + " but got " + status + " instead");
+                    return null;
+                }
+                return Transport.toResponse(response).getBodyAsJson();
+            }
+        }, new FutureCallback<JSONObject>() {
+            public void completed(JSONObject document) {
+                if (lookup != null && document != null) {
+                    cache.store(lookup, document);
+                }
+                future.completed(document);
+            }
 
-        if (compareResponseCode(httpRequest, 200)) {
-            try {
-                return httpRequest.asJson().getBody().getObject();
-            } catch (UnirestException e) {
+            public void failed(Exception e) {
                 log.error(e.getMessage());
-                throw new EsRESTException(e);
+                future.completed(null);
             }
+
+            public void cancelled() {
+                future.cancel();
+            }
+        });
+        return future;
+    }
+
+    private JSONObject executeCached() {
+        GetCache.Lookup lookup = cache.lookup(indexName, id, getCacheKey());
+        GetCache.Result cached = lookup.result;
+        if (cached != null) {
+            if (cached.isFresh()) {
+                cache.hit();
+                return cached.document;
+            }
+            String version = cached.getVersion();
+            if (version != null && isCurrent(version)) {
+                cache.renew(lookup);
+                cache.hit();
+                return cached.document;
+            }
+        }
+        cache.miss();
+        JSONObject document = fetch();
+        if (document != null) {
+            cache.store(lookup, document);
+        }
+        return document;
+    }
+
+    /**
+     * Ask for the document only if it still has the given version, without
+     * its source.
+     */
+    private boolean isCurrent(String version) {
+        Map<String, Object> revalidate = new HashMap<String, Object>(
+                queryStrings);
+        revalidate.put("version", version);
+        revalidate.put("_source", false);
+        revalidate.remove("source");
+        revalidate.remove("fields");
+        Response response = send(getPath(), revalidate);
+        return response != null && response.hasStatus(200);
+    }
+
+    private JSONObject fetch() {
+        if (coalescer != null && url == null) {
+            return coalescer.execute(this);
+        }
+
+        Response response = send(url == null ? getPath() : getUrl(),
+                queryStrings);
+        if (response == null) {
+            return null;
+        }
+
+        if (response.hasStatus(200)) {
+            return response.getBodyAsJson();
         } else {
-            log.warn("Expected 200 OK from a GET to " + httpRequest.getUrl()
-                    + " but got another status code instead");
+            log.warn("Expected 200 OK from a GET to " + getUrl()
+                    + " but got " + response.getStatus() + " instead");
         }
         return null;
     }
 
+    /**
+     * Fetch the document and let the decoder read it while it streams in,
+     * without building a {@link JSONObject} first. The decoder reads the whole
+     * response, so use <code>JsonDecoders.field("_source", decoder)</code> to
+     * bind only the source, or {@link #sourceOnly(boolean)}. The cache and
+     * coalescing are not used.
+     *
+     * @param decoder
+     *            the decoder for the response
+     * @return the decoded document, or null if it was not found or could not
+     *         be fetched
+     * @throws EsRESTException
+     *             if no index or id is specified, or the decoder failed
+     */
+    public <T> T execute(final JsonDecoder<T> decoder) throws EsRESTException {
+        if (indexName == null) {
+            throw new EsRESTException("No index name specified");
+        }
+
+        if (id == null) {
+            throw new EsRESTException("No document id specified");
+        }
+
+        HttpGet httpRequest = buildRequest(url == null ? getPath() : getUrl(),
+                queryStrings);
+        try {
+            return transport.execute(httpRequest, new ResponseHandler<T>() {
+                public T handleResponse(HttpResponse response)
+                        throws IOException {
+                    int status = response.getStatusLine().getStatusCode();
+                    if (status != 200) {
+                        log.warn("Expected 200 OK from a GET to " + getUrl()
+                                + " but got " + status + " instead");
+                        return null;
+                    }
+                    JsonReader reader = new JsonReader(response.getEntity()
+                            .getContent());
+                    try {
+                        return decoder.decode(reader);
+                    } catch (IOException e) {
+                        throw new DecodingFailed(e);
+                    } catch (RuntimeException e) {
+                        throw new DecodingFailed(e);
+                    }
+                }
+            });
+        } catch (DecodingFailed e) {
+            throw new EsRESTException((Exception) e.getCause());
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            return null;
+        }
+    }
+
+    private Response send(String target, Map<String, Object> parameters) {
+        try {
+            return perform(buildRequest(target, parameters));
+        } catch (EsRESTException e) {
+            log.error(e.getMessage());
+            return null;
+        }
+    }
+
+    private HttpGet buildRequest(String target, Map<String, Object> parameters)
+            throws EsRESTException {
+        HttpGet httpRequest;
+        try {
+            URIBuilder uri = new URIBuilder(target);
+            for (Map.Entry<String, Object> queryString : parameters
+                    .entrySet()) {
+                uri.addParameter(queryString.getKey(),
+                        String.valueOf(queryString.getValue()));
+            }
+            httpRequest = new HttpGet(uri.build());
+        } catch (URISyntaxException e) {
+            throw new EsRESTException(e);
+        }
+        log.debug("all parameters set for request: " + httpRequest.getURI());
+        return httpRequest;
+    }
+
+    private String getCacheKey() {
+        return type + '|' + sourceOnly + '|' + queryStrings.get("routing")
+                + '|' + queryStrings.get("fields") + '|'
+                + queryStrings.get("source");
+    }
+
     public String getUrl() {
-        String completeUrl = url + '/' + indexName + '/' + type + '/' + id;
+        return (url == null ? transport.getUrl() : url) + getPath();
+    }
+
+    private String getPath() {
+        String path = "/" + indexName + '/' + type + '/' + id;
         if (sourceOnly) {
-            completeUrl += "/_source";
+            path += "/_source";
         }
-        return completeUrl;
+        return path;
     }
 
     public String getIndex() {
@@ -132,7 +391,27 @@ public class Get extends Request {
         return type;
     }
 
+    public String getId() {
+        return id;
+    }
+
+    public boolean isSourceOnly() {
+        return sourceOnly;
+    }
+
     public Object getQueryString(String key) {
         return this.queryStrings.get(key);
     }
+
+    /**
+     * Tells a failing decoder apart from a failing connection.
+     */
+    private static class DecodingFailed extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DecodingFailed(Exception cause) {
+            super(cause.getMessage());
+            initCause(cause);
+        }
+    }
 }
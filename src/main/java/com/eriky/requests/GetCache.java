@@ -0,0 +1,262 @@
+package com.eriky.requests;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Keeps the results of {@link Get} requests, so that reading a hot document
+ * again does not cost a round trip to the cluster. The cache holds at most a
+ * given number of documents, dropping the least recently used one when it is
+ * full, and each result is only used for a limited time.
+ * <p>
+ * When that time has passed and the result carries a <code>_version</code>,
+ * the Get asks Elasticsearch whether the document still has that version
+ * before fetching it again. If it does, the cached result is used for another
+ * period.
+ * </p>
+ * <p>
+ * Documents written through {@link com.eriky.EsREST#index} and
+ * {@link com.eriky.EsREST#bulkIndex} are removed from the cache. Writes that
+ * go around the client, or to an alias of the index that is read, are only
+ * noticed once the time of the result has passed. Results are shared between
+ * all readers, so they must not be modified.
+ * </p>
+ *
+ * @author eriky
+ */
+public class GetCache {
+    private final int maxDocuments;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Slot> slots;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxDocuments
+     *            the number of documents that are kept at most
+     * @param ttl
+     *            how long a result is used before it is checked again
+     * @param unit
+     *            the unit of ttl
+     */
+    public GetCache(int maxDocuments, long ttl, TimeUnit unit) {
+        this.maxDocuments = Math.max(1, maxDocuments);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.slots = new LinkedHashMap<String, Slot>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+                if (size() > GetCache.this.maxDocuments) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Forget every result for the document, e.g. after it was written.
+     */
+    public void invalidate(String indexName, String id) {
+        synchronized (slots) {
+            if (slots.remove(documentKey(indexName, id)) != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forget every result for the documents of an index, e.g. after it was
+     * deleted.
+     */
+    public void invalidateIndex(String indexName) {
+        String prefix = indexName + '/';
+        synchronized (slots) {
+            Iterator<String> keys = slots.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (slots) {
+            slots.clear();
+        }
+    }
+
+    /**
+     * @return the number of documents that have results in the cache
+     */
+    public int size() {
+        synchronized (slots) {
+            return slots.size();
+        }
+    }
+
+    /**
+     * @return the number of Gets that were answered from the cache, including
+     *         those that were revalidated
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of Gets that had to fetch the document
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of expired results that were still current
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of documents dropped because the cache was full
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of documents dropped because they were written
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the fraction of Gets answered from the cache, 0 if there were
+     *         none
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the fraction of Gets that had to fetch the document, 0 if there
+     *         were none
+     */
+    public double getMissRate() {
+        long missCount = misses.get();
+        long total = missCount + hits.get();
+        return total == 0 ? 0 : (double) missCount / total;
+    }
+
+    /**
+     * Look up the result for a Get. A result that has expired is returned as
+     * well, so that it can be revalidated; the slot that a new result must be
+     * stored in is returned in every case.
+     */
+    Lookup lookup(String indexName, String id, String optionsKey) {
+        String documentKey = documentKey(indexName, id);
+        synchronized (slots) {
+            Slot slot = slots.get(documentKey);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(documentKey, slot);
+            }
+            return new Lookup(documentKey, optionsKey, slot,
+                    slot.results.get(optionsKey));
+        }
+    }
+
+    /**
+     * Store a result, unless the document was written since the lookup.
+     */
+    void store(Lookup lookup, JSONObject result) {
+        synchronized (slots) {
+            if (slots.get(lookup.documentKey) == lookup.slot) {
+                lookup.slot.results.put(lookup.optionsKey, new Result(result,
+                        System.nanoTime() + ttlNanos));
+            }
+        }
+    }
+
+    /**
+     * Use a result that was found to be current for another period.
+     */
+    void renew(Lookup lookup) {
+        store(lookup, lookup.result.document);
+        revalidations.incrementAndGet();
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    private static String documentKey(String indexName, String id) {
+        return indexName + '/' + id;
+    }
+
+    /**
+     * The results of all Gets of one document, by their options.
+     */
+    private static class Slot {
+        private final Map<String, Result> results = new HashMap<String, Result>(
+                2);
+    }
+
+    static class Result {
+        final JSONObject document;
+        final long expiresNanos;
+
+        Result(JSONObject document, long expiresNanos) {
+            this.document = document;
+            this.expiresNanos = expiresNanos;
+        }
+
+        boolean isFresh() {
+            return expiresNanos - System.nanoTime() > 0;
+        }
+
+        /**
+         * @return the version of the document, or null if it is unknown
+         */
+        String getVersion() {
+            if (document == null || !document.has("_version")) {
+                return null;
+            }
+            return String.valueOf(document.get("_version"));
+        }
+    }
+
+    static class Lookup {
+        private final String documentKey;
+        private final String optionsKey;
+        private final Slot slot;
+        final Result result;
+
+        Lookup(String documentKey, String optionsKey, Slot slot, Result result) {
+            this.documentKey = documentKey;
+            this.optionsKey = optionsKey;
+            this.slot = slot;
+            this.result = result;
+        }
+    }
+}
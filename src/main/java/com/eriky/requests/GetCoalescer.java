@@ -0,0 +1,152 @@
+package com.eriky.requests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.EsRESTException;
+import com.eriky.transport.Transport;
+
+/**
+ * Merges {@link Get#execute()} calls from many threads into one
+ * <code>_mget</code>. The first Get that arrives opens a batch and waits for a
+ * short window, or until the batch is full; Gets that arrive in the meantime
+ * join the batch. The first thread then sends the whole batch as one
+ * {@link MultiGet} and every thread gets its own document back.
+ * <p>
+ * Only Gets with the same preference and refresh options end up in the same
+ * batch, since those apply to a whole <code>_mget</code>.
+ * </p>
+ *
+ * @author eriky
+ */
+public class GetCoalescer {
+    private Logger log = LoggerFactory.getLogger(GetCoalescer.class);
+    private final Transport transport;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Map<String, Batch> open = new HashMap<String, Batch>();
+
+    /**
+     * @param transport
+     *            the transport to send the merged requests with
+     * @param window
+     *            how long the first Get of a batch waits for others
+     * @param unit
+     *            the unit of window
+     * @param maxBatchSize
+     *            the number of Gets after which a batch is sent right away
+     */
+    public GetCoalescer(Transport transport, long window, TimeUnit unit,
+            int maxBatchSize) {
+        this.transport = transport;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Fetch the document of the Get as part of a batch.
+     *
+     * @return what {@link Get#execute()} would return
+     */
+    JSONObject execute(Get get) {
+        String key = get.getQueryString("preference") + "|"
+                + get.getQueryString("refresh");
+        Batch batch;
+        int position;
+        boolean leader = false;
+        synchronized (open) {
+            batch = open.get(key);
+            if (batch == null) {
+                batch = new Batch(get);
+                open.put(key, batch);
+                leader = true;
+            }
+            position = batch.gets.size();
+            batch.gets.add(get);
+            if (batch.gets.size() >= maxBatchSize) {
+                open.remove(key);
+                open.notifyAll();
+            }
+        }
+
+        if (leader) {
+            waitForOthers(key, batch);
+            batch.send();
+        }
+        return batch.result(position);
+    }
+
+    private void waitForOthers(String key, Batch batch) {
+        long deadline = System.nanoTime() + windowNanos;
+        synchronized (open) {
+            try {
+                long remaining = windowNanos;
+                while (open.get(key) == batch && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(open, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (open.get(key) == batch) {
+                    open.remove(key);
+                }
+            }
+        }
+    }
+
+    private class Batch {
+        private final Get first;
+        private final List<Get> gets = new ArrayList<Get>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private List<JSONObject> results;
+
+        Batch(Get first) {
+            this.first = first;
+        }
+
+        void send() {
+            try {
+                MultiGet multiGet = new MultiGet(transport);
+                Object preference = first.getQueryString("preference");
+                if (preference != null) {
+                    multiGet.preference(preference.toString());
+                }
+                Object refresh = first.getQueryString("refresh");
+                if (refresh != null) {
+                    multiGet.refresh(Boolean.TRUE.equals(refresh));
+                }
+                for (Get get : gets) {
+                    multiGet.add(get);
+                }
+                results = multiGet.execute();
+            } catch (EsRESTException e) {
+                log.error("Multi get of " + gets.size()
+                        + " documents failed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                log.error("Multi get of " + gets.size()
+                        + " documents failed: " + e.getMessage());
+            } finally {
+                done.countDown();
+            }
+        }
+
+        JSONObject result(int position) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return results == null ? null : results.get(position);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.eriky.requests;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.eriky.EsRESTException;
+import com.eriky.transport.Transport;
+
+/**
+ * Fetches many documents in one <code>_mget</code> round trip. Documents are
+ * added by id, for the index and type set with {@link #withIndex} and
+ * {@link #withType}, or as a complete {@link Get}, whose index, type, id,
+ * routing, fields, source and version options are sent along for that
+ * document.
+ * 
+ * <pre>
+ * List&lt;JSONObject&gt; docs = new MultiGet(url).withIndex(&quot;users&quot;)
+ *         .add(&quot;1&quot;).add(&quot;2&quot;).preference(&quot;_local&quot;).execute();
+ * </pre>
+ *
+ * @author eriky
+ */
+public class MultiGet extends Request {
+    private String url;
+    private String indexName;
+    private String type;
+    private final List<Get> gets = new ArrayList<Get>();
+    private Map<String, Object> queryStrings = new HashMap<String, Object>();
+
+    public MultiGet(String url) {
+        super(Transport.getDefault());
+        this.url = url;
+    }
+
+    /**
+     * Create a MultiGet that is sent to the url of the given transport, over
+     * its connections.
+     *
+     * @param transport
+     *            the {@link Transport} to send the request with
+     */
+    public MultiGet(Transport transport) {
+        super(transport);
+    }
+
+    public MultiGet withIndex(String indexName) {
+        this.indexName = indexName;
+        return this;
+    }
+
+    public MultiGet withType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Add a document of the index and type of this MultiGet.
+     */
+    public MultiGet add(String id) {
+        return add(new Get(transport).withIndex(indexName).withType(
+                type == null ? "_all" : type).id(id));
+    }
+
+    /**
+     * Add a document with the options of the given Get. The url of the Get is
+     * ignored; preference and refresh only apply to a whole MultiGet, so set
+     * them on the MultiGet.
+     */
+    public MultiGet add(Get get) {
+        gets.add(get);
+        return this;
+    }
+
+    /* Options that apply to all documents, passed to ES by query string */
+    public MultiGet routing(String routing) {
+        queryStrings.put("routing", routing);
+        return this;
+    }
+
+    public MultiGet includeSource(boolean includeSource) {
+        queryStrings.put("_source", includeSource);
+        return this;
+    }
+
+    public MultiGet fields(String fields) {
+        queryStrings.put("fields", fields);
+        return this;
+    }
+
+    public MultiGet preference(String preference) {
+        queryStrings.put("preference", preference);
+        return this;
+    }
+
+    public MultiGet refresh(boolean refresh) {
+        queryStrings.put("refresh", refresh);
+        return this;
+    }
+
+    public int size() {
+        return gets.size();
+    }
+
+    /**
+     * Send all documents in one request.
+     *
+     * @return one result per added document, in the order they were added.
+     *         The result is what {@link Get#execute()} would return: the
+     *         document, only its source for a source only Get, or null if it
+     *         was not found or could not be fetched.
+     * @throws EsRESTException
+     *             if the request could not be sent or Elasticsearch did not
+     *             answer with 200 OK
+     */
+    public List<JSONObject> execute() throws EsRESTException {
+        if (gets.isEmpty()) {
+            return new ArrayList<JSONObject>();
+        }
+        return read(perform(buildRequest()));
+    }
+
+    /**
+     * Send all documents in one request, without waiting for the response.
+     *
+     * @param callback
+     *            called with the results or the failure, or null
+     * @return a Future with one result per added document, see
+     *         {@link #execute()}, which fails with an {@link EsRESTException}
+     * @throws EsRESTException
+     *             if a document has no index or id
+     */
+    public Future<List<JSONObject>> executeAsync(
+            FutureCallback<List<JSONObject>> callback) throws EsRESTException {
+        if (gets.isEmpty()) {
+            BasicFuture<List<JSONObject>> future = new BasicFuture<List<JSONObject>>(
+                    callback);
+            future.completed(new ArrayList<JSONObject>());
+            return future;
+        }
+        return performAsync(buildRequest(),
+                new ResponseReader<List<JSONObject>>() {
+                    public List<JSONObject> read(Response response)
+                            throws EsRESTException {
+                        return MultiGet.this.read(response);
+                    }
+                }, callback);
+    }
+
+    private HttpPost buildRequest() throws EsRESTException {
+        JSONArray docs = new JSONArray();
+        for (Get get : gets) {
+            if (get.getIndex() == null) {
+                throw new EsRESTException("No index name specified");
+            }
+            if (get.getId() == null) {
+                throw new EsRESTException("No document id specified");
+            }
+            docs.put(toDoc(get));
+        }
+
+        HttpPost httpRequest;
+        try {
+            URIBuilder uri = new URIBuilder(url == null ? "/_mget" : url
+                    + "/_mget");
+            for (Map.Entry<String, Object> queryString : queryStrings
+                    .entrySet()) {
+                uri.addParameter(queryString.getKey(),
+                        String.valueOf(queryString.getValue()));
+            }
+            httpRequest = new HttpPost(uri.build());
+        } catch (URISyntaxException e) {
+            throw new EsRESTException(e);
+        }
+        httpRequest.setEntity(new StringEntity(new JSONObject().put("docs",
+                docs).toString(), ContentType.APPLICATION_JSON));
+        return httpRequest;
+    }
+
+    private List<JSONObject> read(Response response) throws EsRESTException {
+        if (!response.hasStatus(200)) {
+            throw new EsRESTException("Expected 200 OK from a multi get of "
+                    + gets.size() + " documents but got "
+                    + response.getStatus() + " instead");
+        }
+
+        List<JSONObject> results = new ArrayList<JSONObject>(gets.size());
+        JSONArray found = response.getBodyAsJson().getJSONArray("docs");
+        for (int i = 0; i < gets.size(); i++) {
+            JSONObject doc = found.optJSONObject(i);
+            if (doc == null || !doc.optBoolean("found", false)) {
+                results.add(null);
+            } else if (gets.get(i).isSourceOnly()) {
+                results.add(doc.optJSONObject("_source"));
+            } else {
+                results.add(doc);
+            }
+        }
+        return results;
+    }
+
+    private static JSONObject toDoc(Get get) {
+        JSONObject doc = new JSONObject();
+        doc.put("_index", get.getIndex());
+        if (get.getType() != null) {
+            doc.put("_type", get.getType());
+        }
+        doc.put("_id", get.getId());
+        Object routing = get.getQueryString("routing");
+        if (routing != null) {
+            doc.put("_routing", routing.toString());
+        }
+        Object fields = get.getQueryString("fields");
+        if (fields != null) {
+            doc.put("fields", new JSONArray(Arrays.asList(fields.toString()
+                    .split(","))));
+        }
+        Object source = get.getQueryString("source");
+        if (source != null) {
+            doc.put("_source", source);
+        }
+        Object version = get.getQueryString("version");
+        if (version != null) {
+            doc.put("_version", version);
+        }
+        return doc;
+    }
+}
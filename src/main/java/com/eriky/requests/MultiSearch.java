@@ -0,0 +1,400 @@
+package com.eriky.requests;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.json.JSONObject;
+
+import com.eriky.EsRESTException;
+import com.eriky.bulk.BufferPool;
+import com.eriky.bulk.BulkBuffer;
+import com.eriky.bulk.BulkEntity;
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonDecoders;
+import com.eriky.transport.Transport;
+
+/**
+ * Sends many {@link Search}es in one <code>_msearch</code> round trip. Every
+ * added search gets a Future, which completes with its own
+ * {@link SearchResult} when the MultiSearch has been executed, or fails with
+ * the error of that search alone.
+ *
+ * <pre>
+ * MultiSearch searches = new MultiSearch(url);
+ * Future&lt;SearchResult&lt;JSONObject&gt;&gt; latest = searches.add(new Search(url)
+ *         .withIndex(&quot;orders&quot;).size(10));
+ * Future&lt;SearchResult&lt;JSONObject&gt;&gt; count = searches.add(new Search(url)
+ *         .withIndex(&quot;users&quot;).size(0));
+ * searches.execute();
+ * </pre>
+ * <p>
+ * The body is written as NDJSON into pooled chunks, like a bulk request, and
+ * the response is split into one slice of bytes per search, so every result
+ * still decodes its hits lazily. The url and filter_path of the added searches
+ * are not used; filter_path can be set on the MultiSearch.
+ * </p>
+ *
+ * @author eriky
+ */
+public class MultiSearch extends Request {
+    private static final BufferPool bufferPool = new BufferPool(16 * 1024, 64);
+    private String url;
+    private final List<Part<?>> parts = new ArrayList<Part<?>>();
+    private Map<String, Object> queryStrings = new HashMap<String, Object>();
+
+    public MultiSearch(String url) {
+        super(Transport.getDefault());
+        this.url = url;
+    }
+
+    /**
+     * Create a MultiSearch that is sent to the url of the given transport,
+     * over its connections.
+     *
+     * @param transport
+     *            the {@link Transport} to send the request with
+     */
+    public MultiSearch(Transport transport) {
+        super(transport);
+    }
+
+    /**
+     * @return a Future with the result of this search, with the hits as
+     *         JSONObjects
+     */
+    public Future<SearchResult<JSONObject>> add(Search search) {
+        return add(search, JsonDecoders.JSON_OBJECT);
+    }
+
+    /**
+     * @param hitDecoder
+     *            the decoder for a single hit of this search
+     * @return a Future with the result of this search
+     */
+    public <T> Future<SearchResult<T>> add(Search search,
+            JsonDecoder<T> hitDecoder) {
+        Part<T> part = new Part<T>(search, hitDecoder);
+        parts.add(part);
+        return part.future;
+    }
+
+    /* Options that apply to all searches, passed to ES by query string */
+
+    /**
+     * @param max
+     *            how many of the searches Elasticsearch runs at the same time
+     */
+    public MultiSearch maxConcurrentSearches(int max) {
+        queryStrings.put("max_concurrent_searches", max);
+        return this;
+    }
+
+    /**
+     * Only return these parts of the response, e.g.
+     * <code>responses.hits.hits._id</code>.
+     */
+    public MultiSearch filterPath(String filterPath) {
+        queryStrings.put("filter_path", filterPath);
+        return this;
+    }
+
+    public int size() {
+        return parts.size();
+    }
+
+    /**
+     * Send all searches in one request and complete their Futures.
+     *
+     * @throws EsRESTException
+     *             if the request could not be sent or Elasticsearch did not
+     *             answer with 200 OK; the Futures of all searches fail as well
+     */
+    public void execute() throws EsRESTException {
+        if (parts.isEmpty()) {
+            return;
+        }
+
+        BulkBuffer body = new BulkBuffer(bufferPool);
+        Response response;
+        try {
+            response = perform(buildRequest(body));
+        } catch (EsRESTException e) {
+            failAll(e);
+            throw e;
+        } finally {
+            body.release();
+        }
+        complete(response);
+    }
+
+    /**
+     * Send all searches in one request without waiting for the response, e.g.
+     * for the panels of a dashboard. The Futures of the searches complete when
+     * it arrives.
+     *
+     * @param callback
+     *            called when the Futures of all searches are done, or with the
+     *            failure of the request, or null
+     * @return a Future that completes when the Futures of all searches are
+     *         done, or fails with an {@link EsRESTException} if the request
+     *         failed; the Futures of the searches fail as well then
+     */
+    public Future<Void> executeAsync(FutureCallback<Void> callback) {
+        if (parts.isEmpty()) {
+            BasicFuture<Void> future = new BasicFuture<Void>(callback);
+            future.completed(null);
+            return future;
+        }
+
+        final BulkBuffer body = new BulkBuffer(bufferPool);
+        HttpPost httpRequest;
+        try {
+            httpRequest = buildRequest(body);
+        } catch (EsRESTException e) {
+            body.release();
+            failAll(e);
+            BasicFuture<Void> future = new BasicFuture<Void>(callback);
+            future.failed(e);
+            return future;
+        }
+        final BasicFuture<Void> future = new BasicFuture<Void>(callback);
+        try {
+            sendAsync(httpRequest, body, future);
+        } catch (IllegalStateException e) {
+            // the transport was closed
+            body.release();
+            throw e;
+        }
+        return future;
+    }
+
+    private void sendAsync(HttpPost httpRequest, final BulkBuffer body,
+            final BasicFuture<Void> future) {
+        transport.executeAsync(httpRequest, new FutureCallback<Response>() {
+            public void completed(Response response) {
+                body.release();
+                try {
+                    complete(response);
+                } catch (EsRESTException e) {
+                    future.failed(e);
+                    return;
+                }
+                future.completed(null);
+            }
+
+            public void failed(Exception e) {
+                body.release();
+                EsRESTException failure = new EsRESTException(e);
+                failAll(failure);
+                future.failed(failure);
+            }
+
+            public void cancelled() {
+                body.release();
+                failAll(new EsRESTException("The multi search was cancelled"));
+                future.cancel();
+            }
+        });
+    }
+
+    private HttpPost buildRequest(BulkBuffer body) throws EsRESTException {
+        for (Part<?> part : parts) {
+            body.append(header(part.search)).append("\n");
+            body.append(part.search.buildBody()).append("\n");
+        }
+        HttpPost httpRequest;
+        try {
+            URIBuilder uri = new URIBuilder(url == null ? "/_msearch" : url
+                    + "/_msearch");
+            for (Map.Entry<String, Object> queryString : queryStrings
+                    .entrySet()) {
+                uri.addParameter(queryString.getKey(),
+                        String.valueOf(queryString.getValue()));
+            }
+            httpRequest = new HttpPost(uri.build());
+        } catch (URISyntaxException e) {
+            throw new EsRESTException(e);
+        }
+        httpRequest.setEntity(new BulkEntity(body));
+        return httpRequest;
+    }
+
+    /**
+     * Complete the Futures of the searches from the response.
+     */
+    private void complete(Response response) throws EsRESTException {
+        if (!response.hasStatus(200)) {
+            EsRESTException e = new EsRESTException(
+                    "Expected 200 OK from a multi search of " + parts.size()
+                            + " searches but got " + response.getStatus()
+                            + " instead");
+            failAll(e);
+            throw e;
+        }
+
+        byte[] bytes = response.getBody();
+        List<int[]> slices = splitResponses(bytes);
+        for (int i = 0; i < parts.size(); i++) {
+            Part<?> part = parts.get(i);
+            if (i < slices.size()) {
+                part.complete(bytes, slices.get(i)[0], slices.get(i)[1]);
+            } else {
+                part.fail(new EsRESTException("No response for search " + i
+                        + " of the multi search"));
+            }
+        }
+    }
+
+    private static JSONObject header(Search search) {
+        JSONObject header = new JSONObject();
+        if (search.getIndex() != null) {
+            header.put("index", search.getIndex());
+        }
+        if (search.getType() != null) {
+            header.put("type", search.getType());
+        }
+        Object routing = search.getQueryString("routing");
+        if (routing != null) {
+            header.put("routing", routing);
+        }
+        Object preference = search.getQueryString("preference");
+        if (preference != null) {
+            header.put("preference", preference);
+        }
+        return header;
+    }
+
+    private void failAll(EsRESTException e) {
+        for (Part<?> part : parts) {
+            part.fail(e);
+        }
+    }
+
+    /**
+     * Find the offset and length of every object in the top level
+     * <code>responses</code> array, without parsing the objects themselves.
+     */
+    static List<int[]> splitResponses(byte[] body) {
+        List<int[]> slices = new ArrayList<int[]>();
+        int depth = 0;
+        int responsesDepth = -1;
+        int itemStart = -1;
+        int stringStart = -1;
+        String lastString = null;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            if (stringStart >= 0) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    if (depth == 1) {
+                        lastString = utf8(body, stringStart, i - stringStart);
+                    }
+                    stringStart = -1;
+                }
+                continue;
+            }
+            switch (b) {
+            case '"':
+                stringStart = i + 1;
+                break;
+            case '[':
+                if (depth == 1 && responsesDepth < 0
+                        && "responses".equals(lastString)) {
+                    responsesDepth = 2;
+                }
+                depth++;
+                break;
+            case '{':
+                if (depth == responsesDepth) {
+                    itemStart = i;
+                }
+                depth++;
+                break;
+            case '}':
+                depth--;
+                if (depth == responsesDepth && itemStart >= 0) {
+                    slices.add(new int[] { itemStart, i + 1 - itemStart });
+                    itemStart = -1;
+                }
+                break;
+            case ']':
+                depth--;
+                if (depth == 1 && responsesDepth == 2) {
+                    return slices;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return slices;
+    }
+
+    private static String utf8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One search and its Future. The Future is run once its slice of the
+     * response, or its failure, is known.
+     */
+    private static class Part<T> implements Callable<SearchResult<T>> {
+        private final FutureTask<SearchResult<T>> future = new FutureTask<SearchResult<T>>(
+                this);
+        private final Search search;
+        private final JsonDecoder<T> hitDecoder;
+        private byte[] body;
+        private int offset;
+        private int length;
+        private EsRESTException failure;
+
+        Part(Search search, JsonDecoder<T> hitDecoder) {
+            this.search = search;
+            this.hitDecoder = hitDecoder;
+        }
+
+        public SearchResult<T> call() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+            SearchResult<T> result = new SearchResult<T>(body, offset, length,
+                    hitDecoder);
+            Object error = result.peekField("error");
+            if (error != null) {
+                throw new EsRESTException("Search of "
+                        + (search.getIndex() == null ? "all indices" : search
+                                .getIndex()) + " failed with status "
+                        + result.peekField("status") + ": " + error);
+            }
+            return result;
+        }
+
+        void complete(byte[] body, int offset, int length) {
+            this.body = body;
+            this.offset = offset;
+            this.length = length;
+            future.run();
+        }
+
+        void fail(EsRESTException failure) {
+            this.failure = failure;
+            future.run();
+        }
+    }
+}
@@ -1,24 +1,107 @@
 package com.eriky.requests;
 
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mashape.unirest.http.exceptions.UnirestException;
-import com.mashape.unirest.request.HttpRequest;
+import com.eriky.EsRESTException;
+import com.eriky.transport.Transport;
 
 public abstract class Request {
     protected Logger log = LoggerFactory.getLogger(this.getClass());
-    
-    protected boolean compareResponseCode(HttpRequest result, int expectedCode) {
+    protected final Transport transport;
+
+    /**
+     * @param transport
+     *            the {@link Transport} this request is sent with
+     */
+    protected Request(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Send the request to Elasticsearch once and keep the status code, headers
+     * and body of the response together, so that the status can be checked
+     * and the body parsed without sending the request again.
+     * 
+     * @param request
+     *            the request to send
+     * @return the {@link Response}
+     * @throws EsRESTException
+     *             if the request could not be sent or the response could not
+     *             be read
+     */
+    protected Response perform(HttpRequestBase request) throws EsRESTException {
         try {
-            if (result.asString().getStatus() == expectedCode) {
-                return true;
-            } else {
-                return false;
+            return transport.execute(request);
+        } catch (IOException e) {
+            throw new EsRESTException(e);
+        }
+    }
+
+    /**
+     * Send the request without waiting for it, see
+     * {@link Transport#executeAsync(HttpRequestBase, FutureCallback)}. The
+     * reader turns the response into the result on an I/O thread, so it must
+     * not block.
+     *
+     * @param request
+     *            the request to send
+     * @param reader
+     *            reads the result from the response
+     * @param callback
+     *            called with the result or the failure, or null
+     * @return a Future with the result, which fails with an
+     *         {@link EsRESTException}
+     */
+    protected <T> Future<T> performAsync(HttpRequestBase request,
+            final ResponseReader<T> reader, FutureCallback<T> callback) {
+        final BasicFuture<T> future = new BasicFuture<T>(callback);
+        transport.executeAsync(request, new FutureCallback<Response>() {
+            public void completed(Response response) {
+                T result;
+                try {
+                    result = reader.read(response);
+                } catch (EsRESTException e) {
+                    future.failed(e);
+                    return;
+                } catch (RuntimeException e) {
+                    future.failed(new EsRESTException(e));
+                    return;
+                }
+                future.completed(result);
+            }
+
+            public void failed(Exception e) {
+                future.failed(new EsRESTException(e));
+            }
+
+            public void cancelled() {
+                future.cancel();
             }
-        } catch (UnirestException e) {
+        });
+        return future;
+    }
+
+    protected boolean compareResponseCode(HttpRequestBase result,
+            int expectedCode) {
+        try {
+            return perform(result).hasStatus(expectedCode);
+        } catch (EsRESTException e) {
             log.error(e.getMessage());
             return false;
         }
     }
+
+    /**
+     * Turns the {@link Response} of a request into its result.
+     */
+    protected interface ResponseReader<T> {
+        T read(Response response) throws EsRESTException;
+    }
 }
@@ -0,0 +1,134 @@
+package com.eriky.requests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonDecoders;
+import com.eriky.json.JsonReader;
+
+/**
+ * The result of a single request to Elasticsearch: the status code, the
+ * response headers and the raw body. The body is only parsed when one of the
+ * getters asks for it.
+ *
+ * @author eriky
+ */
+public class Response {
+    private static final String UTF_8 = "UTF-8";
+    private final int status;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+    private JSONObject json;
+
+    public Response(int status, Map<String, List<String>> headers, byte[] body) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Read the remaining bytes of the stream into a new Response. The stream
+     * is closed afterwards.
+     */
+    public static Response read(int status,
+            Map<String, List<String>> headers, InputStream in)
+            throws IOException {
+        if (in == null) {
+            return new Response(status, headers, new byte[0]);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new Response(status, headers, out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean hasStatus(int expectedCode) {
+        return status == expectedCode;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        if (headers == null) {
+            return Collections.emptyMap();
+        }
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())
+                    && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getBodyAsString() {
+        try {
+            return new String(body, UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decode the body while it is read from the bytes, without building a
+     * tree of {@link JSONObject}s.
+     *
+     * @param decoder
+     *            the decoder for the body
+     * @return the decoded body, or null when the body is empty
+     * @throws IOException
+     *             if the body cannot be decoded
+     */
+    public <T> T getBody(JsonDecoder<T> decoder) throws IOException {
+        if (body.length == 0) {
+            return null;
+        }
+        return decoder.decode(new JsonReader(new ByteArrayInputStream(body)));
+    }
+
+    /**
+     * Parse the body as a JSON object. The body is parsed straight from the
+     * bytes, the result is kept so that calling this again is cheap.
+     *
+     * @return the body as a {@link JSONObject}, or null when the body is empty
+     * @throws JSONException
+     *             if the body is not a JSON object
+     */
+    public JSONObject getBodyAsJson() {
+        if (json == null && body.length > 0) {
+            try {
+                json = getBody(JsonDecoders.JSON_OBJECT);
+            } catch (IOException e) {
+                throw new JSONException(e.getMessage());
+            }
+        }
+        return json;
+    }
+}
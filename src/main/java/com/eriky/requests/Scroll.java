@@ -0,0 +1,330 @@
+package com.eriky.requests;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+
+import com.eriky.EsRESTException;
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonDecoders;
+import com.eriky.json.JsonReader;
+import com.eriky.transport.Transport;
+
+/**
+ * Reads every hit of a query with a scroll, page by page, e.g. to export or
+ * reindex a whole index.
+ * 
+ * <pre>
+ * ScrollIterator&lt;JSONObject&gt; hits = new Scroll(url).withIndex(&quot;users&quot;)
+ *         .size(500).execute();
+ * try {
+ *     while (hits.hasNext()) {
+ *         export(hits.next());
+ *     }
+ * } finally {
+ *     hits.close();
+ * }
+ * </pre>
+ * 
+ * @author eriky
+ */
+public class Scroll extends Request {
+    private String url;
+    private String indexName;
+    private String type;
+    private JSONObject query;
+    private int size = 100;
+    private String keepAlive = "1m";
+    private boolean scan = false;
+    private String routing;
+    private int sliceId = -1;
+    private int maxSlices;
+
+    public Scroll(String url) {
+        super(Transport.getDefault());
+        this.url = url;
+    }
+
+    /**
+     * Create a Scroll that is sent to the url of the given transport, over its
+     * connections.
+     *
+     * @param transport
+     *            the {@link Transport} to send the requests with
+     */
+    public Scroll(Transport transport) {
+        super(transport);
+    }
+
+    /**
+     * @param indexName
+     *            the index, or a comma separated list of indices, to read; all
+     *            indices when not set
+     */
+    public Scroll withIndex(String indexName) {
+        this.indexName = indexName;
+        return this;
+    }
+
+    public Scroll withType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * @param query
+     *            the query, e.g. <code>{"term": {"user": "kimchy"}}</code>;
+     *            all documents when not set
+     */
+    public Scroll query(JSONObject query) {
+        this.query = query;
+        return this;
+    }
+
+    /**
+     * @param size
+     *            the number of hits per page, per shard when scanning
+     */
+    public Scroll size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * @param keepAlive
+     *            how long Elasticsearch keeps the scroll open between two
+     *            pages, e.g. 1m
+     */
+    public Scroll keepAlive(String keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * @param scan
+     *            true to use the scan search type, which does not sort and is
+     *            the fastest way to read a whole index
+     */
+    public Scroll scan(boolean scan) {
+        this.scan = scan;
+        return this;
+    }
+
+    public Scroll routing(String routing) {
+        this.routing = routing;
+        return this;
+    }
+
+    /**
+     * Only read one slice of the hits. The scrolls of all slices together read
+     * every hit once, and can be read in parallel. Needs Elasticsearch 5.0 or
+     * later.
+     *
+     * @param id
+     *            the slice to read, from 0 to max - 1
+     * @param max
+     *            the number of slices
+     */
+    public Scroll slice(int id, int max) {
+        this.sliceId = id;
+        this.maxSlices = max;
+        return this;
+    }
+
+    /**
+     * Split this scroll into slices that are read in parallel, see
+     * {@link SlicedScroll}.
+     *
+     * @param slices
+     *            the number of slices, e.g. the number of shards
+     */
+    public SlicedScroll sliced(int slices) {
+        return new SlicedScroll(this, slices);
+    }
+
+    /**
+     * @return a scroll with the same options, to be sent independently
+     */
+    Scroll copy() {
+        Scroll copy = new Scroll(transport);
+        copy.url = url;
+        copy.indexName = indexName;
+        copy.type = type;
+        copy.query = query;
+        copy.size = size;
+        copy.keepAlive = keepAlive;
+        copy.scan = scan;
+        copy.routing = routing;
+        copy.sliceId = sliceId;
+        copy.maxSlices = maxSlices;
+        return copy;
+    }
+
+    /**
+     * Open the scroll and read the first page.
+     *
+     * @return an iterator over all hits, as JSONObjects with _id and _source
+     * @throws EsRESTException
+     *             if the scroll could not be opened
+     */
+    public ScrollIterator<JSONObject> execute() throws EsRESTException {
+        return execute(JsonDecoders.JSON_OBJECT);
+    }
+
+    /**
+     * Open the scroll and read the first page, decoding every hit while it is
+     * read.
+     *
+     * @param hitDecoder
+     *            the decoder for a single hit
+     * @return an iterator over all hits
+     * @throws EsRESTException
+     *             if the scroll could not be opened
+     */
+    public <T> ScrollIterator<T> execute(JsonDecoder<T> hitDecoder)
+            throws EsRESTException {
+        StringBuilder path = new StringBuilder();
+        if (url != null) {
+            path.append(url);
+        }
+        if (indexName != null) {
+            path.append('/').append(indexName);
+            if (type != null) {
+                path.append('/').append(type);
+            }
+        }
+        path.append("/_search");
+
+        HttpPost request;
+        try {
+            URIBuilder uri = new URIBuilder(path.toString());
+            uri.addParameter("scroll", keepAlive);
+            uri.addParameter("size", Integer.toString(size));
+            if (scan) {
+                uri.addParameter("search_type", "scan");
+            }
+            if (routing != null) {
+                uri.addParameter("routing", routing);
+            }
+            request = new HttpPost(uri.build());
+        } catch (URISyntaxException e) {
+            throw new EsRESTException(e);
+        }
+        request.setEntity(new StringEntity(buildBody().toString(),
+                ContentType.APPLICATION_JSON));
+        ScrollIterator.Page<T> first;
+        try {
+            first = transport.execute(request,
+                    pageHandler(hitDecoder, describe()));
+        } catch (IOException e) {
+            throw new EsRESTException(e);
+        }
+        return new ScrollIterator<T>(transport, url, keepAlive, hitDecoder,
+                first, scan);
+    }
+
+    /**
+     * The body of the first request. Subclasses can add to it.
+     */
+    protected JSONObject buildBody() {
+        JSONObject body = new JSONObject();
+        body.put("query", query == null ? new JSONObject().put("match_all",
+                new JSONObject()) : query);
+        if (sliceId >= 0) {
+            body.put("slice", new JSONObject().put("id", sliceId).put("max",
+                    maxSlices));
+        }
+        return body;
+    }
+
+    private String describe() {
+        return "scroll over "
+                + (indexName == null ? "all indices" : indexName)
+                + (sliceId >= 0 ? " slice " + sliceId : "");
+    }
+
+    /**
+     * Reads one page of a scroll straight from the response: the scroll id
+     * and the hits, each decoded by the hit decoder.
+     */
+    static <T> ResponseHandler<ScrollIterator.Page<T>> pageHandler(
+            final JsonDecoder<T> hitDecoder, final String description) {
+        return new ResponseHandler<ScrollIterator.Page<T>>() {
+            public ScrollIterator.Page<T> handleResponse(HttpResponse response)
+                    throws IOException {
+                int status = response.getStatusLine().getStatusCode();
+                if (status != 200) {
+                    throw new IOException("Expected 200 OK from a "
+                            + description + " but got " + status
+                            + " instead");
+                }
+                return readPage(new JsonReader(response.getEntity()
+                        .getContent()), hitDecoder);
+            }
+        };
+    }
+
+    static <T> ScrollIterator.Page<T> readPage(JsonReader reader,
+            JsonDecoder<T> hitDecoder) throws IOException {
+        String scrollId = null;
+        long total = -1;
+        List<T> hits = new ArrayList<T>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("_scroll_id".equals(name)) {
+                scrollId = reader.nextString();
+            } else if ("hits".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("total".equals(field)) {
+                        total = readTotal(reader);
+                    } else if ("hits".equals(field)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            hits.add(hitDecoder.decode(reader));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new ScrollIterator.Page<T>(scrollId, total, hits);
+    }
+
+    /**
+     * The total is a number, or since 7.0 an object with a value.
+     */
+    static long readTotal(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            return reader.nextLong();
+        }
+        long total = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("value".equals(reader.nextName())) {
+                total = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return total;
+    }
+}
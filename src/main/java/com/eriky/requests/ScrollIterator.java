@@ -0,0 +1,236 @@
+package com.eriky.requests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.json.JsonDecoder;
+import com.eriky.transport.Transport;
+import com.eriky.util.NamedThreadFactory;
+
+/**
+ * Iterates over all hits of a {@link Scroll}. While the hits of one page are
+ * consumed, the next page is already fetched in the background, so at most
+ * two pages are in memory at any time, however large the index is.
+ * <p>
+ * The scroll is cleared on Elasticsearch when the last hit has been read, and
+ * when the iterator is closed before that. Always close the iterator, e.g. in
+ * a finally block. A failure to fetch a page is thrown from
+ * {@link #hasNext()} as an {@link IllegalStateException}.
+ * </p>
+ * <p>
+ * The scroll id is passed as the <code>scroll_id</code> parameter, which
+ * every version of Elasticsearch accepts. An id that is too long for the url
+ * is sent in a JSON body instead, which needs Elasticsearch 2.0 or later.
+ * </p>
+ * 
+ * @author eriky
+ */
+public class ScrollIterator<T> implements Iterator<T>, Closeable {
+    /**
+     * Elasticsearch refuses a request line longer than 4 KB by default.
+     */
+    private static final int MAX_SCROLL_ID_IN_URL = 3072;
+    private static final ExecutorService prefetcher = Executors
+            .newCachedThreadPool(new NamedThreadFactory("scroll-prefetch"));
+    private Logger log = LoggerFactory.getLogger(ScrollIterator.class);
+    private final Transport transport;
+    private final String url;
+    private final String keepAlive;
+    private final JsonDecoder<T> hitDecoder;
+    private final long totalHits;
+    private Iterator<T> hits;
+    private String scrollId;
+    private Future<Page<T>> nextPage;
+    private boolean finished = false;
+
+    ScrollIterator(Transport transport, String url, String keepAlive,
+            JsonDecoder<T> hitDecoder, Page<T> first, boolean scan) {
+        this.transport = transport;
+        this.url = url;
+        this.keepAlive = keepAlive;
+        this.hitDecoder = hitDecoder;
+        this.totalHits = first.total;
+        this.hits = first.hits.iterator();
+        this.scrollId = first.scrollId;
+        // a scan returns its first hits only with the second page
+        if (first.hits.isEmpty() && !scan) {
+            finish();
+        } else {
+            prefetch();
+        }
+    }
+
+    /**
+     * @return the number of hits of the query, or -1 if Elasticsearch did not
+     *         say
+     */
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    public boolean hasNext() {
+        while (!hits.hasNext()) {
+            if (finished) {
+                return false;
+            }
+            Page<T> page = awaitNextPage();
+            if (page.scrollId != null) {
+                scrollId = page.scrollId;
+            }
+            if (page.hits.isEmpty()) {
+                finish();
+                return false;
+            }
+            hits = page.hits.iterator();
+            prefetch();
+        }
+        return true;
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return hits.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop reading and clear the scroll on Elasticsearch, if that did not
+     * happen yet.
+     */
+    public void close() {
+        if (finished) {
+            return;
+        }
+        try {
+            Page<T> page = awaitNextPage();
+            if (page.scrollId != null) {
+                scrollId = page.scrollId;
+            }
+        } catch (IllegalStateException e) {
+            // the scroll id we have is still the best guess
+        }
+        finish();
+    }
+
+    private void prefetch() {
+        final String id = scrollId;
+        nextPage = prefetcher.submit(new Callable<Page<T>>() {
+            public Page<T> call() throws IOException {
+                HttpPost request = new HttpPost();
+                withScrollId(request, id, new JSONObject().put("scroll_id", id)
+                        .put("scroll", keepAlive));
+                return transport.execute(request,
+                        Scroll.pageHandler(hitDecoder, "scroll"));
+            }
+        });
+    }
+
+    private Page<T> awaitNextPage() {
+        try {
+            return nextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scrolling", e);
+        } catch (ExecutionException e) {
+            finished = true;
+            throw new IllegalStateException("Could not fetch the next page: "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        hits = Collections.<T> emptyList().iterator();
+        if (scrollId == null) {
+            return;
+        }
+        try {
+            ClearScroll request = new ClearScroll();
+            withScrollId(request, scrollId, new JSONObject().put("scroll_id",
+                    new JSONArray().put(scrollId)));
+            transport.execute(request);
+        } catch (IOException e) {
+            log.warn("Could not clear scroll, it expires after " + keepAlive
+                    + ": " + e.getMessage());
+        } catch (IllegalStateException e) {
+            log.warn("Could not clear scroll, it expires after " + keepAlive
+                    + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Point a scroll request at the scroll id, in the url if it fits or else
+     * in the JSON body.
+     */
+    private void withScrollId(HttpEntityEnclosingRequestBase request,
+            String id, JSONObject body) throws IOException {
+        try {
+            URIBuilder uri = new URIBuilder((url == null ? "" : url)
+                    + "/_search/scroll");
+            if (id.length() <= MAX_SCROLL_ID_IN_URL) {
+                if (body.has("scroll")) {
+                    uri.addParameter("scroll", keepAlive);
+                }
+                uri.addParameter("scroll_id", id);
+            } else {
+                request.setEntity(new StringEntity(body.toString(),
+                        ContentType.APPLICATION_JSON));
+            }
+            request.setURI(uri.build());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * One page of hits and the scroll id to get the next page with.
+     */
+    static class Page<T> {
+        final String scrollId;
+        final long total;
+        final List<T> hits;
+
+        Page(String scrollId, long total, List<T> hits) {
+            this.scrollId = scrollId;
+            this.total = total;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * A DELETE that can have a body, for a scroll id that is too long for the
+     * url.
+     */
+    private static class ClearScroll extends HttpEntityEnclosingRequestBase {
+
+        @Override
+        public String getMethod() {
+            return "DELETE";
+        }
+    }
+}
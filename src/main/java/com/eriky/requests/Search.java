@@ -0,0 +1,333 @@
+package com.eriky.requests;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.eriky.EsRESTException;
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonDecoders;
+import com.eriky.transport.Transport;
+
+/**
+ * Reads one page of hits of a query. The hits are decoded one by one while the
+ * {@link SearchResult} is iterated, instead of turning the whole response into
+ * a {@link JSONObject} first.
+ *
+ * <pre>
+ * SearchResult&lt;JSONObject&gt; hits = new Search(url).withIndex(&quot;users&quot;)
+ *         .query(query).size(50).source(&quot;name&quot;, &quot;email&quot;).execute();
+ * while (hits.hasNext()) {
+ *     show(hits.next());
+ * }
+ * </pre>
+ *
+ * For every hit of a large result, use a {@link Scroll}.
+ *
+ * @author eriky
+ */
+public class Search extends Request {
+    private String url;
+    private String indexName;
+    private String type;
+    private JSONObject query;
+    private JSONObject body = new JSONObject();
+    private int size = -1;
+    private int from = -1;
+    private Object source;
+    private Map<String, Object> queryStrings = new HashMap<String, Object>();
+
+    public Search(String url) {
+        super(Transport.getDefault());
+        this.url = url;
+    }
+
+    /**
+     * Create a Search that is sent to the url of the given transport, over its
+     * connections.
+     *
+     * @param transport
+     *            the {@link Transport} to send the request with
+     */
+    public Search(Transport transport) {
+        super(transport);
+    }
+
+    public Search withUrl(String url) {
+        this.url = url;
+        return this;
+    }
+
+    /**
+     * @param indexName
+     *            the index, or a comma separated list of indices, to search;
+     *            all indices when not set
+     */
+    public Search withIndex(String indexName) {
+        this.indexName = indexName;
+        return this;
+    }
+
+    public Search withType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * @param query
+     *            the query, e.g. <code>{"term": {"user": "kimchy"}}</code>;
+     *            all documents when not set
+     */
+    public Search query(JSONObject query) {
+        this.query = query;
+        return this;
+    }
+
+    /**
+     * Add the other parts of the search body, e.g. sort, aggs or highlight.
+     * The query, size, from and _source of this Search take precedence.
+     *
+     * @param body
+     *            a search body
+     */
+    public Search body(JSONObject body) {
+        this.body = body;
+        return this;
+    }
+
+    /**
+     * @param size
+     *            the number of hits to return; 10 when not set
+     */
+    public Search size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * @param from
+     *            the number of hits to skip
+     */
+    public Search from(int from) {
+        this.from = from;
+        return this;
+    }
+
+    /**
+     * @param source
+     *            false to return hits without their _source
+     */
+    public Search source(boolean source) {
+        this.source = source;
+        return this;
+    }
+
+    /**
+     * Only return these fields of the _source of each hit.
+     *
+     * @param includes
+     *            the fields, wildcards allowed, e.g. <code>user.*</code>
+     */
+    public Search source(String... includes) {
+        this.source = new JSONArray();
+        for (String include : includes) {
+            ((JSONArray) source).put(include);
+        }
+        return this;
+    }
+
+    /* All options that are passed to ES by query string go here */
+
+    /**
+     * Only return these parts of the response, e.g.
+     * <code>hits.hits._id</code> or <code>aggregations</code>.
+     *
+     * @param filters
+     *            the paths, wildcards allowed
+     */
+    public Search filterPath(String... filters) {
+        StringBuilder filterPath = new StringBuilder();
+        for (String filter : filters) {
+            if (filterPath.length() > 0) {
+                filterPath.append(',');
+            }
+            filterPath.append(filter);
+        }
+        queryStrings.put("filter_path", filterPath.toString());
+        return this;
+    }
+
+    public Search routing(String routing) {
+        queryStrings.put("routing", routing);
+        return this;
+    }
+
+    /**
+     * See http://www.elasticsearch.org/guide/en/elasticsearch/reference/current/search-request-preference.html
+     *
+     * @param preference
+     *            the preference String, e.g. _local or a session id
+     */
+    public Search preference(String preference) {
+        queryStrings.put("preference", preference);
+        return this;
+    }
+
+    /**
+     * @return the hits, as JSONObjects with _id and _source
+     * @throws EsRESTException
+     *             if the search could not be sent or did not succeed
+     */
+    public SearchResult<JSONObject> execute() throws EsRESTException {
+        return execute(JsonDecoders.JSON_OBJECT);
+    }
+
+    /**
+     * @param hitDecoder
+     *            the decoder for a single hit
+     * @return the hits, decoded while they are iterated
+     * @throws EsRESTException
+     *             if the search could not be sent or did not succeed
+     */
+    public <T> SearchResult<T> execute(JsonDecoder<T> hitDecoder)
+            throws EsRESTException {
+        return read(perform(buildRequest()), hitDecoder);
+    }
+
+    /**
+     * Search without waiting for the response, e.g. for the panels of a
+     * dashboard.
+     *
+     * @param callback
+     *            called with the hits or the failure, or null
+     * @return a Future with the hits, as JSONObjects with _id and _source
+     * @throws EsRESTException
+     *             if the request could not be built
+     */
+    public Future<SearchResult<JSONObject>> executeAsync(
+            FutureCallback<SearchResult<JSONObject>> callback)
+            throws EsRESTException {
+        return executeAsync(JsonDecoders.JSON_OBJECT, callback);
+    }
+
+    /**
+     * Search without waiting for the response. The hits are decoded while the
+     * result is iterated, on the thread that iterates it.
+     *
+     * @param hitDecoder
+     *            the decoder for a single hit
+     * @param callback
+     *            called with the hits or the failure, or null
+     * @return a Future with the hits, which fails with an
+     *         {@link EsRESTException}
+     * @throws EsRESTException
+     *             if the request could not be built
+     */
+    public <T> Future<SearchResult<T>> executeAsync(
+            final JsonDecoder<T> hitDecoder,
+            FutureCallback<SearchResult<T>> callback) throws EsRESTException {
+        return performAsync(buildRequest(),
+                new ResponseReader<SearchResult<T>>() {
+                    public SearchResult<T> read(Response response)
+                            throws EsRESTException {
+                        return Search.this.read(response, hitDecoder);
+                    }
+                }, callback);
+    }
+
+    private HttpPost buildRequest() throws EsRESTException {
+        HttpPost request;
+        try {
+            URIBuilder uri = new URIBuilder((url == null ? "" : url)
+                    + getPath());
+            for (Map.Entry<String, Object> queryString : queryStrings
+                    .entrySet()) {
+                uri.addParameter(queryString.getKey(),
+                        String.valueOf(queryString.getValue()));
+            }
+            request = new HttpPost(uri.build());
+        } catch (URISyntaxException e) {
+            throw new EsRESTException(e);
+        }
+        request.setEntity(new StringEntity(buildBody().toString(),
+                ContentType.APPLICATION_JSON));
+        log.debug("all parameters set for request: " + request.getURI());
+        return request;
+    }
+
+    private <T> SearchResult<T> read(Response response,
+            JsonDecoder<T> hitDecoder) throws EsRESTException {
+        if (!response.hasStatus(200)) {
+            throw new EsRESTException("Expected 200 OK from a search of "
+                    + (indexName == null ? "all indices" : indexName)
+                    + " but got " + response.getStatus() + ": "
+                    + response.getBodyAsString());
+        }
+        try {
+            return new SearchResult<T>(response.getBody(), hitDecoder);
+        } catch (IOException e) {
+            throw new EsRESTException(e);
+        }
+    }
+
+    /**
+     * The search body, with the query, size, from and _source of this Search.
+     */
+    JSONObject buildBody() {
+        JSONObject search = new JSONObject();
+        Iterator<?> keys = body.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            search.put(key, body.get(key));
+        }
+        search.put("query", query == null ? new JSONObject().put("match_all",
+                new JSONObject()) : query);
+        if (size >= 0) {
+            search.put("size", size);
+        }
+        if (from >= 0) {
+            search.put("from", from);
+        }
+        if (source != null) {
+            search.put("_source", source);
+        }
+        return search;
+    }
+
+    /**
+     * @return the path of the search, without the query string
+     */
+    String getPath() {
+        StringBuilder path = new StringBuilder();
+        if (indexName != null) {
+            path.append('/').append(indexName);
+            if (type != null) {
+                path.append('/').append(type);
+            }
+        }
+        return path.append("/_search").toString();
+    }
+
+    public String getIndex() {
+        return indexName;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Object getQueryString(String key) {
+        return this.queryStrings.get(key);
+    }
+}
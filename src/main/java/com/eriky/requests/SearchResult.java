@@ -0,0 +1,230 @@
+package com.eriky.requests;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.JSONObject;
+
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonReader;
+
+/**
+ * The result of a {@link Search}. The response is kept as it arrived, in
+ * bytes, and its hits are decoded one at a time while the result is iterated,
+ * so a page of thousands of hits never exists as one tree of
+ * {@link JSONObject}s.
+ * <p>
+ * The fields before the hits, like the total and took, are read right away.
+ * The fields after them, like the aggregations, are read when the last hit has
+ * been read, or when they are asked for; the hits that were not read yet are
+ * then skipped without decoding them.
+ * </p>
+ *
+ * @author eriky
+ */
+public class SearchResult<T> implements Iterator<T>, Closeable {
+    private final JsonReader reader;
+    private final JsonDecoder<T> hitDecoder;
+    private final JSONObject fields = new JSONObject();
+    private long took = -1;
+    private boolean timedOut;
+    private long totalHits = -1;
+    private double maxScore = Double.NaN;
+    private boolean inHits;
+    private boolean finished;
+    private int hitsRead;
+
+    SearchResult(byte[] body, JsonDecoder<T> hitDecoder) throws IOException {
+        this(body, 0, body.length, hitDecoder);
+    }
+
+    SearchResult(byte[] body, int offset, int length, JsonDecoder<T> hitDecoder)
+            throws IOException {
+        this.reader = new JsonReader(new ByteArrayInputStream(body, offset,
+                length));
+        this.hitDecoder = hitDecoder;
+        reader.beginObject();
+        readFields();
+    }
+
+    /**
+     * @return how long the search took in milliseconds, or -1 if
+     *         Elasticsearch did not say
+     */
+    public long getTook() {
+        return took;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return the number of hits of the query, or -1 if Elasticsearch did not
+     *         say
+     */
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * @return the highest score, or NaN if there is none
+     */
+    public double getMaxScore() {
+        return maxScore;
+    }
+
+    /**
+     * @return the number of hits that were returned by {@link #next()} so far
+     */
+    public int getHitsRead() {
+        return hitsRead;
+    }
+
+    /**
+     * @return the aggregations, or null if there are none; hits that were not
+     *         read yet are skipped
+     */
+    public JSONObject getAggregations() {
+        Object aggregations = getField("aggregations");
+        return aggregations instanceof JSONObject ? (JSONObject) aggregations
+                : null;
+    }
+
+    /**
+     * Get a top level field of the response other than took, timed_out and
+     * hits, e.g. _shards or suggest. Hits that were not read yet are skipped.
+     *
+     * @param name
+     *            the name of the field
+     * @return the value, as org.json types, or null if there is no such field
+     */
+    public Object getField(String name) {
+        if (!finished && !fields.has(name)) {
+            try {
+                while (inHits && reader.hasNext()) {
+                    reader.skipValue();
+                }
+                readRest();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return fields.opt(name);
+    }
+
+    /**
+     * @return a top level field that was already read, without reading on
+     */
+    Object peekField(String name) {
+        return fields.opt(name);
+    }
+
+    public boolean hasNext() {
+        if (!inHits) {
+            return false;
+        }
+        try {
+            if (reader.hasNext()) {
+                return true;
+            }
+            readRest();
+            return false;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the hits", e);
+        }
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            T hit = hitDecoder.decode(reader);
+            hitsRead++;
+            return hit;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode hit "
+                    + hitsRead, e);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // only reads from memory
+        }
+    }
+
+    /*
+     * Read top level fields until the hits array starts, or until the end of
+     * the response.
+     */
+    private void readFields() throws IOException {
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("took".equals(name)) {
+                took = reader.nextLong();
+            } else if ("timed_out".equals(name)) {
+                timedOut = reader.nextBoolean();
+            } else if ("hits".equals(name)
+                    && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                reader.beginObject();
+                if (readHitsFields()) {
+                    return;
+                }
+                reader.endObject();
+            } else {
+                fields.put(name, reader.readValue());
+            }
+        }
+        reader.endObject();
+        finished = true;
+    }
+
+    /*
+     * Read the fields of the hits object until its hits array starts.
+     */
+    private boolean readHitsFields() throws IOException {
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("total".equals(name)) {
+                totalHits = Scroll.readTotal(reader);
+            } else if ("max_score".equals(name)
+                    && reader.peek() != JsonReader.Token.NULL) {
+                maxScore = reader.nextDouble();
+            } else if ("hits".equals(name)) {
+                reader.beginArray();
+                inHits = true;
+                return true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Called at the end of the hits array.
+     */
+    private void readRest() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (inHits) {
+            reader.endArray();
+            inHits = false;
+            readHitsFields();
+            reader.endObject();
+        }
+        readFields();
+    }
+}
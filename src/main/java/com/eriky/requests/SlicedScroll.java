@@ -0,0 +1,284 @@
+package com.eriky.requests;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.eriky.EsRESTException;
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonDecoders;
+import com.eriky.util.NamedThreadFactory;
+
+/**
+ * Reads all hits of a {@link Scroll} as a number of slices, each with its own
+ * scroll, in parallel. A good number of slices is the number of shards of the
+ * index. Needs Elasticsearch 5.0 or later.
+ * <p>
+ * The hits can be handled on the threads that read the slices, e.g. by
+ * passing them to {@link com.eriky.EsREST#bulkIndex}, with
+ * {@link #forEach(JsonDecoder, HitHandler)}; or be merged into one iterator
+ * with {@link #execute(JsonDecoder)}.
+ * </p>
+ *
+ * @author eriky
+ */
+public class SlicedScroll {
+    private final Scroll scroll;
+    private final int slices;
+    private int threads;
+    private ExecutorService executor;
+    private int queueSize = 1000;
+
+    /**
+     * Handles the hits of the slices, on the threads that read them.
+     */
+    public interface HitHandler<T> {
+        /**
+         * Called for every hit. Called from several threads at once.
+         */
+        void onHit(T hit);
+    }
+
+    SlicedScroll(Scroll scroll, int slices) {
+        this.scroll = scroll;
+        this.slices = Math.max(1, slices);
+        this.threads = this.slices;
+    }
+
+    /**
+     * @param threads
+     *            the number of slices that are read at the same time, by
+     *            default all of them
+     */
+    public SlicedScroll threads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * @param executor
+     *            the pool to read the slices on, instead of threads that are
+     *            started for this scroll. It is not shut down.
+     */
+    public SlicedScroll executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @param queueSize
+     *            the number of hits that the iterator of
+     *            {@link #execute(JsonDecoder)} holds before the slices wait
+     *            for it
+     */
+    public SlicedScroll queueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+        return this;
+    }
+
+    /**
+     * Read all slices and hand every hit to the handler, on the thread that
+     * read it. Returns when all slices have been read.
+     *
+     * @return the number of hits
+     * @throws EsRESTException
+     *             if a slice could not be read; the other slices are stopped
+     */
+    public <T> long forEach(final JsonDecoder<T> hitDecoder,
+            final HitHandler<? super T> handler) throws EsRESTException {
+        final AtomicLong count = new AtomicLong();
+        ExecutorService pool = pool();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(slices);
+        try {
+            for (int i = 0; i < slices; i++) {
+                final Scroll slice = scroll.copy().slice(i, slices);
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws EsRESTException {
+                        ScrollIterator<T> hits = slice.execute(hitDecoder);
+                        try {
+                            while (hits.hasNext()
+                                    && !Thread.currentThread().isInterrupted()) {
+                                handler.onHit(hits.next());
+                                count.incrementAndGet();
+                            }
+                        } finally {
+                            hits.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return count.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EsRESTException("Interrupted while reading slices");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? new EsRESTException(
+                    (Exception) cause) : new EsRESTException(cause.toString());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            release(pool);
+        }
+    }
+
+    /**
+     * Read all slices in the background and merge their hits into one
+     * iterator, as JSONObjects.
+     */
+    public SlicedIterator<JSONObject> execute() {
+        return execute(JsonDecoders.JSON_OBJECT);
+    }
+
+    /**
+     * Read all slices in the background and merge their hits into one
+     * iterator. The hits of different slices are interleaved; the slices wait
+     * when the iterator falls behind by the queue size. A failure of a slice
+     * is thrown from {@link SlicedIterator#hasNext()} as an
+     * {@link IllegalStateException}.
+     */
+    public <T> SlicedIterator<T> execute(JsonDecoder<T> hitDecoder) {
+        return new SlicedIterator<T>(hitDecoder);
+    }
+
+    private ExecutorService pool() {
+        if (executor != null) {
+            return executor;
+        }
+        return Executors.newFixedThreadPool(Math.min(threads, slices),
+                new NamedThreadFactory("scroll-slice"));
+    }
+
+    private void release(ExecutorService pool) {
+        if (pool != executor) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The hits of all slices, in the order they arrive.
+     */
+    public class SlicedIterator<T> implements Iterator<T>, Closeable {
+        private final Object end = new Object();
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(
+                queueSize);
+        private final ExecutorService pool = pool();
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        private int running = slices;
+        private Object next;
+        private boolean closed = false;
+
+        SlicedIterator(final JsonDecoder<T> hitDecoder) {
+            for (int i = 0; i < slices; i++) {
+                final Scroll slice = scroll.copy().slice(i, slices);
+                futures.add(pool.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            ScrollIterator<T> hits = slice.execute(hitDecoder);
+                            try {
+                                while (hits.hasNext()) {
+                                    queue.put(hits.next());
+                                }
+                            } finally {
+                                hits.close();
+                            }
+                            queue.put(end);
+                        } catch (InterruptedException e) {
+                            // closed
+                        } catch (Exception e) {
+                            try {
+                                queue.put(new Failure(e));
+                            } catch (InterruptedException closed) {
+                                // closed
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null) {
+                if (closed || running == 0) {
+                    return false;
+                }
+                Object item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(
+                            "Interrupted while scrolling", e);
+                }
+                if (item == end) {
+                    running--;
+                    if (running == 0) {
+                        release(pool);
+                    }
+                } else if (item instanceof Failure) {
+                    close();
+                    Exception cause = ((Failure) item).cause;
+                    throw new IllegalStateException("Could not read a slice: "
+                            + cause.getMessage(), cause);
+                } else {
+                    next = item;
+                }
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T hit = (T) next;
+            next = null;
+            return hit;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stop reading the slices and clear their scrolls.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            queue.clear();
+            release(pool);
+        }
+    }
+
+    private static class Failure {
+        private final Exception cause;
+
+        Failure(Exception cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.eriky.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes of the compressed requests and responses of a
+ * {@link Transport}, before and after compression, to see what compression
+ * saves. Bodies that were not compressed are not counted.
+ *
+ * @author eriky
+ */
+public class CompressionStats {
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong compressedRequestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong compressedResponseBytes = new AtomicLong();
+
+    /**
+     * @return the bytes of the request bodies before compression
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * @return the bytes of the request bodies that were sent
+     */
+    public long getCompressedRequestBytes() {
+        return compressedRequestBytes.get();
+    }
+
+    /**
+     * @return the bytes of the response bodies after decompression
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    /**
+     * @return the bytes of the response bodies that were received
+     */
+    public long getCompressedResponseBytes() {
+        return compressedResponseBytes.get();
+    }
+
+    /**
+     * @return the compressed size of the request bodies as a fraction of
+     *         their original size, or 1 if nothing was compressed
+     */
+    public double getRequestRatio() {
+        return ratio(compressedRequestBytes.get(), requestBytes.get());
+    }
+
+    /**
+     * @return the compressed size of the response bodies as a fraction of
+     *         their original size, or 1 if nothing was compressed
+     */
+    public double getResponseRatio() {
+        return ratio(compressedResponseBytes.get(), responseBytes.get());
+    }
+
+    public void reset() {
+        requestBytes.set(0);
+        compressedRequestBytes.set(0);
+        responseBytes.set(0);
+        compressedResponseBytes.set(0);
+    }
+
+    public String toString() {
+        return "requests " + compressedRequestBytes + "/" + requestBytes
+                + " bytes, responses " + compressedResponseBytes + "/"
+                + responseBytes + " bytes";
+    }
+
+    void addRequest(long original, long compressed) {
+        requestBytes.addAndGet(original);
+        compressedRequestBytes.addAndGet(compressed);
+    }
+
+    void addResponse(long original, long compressed) {
+        responseBytes.addAndGet(original);
+        compressedResponseBytes.addAndGet(compressed);
+    }
+
+    private static double ratio(long compressed, long original) {
+        return original == 0 ? 1 : (double) compressed / original;
+    }
+}
@@ -0,0 +1,168 @@
+package com.eriky.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests a {@link Transport} has in flight, and adapts
+ * that limit to how the cluster copes, so that a slow cluster is not pushed
+ * further into overload by a client that keeps sending at the same rate.
+ * <p>
+ * The limit follows additive increase, multiplicative decrease: every request
+ * that succeeds while the limit is used raises it by about one per round of
+ * requests, and every sign of overload lowers it by a quarter. Overload is a
+ * 429 or 503 response, a request that times out, a bulk item that was
+ * rejected, or a latency of more than twice, and at least 10 ms more than, the
+ * lowest latency seen recently. Other failures, like a refused or reset
+ * connection, only give back their permit, see {@link #abort()}. The limit is
+ * lowered at most once per round of requests, so that one burst of failures
+ * does not drop it to the minimum at once.
+ * </p>
+ *
+ * @author eriky
+ */
+public class ConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.75;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long MIN_LATENCY_RISE = TimeUnit.MILLISECONDS
+            .toNanos(10);
+    private static final long BASELINE_RESET_NANOS = TimeUnit.MINUTES
+            .toNanos(1);
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private long smoothedLatencyNanos;
+    private long baselineLatencyNanos = Long.MAX_VALUE;
+    private long baselineSetNanos = System.nanoTime();
+    private long lastDecreaseNanos = System.nanoTime() - BASELINE_RESET_NANOS;
+
+    /**
+     * @param initialLimit
+     *            the number of requests allowed in flight at first
+     * @param minLimit
+     *            the lowest the limit goes, at least 1
+     * @param maxLimit
+     *            the highest the limit goes
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(
+                    "Need 1 <= minLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Wait until one more request may be sent.
+     *
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= getLimit()) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * @return true if one more request may be sent now, false if the limit is
+     *         reached
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= getLimit()) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Report that a request which was allowed by {@link #acquire()} or
+     * {@link #tryAcquire()} is done.
+     *
+     * @param latencyNanos
+     *            how long the request took
+     * @param overloaded
+     *            true if the cluster answered that it is overloaded, or the
+     *            request timed out
+     */
+    public synchronized void release(long latencyNanos, boolean overloaded) {
+        int before = inFlight--;
+        long now = System.nanoTime();
+        if (now - baselineSetNanos > BASELINE_RESET_NANOS) {
+            // the cluster may have changed, e.g. grown or lost its caches
+            baselineLatencyNanos = smoothedLatencyNanos;
+            baselineSetNanos = now;
+        }
+        if (!overloaded) {
+            smoothedLatencyNanos = smoothedLatencyNanos == 0 ? latencyNanos
+                    : (smoothedLatencyNanos * 7 + latencyNanos) / 8;
+            baselineLatencyNanos = Math.min(baselineLatencyNanos, latencyNanos);
+        }
+        if (overloaded || isSlow()) {
+            decrease(now);
+        } else if (before >= limit / 2) {
+            // only grow a limit that is used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Give back a permit of a request that was not sent after all, or that
+     * failed in a way that says nothing about the load of the cluster.
+     */
+    synchronized void abort() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Report overload that was noticed outside the transport, e.g. bulk items
+     * that Elasticsearch rejected in an otherwise successful response.
+     */
+    public synchronized void overloaded() {
+        decrease(System.nanoTime());
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized String toString() {
+        return inFlight + "/" + getLimit() + " in flight, latency "
+                + TimeUnit.NANOSECONDS.toMillis(smoothedLatencyNanos) + " ms";
+    }
+
+    /**
+     * Small differences in fast requests are noise, not overload.
+     */
+    private boolean isSlow() {
+        long rise = smoothedLatencyNanos - baselineLatencyNanos;
+        return smoothedLatencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE
+                && rise > MIN_LATENCY_RISE;
+    }
+
+    private void decrease(long now) {
+        long round = Math.max(smoothedLatencyNanos,
+                TimeUnit.MILLISECONDS.toNanos(1));
+        if (now - lastDecreaseNanos < round) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+    }
+}
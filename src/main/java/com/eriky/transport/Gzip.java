@@ -0,0 +1,268 @@
+package com.eriky.transport;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The interceptors that gzip request bodies and unzip response bodies for a
+ * {@link Transport}, counting the bytes on both sides in
+ * {@link CompressionStats}.
+ *
+ * @author eriky
+ */
+final class Gzip {
+    private static final String GZIP = "gzip";
+    private static final long MIN_REQUEST_SIZE = 1024;
+
+    private Gzip() {
+    }
+
+    /**
+     * Replaces the body of a request by one that is compressed while it is
+     * written. Only the wrapper that HttpClient sends is changed, so a retry
+     * compresses the original body again.
+     */
+    static class RequestCompressor implements HttpRequestInterceptor {
+        private final int level;
+        private final CompressionStats stats;
+
+        RequestCompressor(int level, CompressionStats stats) {
+            this.level = level;
+            this.stats = stats;
+        }
+
+        public void process(HttpRequest request, HttpContext context)
+                throws HttpException, IOException {
+            if (!(request instanceof HttpEntityEnclosingRequest)) {
+                return;
+            }
+            HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+            HttpEntity entity = enclosing.getEntity();
+            if (entity == null || entity.getContentEncoding() != null) {
+                return;
+            }
+            long length = entity.getContentLength();
+            if (length >= 0 && length < MIN_REQUEST_SIZE) {
+                return;
+            }
+            enclosing.setEntity(new CompressingEntity(entity, level, stats));
+            request.removeHeaders("Content-Length");
+        }
+    }
+
+    /**
+     * Asks for gzip compressed responses.
+     */
+    static class AcceptEncoding implements HttpRequestInterceptor {
+        public void process(HttpRequest request, HttpContext context) {
+            if (!request.containsHeader("Accept-Encoding")) {
+                request.addHeader("Accept-Encoding", GZIP);
+            }
+        }
+    }
+
+    /**
+     * Unzips response bodies that are gzip compressed, while they are read.
+     */
+    static class ResponseDecompressor implements HttpResponseInterceptor {
+        private final CompressionStats stats;
+
+        ResponseDecompressor(CompressionStats stats) {
+            this.stats = stats;
+        }
+
+        public void process(HttpResponse response, HttpContext context) {
+            HttpEntity entity = response.getEntity();
+            if (entity == null || entity.getContentEncoding() == null) {
+                return;
+            }
+            if (!GZIP.equalsIgnoreCase(entity.getContentEncoding().getValue()
+                    .trim())) {
+                return;
+            }
+            response.setEntity(new DecompressingEntity(entity, stats));
+            response.removeHeaders("Content-Length");
+            response.removeHeaders("Content-Encoding");
+        }
+    }
+
+    private static class CompressingEntity extends HttpEntityWrapper {
+        private final int level;
+        private final CompressionStats stats;
+
+        CompressingEntity(HttpEntity entity, int level, CompressionStats stats) {
+            super(entity);
+            this.level = level;
+            this.stats = stats;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader("Content-Encoding", GZIP);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException(
+                    "A compressed body can only be written");
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            CountingOutputStream compressed = new CountingOutputStream(out);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            CountingOutputStream original = new CountingOutputStream(gzip);
+            wrappedEntity.writeTo(original);
+            gzip.finish();
+            out.flush();
+            stats.addRequest(original.count, compressed.count);
+        }
+    }
+
+    private static class DecompressingEntity extends HttpEntityWrapper {
+        private final CompressionStats stats;
+        private InputStream content;
+
+        DecompressingEntity(HttpEntity entity, CompressionStats stats) {
+            super(entity);
+            this.stats = stats;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        /*
+         * The stream is kept, so that consuming the entity after it was read
+         * does not start to unzip the end of the stream again.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content == null) {
+                final CountingInputStream compressed = new CountingInputStream(
+                        wrappedEntity.getContent());
+                content = new FilterInputStream(new GZIPInputStream(compressed)) {
+                    private long reported;
+
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        report(b < 0 ? 0 : 1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len)
+                            throws IOException {
+                        int n = super.read(b, off, len);
+                        report(Math.max(0, n));
+                        return n;
+                    }
+
+                    private void report(int n) {
+                        stats.addResponse(n, compressed.count - reported);
+                        reported = compressed.count;
+                    }
+                };
+            }
+            return content;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
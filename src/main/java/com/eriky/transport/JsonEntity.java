@@ -0,0 +1,58 @@
+package com.eriky.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.eriky.json.JsonEncoder;
+
+/**
+ * Request entity that lets a {@link JsonEncoder} write a document straight to
+ * the connection. The length is not known up front, so the body is sent
+ * chunked. The entity is repeatable as long as the encoder writes the same
+ * JSON every time, so the request can be sent to another node when one fails.
+ *
+ * @author eriky
+ */
+public class JsonEntity<T> extends AbstractHttpEntity {
+    private final T document;
+    private final JsonEncoder<? super T> encoder;
+
+    public JsonEntity(T document, JsonEncoder<? super T> encoder) {
+        this.document = document;
+        this.encoder = encoder;
+        setContentType("application/json; charset=UTF-8");
+        setChunked(true);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Only used by code that reads the entity instead of writing it, so the
+     * document is encoded into memory here.
+     */
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(document, out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        encoder.encode(document, out);
+        out.flush();
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+}
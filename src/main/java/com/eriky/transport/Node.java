@@ -0,0 +1,122 @@
+package com.eriky.transport;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+
+/**
+ * One Elasticsearch node that a {@link Transport} sends requests to. A node
+ * keeps track of the number of requests that are in flight and whether it is
+ * dead. A dead node is left alone until its backoff has passed, which doubles
+ * every time the node fails again.
+ *
+ * @author eriky
+ */
+public class Node {
+    private final HttpHost host;
+    private final String pathPrefix;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private int failures = 0;
+    private volatile long deadUntilNanos = 0;
+
+    /**
+     * @param url
+     *            the full url to the node without trailing slash, e.g.
+     *            http://localhost:9200
+     */
+    public Node(String url) {
+        URI uri = URI.create(url);
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("Not a valid node url: " + url);
+        }
+        host = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        pathPrefix = path.endsWith("/") ? path.substring(0, path.length() - 1)
+                : path;
+    }
+
+    public HttpHost getHost() {
+        return host;
+    }
+
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    /**
+     * @return the url of this node without trailing slash
+     */
+    public String getUrl() {
+        return host.toURI() + pathPrefix;
+    }
+
+    /**
+     * @return the number of requests to this node that have not finished
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return true if the node has not failed, or its backoff has passed
+     */
+    public boolean isAlive() {
+        return deadUntilNanos == 0 || deadUntilNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return true if the node failed and was not seen alive since
+     */
+    public boolean isDead() {
+        return deadUntilNanos != 0;
+    }
+
+    long getDeadUntilNanos() {
+        return deadUntilNanos;
+    }
+
+    void startRequest() {
+        inFlight.incrementAndGet();
+    }
+
+    void endRequest() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Mark the node dead for the initial backoff, doubled for every earlier
+     * failure since the node was last seen alive.
+     */
+    synchronized void markDead(long initialBackoffNanos, long maxBackoffNanos) {
+        long backoff = initialBackoffNanos;
+        for (int i = 0; i < failures && backoff < maxBackoffNanos; i++) {
+            backoff *= 2;
+        }
+        failures++;
+        deadUntilNanos = System.nanoTime() + Math.min(backoff, maxBackoffNanos);
+    }
+
+    synchronized void markAlive() {
+        failures = 0;
+        deadUntilNanos = 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Node)) {
+            return false;
+        }
+        return getUrl().equals(((Node) o).getUrl());
+    }
+
+    @Override
+    public int hashCode() {
+        return getUrl().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getUrl();
+    }
+}
@@ -0,0 +1,53 @@
+package com.eriky.transport;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the node that the next request of a {@link Transport} is sent to.
+ * The transport only offers nodes that are alive; a selector must be safe to
+ * use from many threads at once.
+ *
+ * @author eriky
+ */
+public interface NodeSelector {
+    /**
+     * @param nodes
+     *            the nodes that are alive, never empty
+     * @return one of the nodes
+     */
+    Node select(List<Node> nodes);
+
+    /**
+     * Sends requests to every node in turn.
+     */
+    class RoundRobin implements NodeSelector {
+        private final AtomicInteger next = new AtomicInteger();
+
+        public Node select(List<Node> nodes) {
+            int i = next.getAndIncrement() & Integer.MAX_VALUE;
+            return nodes.get(i % nodes.size());
+        }
+    }
+
+    /**
+     * Sends requests to the node with the fewest requests in flight, so that
+     * a slow node gets less work. Nodes that are equally busy are taken in
+     * turn.
+     */
+    class LeastInFlight implements NodeSelector {
+        private final AtomicInteger next = new AtomicInteger();
+
+        public Node select(List<Node> nodes) {
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            Node best = null;
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get((start + i) % nodes.size());
+                if (best == null || node.getInFlight() < best.getInFlight()) {
+                    best = node;
+                }
+            }
+            return best;
+        }
+    }
+}
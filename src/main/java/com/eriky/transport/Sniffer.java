@@ -0,0 +1,151 @@
+package com.eriky.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.requests.Response;
+
+/**
+ * Finds the nodes of the cluster by asking one of the known nodes for
+ * <code>/_nodes/http</code>, and replaces the nodes of the {@link Transport}
+ * with the data nodes that have HTTP enabled. Nodes that stay in the cluster
+ * keep their state, so a dead node is not revived by sniffing.
+ *
+ * @author eriky
+ */
+public class Sniffer {
+    private Logger log = LoggerFactory.getLogger(Sniffer.class);
+    private final Transport transport;
+    private final String scheme;
+
+    /**
+     * @param transport
+     *            the transport to ask and to update, with at least one node
+     */
+    public Sniffer(Transport transport) {
+        this.transport = transport;
+        this.scheme = transport.getNodes().get(0).getHost().getSchemeName();
+    }
+
+    /**
+     * Ask the cluster for its nodes and update the transport. When no data
+     * node with HTTP enabled is found, the nodes are left as they are.
+     *
+     * @return the urls of the nodes that were found
+     * @throws IOException
+     *             if no node could be asked
+     */
+    public List<String> sniff() throws IOException {
+        List<String> urls = new ArrayList<String>(getHttpUrls().values());
+        if (urls.isEmpty()) {
+            log.warn("No data nodes with HTTP enabled found, keeping "
+                    + transport.getNodes());
+        } else {
+            transport.setNodes(urls);
+            log.debug("Sniffed nodes: " + urls);
+        }
+        return urls;
+    }
+
+    /**
+     * Ask the cluster for its data nodes with HTTP enabled, without updating
+     * the transport.
+     *
+     * @return the url of every such node by node id
+     * @throws IOException
+     *             if no node could be asked
+     */
+    public Map<String, String> getHttpUrls() throws IOException {
+        Response response = transport.execute(new HttpGet("/_nodes/http"));
+        if (!response.hasStatus(200)) {
+            throw new IOException("Expected 200 OK from /_nodes/http but got "
+                    + response.getStatus() + " instead");
+        }
+        return parse(response.getBodyAsJson());
+    }
+
+    /**
+     * Like {@link #sniff()}, but only logs a failure, for use at startup and
+     * from the background.
+     */
+    void sniffQuietly() {
+        try {
+            sniff();
+        } catch (IOException e) {
+            log.warn("Could not sniff nodes: " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Could not sniff nodes: " + e.getMessage());
+        }
+    }
+
+    private Map<String, String> parse(JSONObject nodesInfo) {
+        Map<String, String> urls = new LinkedHashMap<String, String>();
+        JSONObject nodes = nodesInfo.optJSONObject("nodes");
+        if (nodes == null) {
+            return urls;
+        }
+        Iterator<?> ids = nodes.keys();
+        while (ids.hasNext()) {
+            String id = (String) ids.next();
+            JSONObject node = nodes.getJSONObject(id);
+            JSONObject http = node.optJSONObject("http");
+            if (http == null || !isDataNode(node)) {
+                continue;
+            }
+            String address = publishAddress(http.optString("publish_address",
+                    null));
+            if (address != null) {
+                urls.put(id, scheme + "://" + address);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Newer versions list the roles of a node, older versions only mark the
+     * nodes that do not hold data with a data attribute of false.
+     */
+    private static boolean isDataNode(JSONObject node) {
+        JSONArray roles = node.optJSONArray("roles");
+        if (roles != null) {
+            for (int i = 0; i < roles.length(); i++) {
+                if (roles.getString(i).startsWith("data")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        JSONObject attributes = node.optJSONObject("attributes");
+        return attributes == null
+                || !"false".equals(attributes.optString("data"));
+    }
+
+    /**
+     * Turn a publish address into host:port. Depending on the version it
+     * looks like <code>inet[/10.0.0.1:9200]</code>,
+     * <code>host/10.0.0.1:9200</code> or <code>10.0.0.1:9200</code>.
+     */
+    private static String publishAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        if (address.startsWith("inet[") && address.endsWith("]")) {
+            address = address.substring(5, address.length() - 1);
+        }
+        int slash = address.indexOf('/');
+        if (slash >= 0) {
+            address = address.substring(slash + 1);
+        }
+        return address.length() == 0 ? null : address;
+    }
+}
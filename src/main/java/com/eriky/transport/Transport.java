@@ -0,0 +1,911 @@
+package com.eriky.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eriky.requests.Response;
+import com.eriky.util.NamedThreadFactory;
+
+/**
+ * Sends requests to the nodes of an Elasticsearch cluster over a pool of
+ * connections that belongs to this transport alone. Every
+ * {@link com.eriky.EsREST} owns a transport, so a slow cluster can only use up
+ * its own connections.
+ * <p>
+ * Requests with a relative URI, e.g. <code>/_cluster/health</code>, are spread
+ * over the nodes by the {@link NodeSelector} of the {@link TransportConfig}.
+ * When a node cannot be reached, or answers that it is unavailable (status 502,
+ * 503 or 504), it is marked dead and the request is sent to the next node. A
+ * dead node gets requests again after a backoff, or as soon as the optional
+ * health check sees it answer. The nodes can be discovered from the cluster
+ * itself by a {@link Sniffer}, at startup and on an interval. Requests with an
+ * absolute URI are sent as they are.
+ * </p>
+ * <p>
+ * Responses are asked for gzip compressed, and request bodies can be gzip
+ * compressed too, see {@link TransportConfig#compressRequests(boolean)}; the
+ * bytes saved are counted in the {@link CompressionStats}.
+ * </p>
+ * <p>
+ * Requests can also be sent without blocking the caller, see
+ * {@link #executeAsync(HttpRequestBase, ResponseHandler, FutureCallback)}.
+ * Those go over a second, non-blocking pool of connections with the same
+ * limits, which is started with the first of them and served by a few I/O
+ * threads, however many requests are in flight. Their bodies are not
+ * compressed.
+ * </p>
+ * <p>
+ * The number of requests in flight, blocking or not, can be limited by a
+ * {@link ConcurrencyLimiter} that adapts to the load of the cluster, see
+ * {@link TransportConfig#adaptiveConcurrency(boolean)}. Blocking requests wait
+ * for their turn; async requests are queued and sent when one finishes.
+ * </p>
+ *
+ * @author eriky
+ */
+public class Transport implements Closeable {
+    private static final int STALE_CONNECTION_RETRIES = 3;
+    private Logger log = LoggerFactory.getLogger(Transport.class);
+    private volatile List<Node> nodes;
+    private final NodeSelector selector;
+    private final long initialDeadBackoffNanos;
+    private final long maxDeadBackoffNanos;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private ScheduledExecutorService scheduler;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private final TransportConfig config;
+    private final RequestConfig requestConfig;
+    private CloseableHttpAsyncClient asyncClient;
+    private final ConcurrencyLimiter limiter;
+    private final Queue<AsyncExchange<?>> waitingExchanges = new ConcurrentLinkedQueue<AsyncExchange<?>>();
+    private boolean closed = false;
+
+    /**
+     * Create a transport with the default {@link TransportConfig}.
+     *
+     * @param url
+     *            the full url to the ElasticSearch server without trailing
+     *            slash, e.g. http://localhost:9200
+     */
+    public Transport(String url) {
+        this(url, new TransportConfig());
+    }
+
+    /**
+     * @param url
+     *            the full url to the ElasticSearch server without trailing
+     *            slash, e.g. http://localhost:9200, or null if only requests
+     *            with an absolute URI will be sent
+     * @param config
+     *            the settings of the connection pool
+     */
+    public Transport(String url, TransportConfig config) {
+        this(url == null ? Collections.<String> emptyList() : Collections
+                .singletonList(url), config);
+    }
+
+    /**
+     * @param urls
+     *            the full urls to the nodes of the cluster without trailing
+     *            slash, e.g. http://es1:9200 and http://es2:9200
+     * @param config
+     *            the settings of the connection pool and the nodes
+     */
+    public Transport(List<String> urls, TransportConfig config) {
+        List<Node> initialNodes = new ArrayList<Node>(urls.size());
+        for (String url : urls) {
+            initialNodes.add(new Node(url));
+        }
+        nodes = Collections.unmodifiableList(initialNodes);
+        this.config = config;
+        limiter = config.isAdaptiveConcurrency() ? new ConcurrencyLimiter(
+                config.getInitialConcurrency(), config.getMinConcurrency(),
+                config.getMaxConcurrency()) : null;
+        selector = config.getNodeSelector();
+        initialDeadBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1,
+                config.getInitialDeadBackoffMillis()));
+        maxDeadBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(
+                config.getInitialDeadBackoffMillis(),
+                config.getMaxDeadBackoffMillis()));
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(config
+                .getMaxConnectionsPerRoute());
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setTcpNoDelay(config.isTcpNoDelay())
+                .setSoTimeout(config.getSocketTimeoutMillis()).build());
+
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(config.getConnectTimeoutMillis())
+                .setSocketTimeout(config.getSocketTimeoutMillis())
+                .setConnectionRequestTimeout(
+                        config.getConnectionRequestTimeoutMillis()).build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new KeepAlive(config.getKeepAliveMillis()))
+                .disableContentCompression()
+                .addInterceptorLast(new Gzip.ResponseDecompressor(compressionStats));
+        if (config.isCompressRequests()) {
+            // before the standard interceptors set the length of the body
+            builder.addInterceptorFirst(new Gzip.RequestCompressor(config
+                    .getCompressionLevel(), compressionStats));
+        }
+        if (config.isAcceptCompressedResponses()) {
+            builder.addInterceptorLast(new Gzip.AcceptEncoding());
+        }
+        client = builder.build();
+
+        if (nodes.isEmpty()) {
+            return;
+        }
+        final Sniffer sniffer = new Sniffer(this);
+        if (config.isSniffOnStart()) {
+            sniffer.sniffQuietly();
+        }
+        long healthCheckInterval = config.getHealthCheckIntervalMillis();
+        long sniffInterval = config.getSniffIntervalMillis();
+        if (healthCheckInterval > 0 || sniffInterval > 0) {
+            scheduler = Executors
+                    .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                            "transport"));
+        }
+        if (healthCheckInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkHealth();
+                }
+            }, healthCheckInterval, healthCheckInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (sniffInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sniffer.sniffQuietly();
+                }
+            }, sniffInterval, sniffInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The transport that is used by requests that are created with a url
+     * instead of a transport, e.g. <code>new Get(url)</code>. It is shared by
+     * all of them and is never closed.
+     *
+     * @return the shared transport
+     */
+    public static Transport getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @return the url of the first node, without trailing slash, or null if
+     *         this transport has no nodes
+     */
+    public String getUrl() {
+        List<Node> current = nodes;
+        return current.isEmpty() ? null : current.get(0).getUrl();
+    }
+
+    /**
+     * @return the bytes of the compressed request and response bodies, before
+     *         and after compression, see
+     *         {@link TransportConfig#compressRequests(boolean)}
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * @return the limiter of the requests in flight, or null if they are not
+     *         limited
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return the nodes this transport sends relative requests to, dead or
+     *         alive
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param url
+     *            the full url of a node without trailing slash
+     * @return the node of this transport with that url, or null if there is
+     *         none
+     */
+    public Node getNode(String url) {
+        for (Node node : nodes) {
+            if (node.getUrl().equals(url)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replace the nodes. Nodes that were already known keep their state, e.g.
+     * whether they are dead, and their connections.
+     *
+     * @param urls
+     *            the full urls to the nodes without trailing slash, at
+     *            least one
+     */
+    public void setNodes(List<String> urls) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is needed");
+        }
+        Map<Node, Node> known = new HashMap<Node, Node>();
+        for (Node node : nodes) {
+            known.put(node, node);
+        }
+        List<Node> newNodes = new ArrayList<Node>(urls.size());
+        for (String url : urls) {
+            Node node = new Node(url);
+            Node existing = known.get(node);
+            newNodes.add(existing == null ? node : existing);
+        }
+        nodes = Collections.unmodifiableList(newNodes);
+    }
+
+    /**
+     * Send a request and read the whole response into a {@link Response}.
+     *
+     * @param request
+     *            the request
+     * @return the response
+     * @throws IOException
+     *             if the request could not be sent or the response not read
+     */
+    public Response execute(HttpRequestBase request) throws IOException {
+        return execute(request, new ResponseHandler<Response>() {
+            public Response handleResponse(HttpResponse response)
+                    throws IOException {
+                return toResponse(response);
+            }
+        });
+    }
+
+    /**
+     * Send a request and let the handler read the response, e.g. to parse the
+     * body while it streams in. The connection is released afterwards.
+     * <p>
+     * A request with a relative URI is tried on the next node when its node
+     * fails, as long as its body can be sent again, until every node was
+     * tried once.
+     * </p>
+     *
+     * @param request
+     *            the request
+     * @param handler
+     *            the handler that reads the response
+     * @return the result of the handler
+     * @throws IOException
+     *             if the request could not be sent or the handler failed
+     */
+    public <T> T execute(HttpRequestBase request,
+            ResponseHandler<? extends T> handler) throws IOException {
+        return execute(request, handler, null);
+    }
+
+    /**
+     * Send a request to the given node first, e.g. the node that holds the
+     * shard the request is about. When that node is not one of the nodes of
+     * this transport, is dead or fails, the request goes to the other nodes
+     * as usual.
+     *
+     * @param request
+     *            the request, with a relative URI
+     * @param handler
+     *            the handler that reads the response
+     * @param preferredUrl
+     *            the url of the node to try first, or null for none
+     * @return the result of the handler
+     * @throws IOException
+     *             if the request could not be sent or the handler failed
+     * @see #execute(HttpRequestBase, ResponseHandler)
+     */
+    public <T> T execute(HttpRequestBase request,
+            ResponseHandler<? extends T> handler, String preferredUrl)
+            throws IOException {
+        URI uri = request.getURI();
+        if (uri.isAbsolute()) {
+            long started = acquire();
+            T result;
+            try {
+                result = client.execute(request, handler);
+            } catch (IOException e) {
+                releaseFailed(started, e);
+                throw e;
+            } catch (RuntimeException e) {
+                releaseFailed(started, e);
+                throw e;
+            }
+            release(started, false);
+            return result;
+        }
+        int attempts = nodes.size();
+        if (attempts == 0) {
+            throw new IllegalStateException(
+                    "This transport has no nodes, use an absolute URI instead of "
+                            + uri);
+        }
+        try {
+            for (int attempt = 1;; attempt++) {
+                boolean lastAttempt = attempt >= attempts || !canRetry(request);
+                Node node = null;
+                if (attempt == 1 && preferredUrl != null) {
+                    node = getNode(preferredUrl);
+                }
+                if (node == null || !node.isAlive()) {
+                    node = selectNode();
+                }
+                request.setURI(URI.create(node.getPathPrefix() + uri));
+                long started = acquire();
+                node.startRequest();
+                CloseableHttpResponse response;
+                try {
+                    response = client.execute(node.getHost(), request);
+                } catch (IOException e) {
+                    node.endRequest();
+                    releaseFailed(started, e);
+                    markDead(node, e.getMessage());
+                    if (lastAttempt) {
+                        throw e;
+                    }
+                    continue;
+                }
+                boolean overloaded = true;
+                try {
+                    int status = response.getStatusLine().getStatusCode();
+                    overloaded = isOverloaded(status);
+                    if (status == 502 || status == 503 || status == 504) {
+                        markDead(node, "status " + status);
+                        if (!lastAttempt) {
+                            EntityUtils.consume(response.getEntity());
+                            continue;
+                        }
+                    } else if (node.isDead()) {
+                        node.markAlive();
+                    }
+                    T result = handler.handleResponse(response);
+                    EntityUtils.consume(response.getEntity());
+                    return result;
+                } finally {
+                    response.close();
+                    node.endRequest();
+                    release(started, overloaded);
+                }
+            }
+        } finally {
+            request.setURI(uri);
+        }
+    }
+
+    /**
+     * Send a request and read the whole response into a {@link Response},
+     * without waiting for it.
+     *
+     * @param request
+     *            the request
+     * @param callback
+     *            called with the response or the failure, or null
+     * @return a Future with the response
+     * @see #executeAsync(HttpRequestBase, ResponseHandler, FutureCallback)
+     */
+    public Future<Response> executeAsync(HttpRequestBase request,
+            FutureCallback<Response> callback) {
+        return executeAsync(request, new ResponseHandler<Response>() {
+            public Response handleResponse(HttpResponse response)
+                    throws IOException {
+                return toResponse(response);
+            }
+        }, callback);
+    }
+
+    /**
+     * Send a request without waiting for it. The calling thread returns at
+     * once; the response is read into memory by an I/O thread, which then
+     * runs the handler and the callback, so both must not block.
+     * <p>
+     * Nodes are chosen, marked dead and retried as by
+     * {@link #execute(HttpRequestBase, ResponseHandler)}. Cancelling the
+     * Future does not abort a request that was already sent.
+     * </p>
+     *
+     * @param request
+     *            the request; it must not be changed until the Future is done
+     * @param handler
+     *            the handler that reads the response
+     * @param callback
+     *            called with the result of the handler or the failure, or null
+     * @return a Future with the result of the handler, which fails with the
+     *         IOException of the request or the handler
+     * @throws IllegalStateException
+     *             if this transport was closed
+     */
+    public <T> Future<T> executeAsync(HttpRequestBase request,
+            ResponseHandler<? extends T> handler, FutureCallback<T> callback) {
+        BasicFuture<T> future = new BasicFuture<T>(callback);
+        URI uri = request.getURI();
+        int attempts = uri.isAbsolute() ? 1 : nodes.size();
+        if (attempts == 0) {
+            throw new IllegalStateException(
+                    "This transport has no nodes, use an absolute URI instead of "
+                            + uri);
+        }
+        new AsyncExchange<T>(asyncClient(), request, uri, attempts, handler,
+                future).send();
+        return future;
+    }
+
+    /**
+     * Close all connections of this transport. Requests that are sent after
+     * this fail with an {@link IllegalStateException}.
+     */
+    public void close() {
+        CloseableHttpAsyncClient started;
+        synchronized (this) {
+            closed = true;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            started = asyncClient;
+            asyncClient = null;
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("Could not close connections: " + e.getMessage());
+        }
+        if (started != null) {
+            // on its own, so that its I/O threads stop whatever happened above
+            try {
+                started.close();
+            } catch (IOException e) {
+                log.warn("Could not close async connections: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The non-blocking client, started when it is first needed.
+     */
+    private synchronized CloseableHttpAsyncClient asyncClient() {
+        if (closed) {
+            throw new IllegalStateException("This transport is closed");
+        }
+        if (asyncClient == null) {
+            HttpAsyncClientBuilder builder = HttpAsyncClients
+                    .custom()
+                    .setMaxConnTotal(config.getMaxConnections())
+                    .setMaxConnPerRoute(config.getMaxConnectionsPerRoute())
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy(
+                            new KeepAlive(config.getKeepAliveMillis()))
+                    .setThreadFactory(
+                            new NamedThreadFactory("transport-io", false))
+                    .setDefaultIOReactorConfig(
+                            IOReactorConfig.custom()
+                                    .setIoThreadCount(config.getIoThreads())
+                                    .setTcpNoDelay(config.isTcpNoDelay())
+                                    .setConnectTimeout(
+                                            config.getConnectTimeoutMillis())
+                                    .setSoTimeout(
+                                            config.getSocketTimeoutMillis())
+                                    .build());
+            if (config.isAcceptCompressedResponses()) {
+                builder.addInterceptorLast(new Gzip.AcceptEncoding());
+            }
+            asyncClient = builder.build();
+            asyncClient.start();
+        }
+        return asyncClient;
+    }
+
+    /**
+     * Wait for the limiter, if any.
+     *
+     * @return the start of the request, to measure its latency
+     */
+    private long acquire() throws InterruptedIOException {
+        if (limiter != null) {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting to send a request");
+            }
+        }
+        return System.nanoTime();
+    }
+
+    private void release(long started, boolean overloaded) {
+        if (limiter != null) {
+            limiter.release(System.nanoTime() - started, overloaded);
+            sendWaitingExchanges();
+        }
+    }
+
+    /**
+     * Release the permit of a request that got no response. Only a timeout
+     * says something about the load of the cluster; a refused or reset
+     * connection says nothing about it, and its latency is no sample either.
+     */
+    private void releaseFailed(long started, Exception e) {
+        if (limiter == null) {
+            return;
+        }
+        if (e instanceof SocketTimeoutException
+                || e instanceof ConnectTimeoutException) {
+            limiter.release(System.nanoTime() - started, true);
+        } else {
+            limiter.abort();
+        }
+        sendWaitingExchanges();
+    }
+
+    /**
+     * Send the async requests that wait for the limiter, as far as it allows.
+     * Called after a request was queued, and whenever one finishes, so that
+     * no request is left waiting while nothing is in flight.
+     */
+    private void sendWaitingExchanges() {
+        while (!waitingExchanges.isEmpty() && limiter.tryAcquire()) {
+            AsyncExchange<?> exchange = waitingExchanges.poll();
+            if (exchange == null) {
+                limiter.abort();
+                return;
+            }
+            exchange.sendAcquired();
+        }
+    }
+
+    /**
+     * Choose a node that is alive. When every node is dead, the node whose
+     * backoff ends first is tried anyway, rather than failing right away.
+     */
+    private Node selectNode() {
+        List<Node> current = nodes;
+        List<Node> alive = current;
+        for (int i = 0; i < current.size(); i++) {
+            if (!current.get(i).isAlive()) {
+                alive = new ArrayList<Node>(current.size());
+                for (Node node : current) {
+                    if (node.isAlive()) {
+                        alive.add(node);
+                    }
+                }
+                break;
+            }
+        }
+        if (!alive.isEmpty()) {
+            return selector.select(alive);
+        }
+        Node first = current.get(0);
+        for (Node node : current) {
+            if (node.getDeadUntilNanos() - first.getDeadUntilNanos() < 0) {
+                first = node;
+            }
+        }
+        return first;
+    }
+
+    private void markDead(Node node, String reason) {
+        node.markDead(initialDeadBackoffNanos, maxDeadBackoffNanos);
+        log.warn("Node " + node + " failed (" + reason + "), marked dead");
+    }
+
+    /**
+     * @return true if the status says that the cluster cannot keep up
+     */
+    private static boolean isOverloaded(int status) {
+        return status == 429 || status == 503;
+    }
+
+    private static boolean canRetry(HttpRequestBase request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request)
+                    .getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * The same requests the blocking client sends again on its own, see
+     * {@link org.apache.http.impl.client.DefaultHttpRequestRetryHandler}:
+     * requests without a body, that failed on a connection that was reset or
+     * closed, e.g. a pooled connection the server had already given up.
+     */
+    private static boolean isStaleConnection(HttpRequestBase request,
+            Exception e) {
+        return e instanceof IOException
+                && !(e instanceof InterruptedIOException)
+                && !(e instanceof UnknownHostException)
+                && !(e instanceof ConnectException)
+                && !(e instanceof SSLException)
+                && !(request instanceof HttpEntityEnclosingRequest);
+    }
+
+    /**
+     * Request the banner of every node. Nodes that answer are alive, nodes
+     * that do not are marked dead, unless they already are.
+     */
+    private void checkHealth() {
+        for (Node node : nodes) {
+            boolean healthy;
+            try {
+                CloseableHttpResponse response = client.execute(node.getHost(),
+                        new HttpGet(node.getPathPrefix() + "/"));
+                try {
+                    healthy = response.getStatusLine().getStatusCode() == 200;
+                } finally {
+                    response.close();
+                }
+            } catch (IOException e) {
+                healthy = false;
+            } catch (IllegalStateException e) {
+                // the transport was closed while checking
+                return;
+            }
+            if (healthy) {
+                if (node.isDead()) {
+                    log.info("Node " + node + " is alive again");
+                    node.markAlive();
+                }
+            } else if (node.isAlive()) {
+                markDead(node, "health check");
+            }
+        }
+    }
+
+    /**
+     * Read a complete Apache HttpClient response into a {@link Response}.
+     */
+    public static Response toResponse(HttpResponse response)
+            throws IOException {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        for (Header header : response.getAllHeaders()) {
+            List<String> values = headers.get(header.getName());
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(header.getName(), values);
+            }
+            values.add(header.getValue());
+        }
+        return Response.read(response.getStatusLine().getStatusCode(),
+                headers, response.getEntity() == null ? null : response
+                        .getEntity().getContent());
+    }
+
+    /**
+     * One request of {@link #executeAsync}, with its attempts on the nodes.
+     * Every attempt is started from the callback of the one before.
+     */
+    private class AsyncExchange<T> implements FutureCallback<HttpResponse> {
+        private final CloseableHttpAsyncClient asyncClient;
+        private final HttpRequestBase request;
+        private final URI uri;
+        private final int attempts;
+        private final ResponseHandler<? extends T> handler;
+        private final BasicFuture<T> future;
+        private final Gzip.ResponseDecompressor decompressor = new Gzip.ResponseDecompressor(
+                compressionStats);
+        private int attempt = 0;
+        private int staleRetries = 0;
+        private Node node;
+        private long started;
+
+        AsyncExchange(CloseableHttpAsyncClient asyncClient,
+                HttpRequestBase request, URI uri, int attempts,
+                ResponseHandler<? extends T> handler, BasicFuture<T> future) {
+            this.asyncClient = asyncClient;
+            this.request = request;
+            this.uri = uri;
+            this.attempts = attempts;
+            this.handler = handler;
+            this.future = future;
+        }
+
+        void send() {
+            if (limiter != null && !limiter.tryAcquire()) {
+                waitingExchanges.add(this);
+                sendWaitingExchanges();
+                return;
+            }
+            sendAcquired();
+        }
+
+        /**
+         * Send the next attempt, with a permit of the limiter if there is one.
+         */
+        void sendAcquired() {
+            attempt++;
+            started = System.nanoTime();
+            try {
+                if (uri.isAbsolute()) {
+                    asyncClient.execute(request, this);
+                    return;
+                }
+                node = selectNode();
+                request.setURI(URI.create(node.getPathPrefix() + uri));
+                node.startRequest();
+                asyncClient.execute(node.getHost(), request, this);
+            } catch (RuntimeException e) {
+                // the transport was closed in the meantime
+                if (node != null) {
+                    node.endRequest();
+                }
+                if (limiter != null) {
+                    limiter.abort();
+                }
+                request.setURI(uri);
+                future.failed(e);
+            }
+        }
+
+        public void completed(HttpResponse response) {
+            int status = response.getStatusLine().getStatusCode();
+            release(started, isOverloaded(status));
+            if (node != null) {
+                node.endRequest();
+                if (status == 502 || status == 503 || status == 504) {
+                    markDead(node, "status " + status);
+                    if (!isLastAttempt()) {
+                        send();
+                        return;
+                    }
+                } else if (node.isDead()) {
+                    node.markAlive();
+                }
+            }
+            request.setURI(uri);
+            T result;
+            try {
+                decompressor.process(response, null);
+                result = handler.handleResponse(response);
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException e) {
+                future.failed(e);
+                return;
+            } catch (RuntimeException e) {
+                future.failed(e);
+                return;
+            }
+            future.completed(result);
+        }
+
+        public void failed(Exception e) {
+            releaseFailed(started, e);
+            if (isStaleConnection(request, e)
+                    && staleRetries < STALE_CONNECTION_RETRIES) {
+                // not the fault of the node, try again on a new connection
+                staleRetries++;
+                attempt--;
+                if (node != null) {
+                    node.endRequest();
+                }
+                request.setURI(uri);
+                send();
+                return;
+            }
+            if (node != null) {
+                node.endRequest();
+                markDead(node, e.getMessage());
+                if (!isLastAttempt()) {
+                    send();
+                    return;
+                }
+            }
+            request.setURI(uri);
+            future.failed(e);
+        }
+
+        public void cancelled() {
+            release(started, false);
+            if (node != null) {
+                node.endRequest();
+            }
+            request.setURI(uri);
+            future.cancel();
+        }
+
+        private boolean isLastAttempt() {
+            return attempt >= attempts || !canRetry(request);
+        }
+    }
+
+    /**
+     * Keeps connections alive as long as the server allows, or for the
+     * configured time when the server does not say.
+     */
+    private static class KeepAlive implements ConnectionKeepAliveStrategy {
+        private final long defaultMillis;
+
+        KeepAlive(long defaultMillis) {
+            this.defaultMillis = defaultMillis;
+        }
+
+        public long getKeepAliveDuration(HttpResponse response,
+                HttpContext context) {
+            BasicHeaderElementIterator it = new BasicHeaderElementIterator(
+                    response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName())
+                        && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // fall back to the default
+                    }
+                }
+            }
+            return defaultMillis;
+        }
+    }
+
+    private static class DefaultHolder {
+        static final Transport INSTANCE = new Transport((String) null,
+                new TransportConfig());
+    }
+}
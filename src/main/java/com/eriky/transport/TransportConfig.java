@@ -0,0 +1,375 @@
+package com.eriky.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Settings for the connection pool and sockets of a {@link Transport}. Every
+ * setter returns the config itself, so settings can be chained:
+ *
+ * <pre>
+ * new TransportConfig().maxConnections(50).socketTimeout(5, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author eriky
+ */
+public class TransportConfig {
+    private int maxConnections = 100;
+    private int maxConnectionsPerRoute = 20;
+    private int connectTimeoutMillis = 10000;
+    private int socketTimeoutMillis = 60000;
+    private int connectionRequestTimeoutMillis = 60000;
+    private long keepAliveMillis = 60000;
+    private boolean tcpNoDelay = true;
+    private NodeSelector nodeSelector = new NodeSelector.RoundRobin();
+    private long initialDeadBackoffMillis = 60000;
+    private long maxDeadBackoffMillis = 30 * 60000;
+    private long healthCheckIntervalMillis = 0;
+    private boolean sniffOnStart = false;
+    private long sniffIntervalMillis = 0;
+    private boolean compressRequests = false;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private boolean acceptCompressedResponses = true;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int initialConcurrency = 0;
+    private int minConcurrency;
+    private int maxConcurrency;
+
+    /**
+     * @param maxConnections
+     *            the maximum number of open connections, over all nodes
+     * @return this config
+     */
+    public TransportConfig maxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * @param maxConnectionsPerRoute
+     *            the maximum number of open connections to one node
+     * @return this config
+     */
+    public TransportConfig maxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    /**
+     * @param timeout
+     *            how long to wait for a connection to be established
+     * @param unit
+     *            the unit of timeout
+     * @return this config
+     */
+    public TransportConfig connectTimeout(long timeout, TimeUnit unit) {
+        this.connectTimeoutMillis = toMillis(timeout, unit);
+        return this;
+    }
+
+    /**
+     * @param timeout
+     *            how long to wait for data on an open connection
+     * @param unit
+     *            the unit of timeout
+     * @return this config
+     */
+    public TransportConfig socketTimeout(long timeout, TimeUnit unit) {
+        this.socketTimeoutMillis = toMillis(timeout, unit);
+        return this;
+    }
+
+    /**
+     * @param timeout
+     *            how long to wait for a free connection from the pool
+     * @param unit
+     *            the unit of timeout
+     * @return this config
+     */
+    public TransportConfig connectionRequestTimeout(long timeout,
+            TimeUnit unit) {
+        this.connectionRequestTimeoutMillis = toMillis(timeout, unit);
+        return this;
+    }
+
+    /**
+     * @param keepAlive
+     *            how long an idle connection is kept open when the server does
+     *            not say how long it may be kept
+     * @param unit
+     *            the unit of keepAlive
+     * @return this config
+     */
+    public TransportConfig keepAlive(long keepAlive, TimeUnit unit) {
+        this.keepAliveMillis = unit.toMillis(keepAlive);
+        return this;
+    }
+
+    /**
+     * @param tcpNoDelay
+     *            true to disable Nagle's algorithm, which is the default
+     * @return this config
+     */
+    public TransportConfig tcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @param nodeSelector
+     *            chooses the node for every request, by default
+     *            {@link NodeSelector.RoundRobin}
+     * @return this config
+     */
+    public TransportConfig nodeSelector(NodeSelector nodeSelector) {
+        this.nodeSelector = nodeSelector;
+        return this;
+    }
+
+    /**
+     * Set how long a node that failed is left alone before it gets a request
+     * again. The time doubles with every failure in a row, up to the maximum.
+     *
+     * @param initial
+     *            the time after the first failure
+     * @param max
+     *            the longest time
+     * @param unit
+     *            the unit of initial and max
+     * @return this config
+     */
+    public TransportConfig deadNodeBackoff(long initial, long max,
+            TimeUnit unit) {
+        this.initialDeadBackoffMillis = unit.toMillis(initial);
+        this.maxDeadBackoffMillis = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * Check every node in the background by requesting its banner. A dead
+     * node that answers is used again right away, instead of after its
+     * backoff; a node that does not answer is marked dead before a request
+     * has to fail on it.
+     *
+     * @param interval
+     *            the time between checks, 0 to not check, which is the
+     *            default
+     * @param unit
+     *            the unit of interval
+     * @return this config
+     */
+    public TransportConfig healthCheckInterval(long interval, TimeUnit unit) {
+        this.healthCheckIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * @param sniffOnStart
+     *            true to replace the given nodes by the data nodes of the
+     *            cluster as soon as the transport is created, see
+     *            {@link Sniffer}
+     * @return this config
+     */
+    public TransportConfig sniffOnStart(boolean sniffOnStart) {
+        this.sniffOnStart = sniffOnStart;
+        return this;
+    }
+
+    /**
+     * Look for nodes that joined or left the cluster in the background.
+     *
+     * @param interval
+     *            the time between two sniffs, 0 to not sniff in the
+     *            background, which is the default
+     * @param unit
+     *            the unit of interval
+     * @return this config
+     */
+    public TransportConfig sniffInterval(long interval, TimeUnit unit) {
+        this.sniffIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * Send request bodies of 1 KB or more gzip compressed, e.g. bulk requests
+     * of repetitive JSON over a slow network. The body is compressed while it
+     * is written to the connection, not buffered first.
+     *
+     * @param compressRequests
+     *            true to compress, false by default
+     * @return this config
+     */
+    public TransportConfig compressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+        return this;
+    }
+
+    /**
+     * @param level
+     *            the gzip level for request bodies, from 1 (fastest, the
+     *            default) to 9 (smallest)
+     * @return this config
+     */
+    public TransportConfig compressionLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be from 1 to 9");
+        }
+        this.compressionLevel = level;
+        return this;
+    }
+
+    /**
+     * @param acceptCompressedResponses
+     *            true to ask for gzip compressed responses, which Elasticsearch
+     *            sends when http.compression is enabled; true by default
+     * @return this config
+     */
+    public TransportConfig acceptCompressedResponses(
+            boolean acceptCompressedResponses) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+        return this;
+    }
+
+    /**
+     * @param ioThreads
+     *            the number of threads that send and receive the requests of
+     *            the async methods, e.g. {@link Transport#executeAsync}; the
+     *            number of processors by default
+     * @return this config
+     */
+    public TransportConfig ioThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be positive");
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * Limit the number of requests in flight to what the cluster copes with,
+     * lowering the limit when it answers 429 or slows down and raising it again
+     * when it recovers, see {@link ConcurrencyLimiter}. The limit starts at
+     * the connections per node and stays between 1 and the maximum number of
+     * connections.
+     *
+     * @param enabled
+     *            true to adapt the limit, false by default
+     * @return this config
+     */
+    public TransportConfig adaptiveConcurrency(boolean enabled) {
+        if (enabled) {
+            return adaptiveConcurrency(maxConnectionsPerRoute, 1,
+                    maxConnections);
+        }
+        initialConcurrency = 0;
+        return this;
+    }
+
+    /**
+     * @param initial
+     *            the number of requests allowed in flight at first
+     * @param min
+     *            the lowest the limit goes
+     * @param max
+     *            the highest the limit goes
+     * @return this config
+     * @see #adaptiveConcurrency(boolean)
+     */
+    public TransportConfig adaptiveConcurrency(int initial, int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Need 1 <= min <= max");
+        }
+        this.initialConcurrency = Math.max(min, Math.min(max, initial));
+        this.minConcurrency = min;
+        this.maxConcurrency = max;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public int getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public NodeSelector getNodeSelector() {
+        return nodeSelector;
+    }
+
+    public long getInitialDeadBackoffMillis() {
+        return initialDeadBackoffMillis;
+    }
+
+    public long getMaxDeadBackoffMillis() {
+        return maxDeadBackoffMillis;
+    }
+
+    public long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    public boolean isSniffOnStart() {
+        return sniffOnStart;
+    }
+
+    public long getSniffIntervalMillis() {
+        return sniffIntervalMillis;
+    }
+
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean isAcceptCompressedResponses() {
+        return acceptCompressedResponses;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return initialConcurrency > 0;
+    }
+
+    public int getInitialConcurrency() {
+        return initialConcurrency;
+    }
+
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    private static int toMillis(long timeout, TimeUnit unit) {
+        return (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+    }
+}
@@ -0,0 +1,128 @@
+package com.eriky.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after the task they run, e.g.
+ * <code>esrest-bulk-worker-1-2</code>, so that they are easy to recognize in
+ * thread dumps and never keep the JVM alive.
+ * <p>
+ * On Java 21 and later, the threads can be virtual threads instead, see
+ * {@link #useVirtualThreads(boolean)}, so that bulk workers, flushers,
+ * sniffers and scroll prefetchers that wait for Elasticsearch do not hold on
+ * to a platform thread each. The setting can also be given at startup with
+ * <code>-Desrest.virtualThreads=true</code>. It applies to every thread that
+ * is created after it is changed.
+ * </p>
+ *
+ * @author eriky
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method unstarted;
+    private static volatile boolean virtualThreads;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String prefix;
+    private final boolean mayBeVirtual;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method nameMethod = null;
+        Method unstartedMethod = null;
+        try {
+            // Thread.ofVirtual().name(name).unstarted(task), from Java 21 on
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            nameMethod = builder.getMethod("name", String.class);
+            unstartedMethod = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtualMethod = null;
+        }
+        ofVirtual = ofVirtualMethod;
+        builderName = nameMethod;
+        unstarted = unstartedMethod;
+        virtualThreads = ofVirtual != null
+                && Boolean.getBoolean("esrest.virtualThreads");
+    }
+
+    /**
+     * @param name
+     *            the name of the task, e.g. bulk-worker
+     */
+    public NamedThreadFactory(String name) {
+        this(name, true);
+    }
+
+    /**
+     * @param name
+     *            the name of the task, e.g. bulk-worker
+     * @param mayBeVirtual
+     *            false for threads that must stay platform threads, e.g. the
+     *            threads of an I/O reactor that never block on anything but
+     *            their selector
+     */
+    public NamedThreadFactory(String name, boolean mayBeVirtual) {
+        prefix = "esrest-" + name + "-" + poolNumber.getAndIncrement() + "-";
+        this.mayBeVirtual = mayBeVirtual;
+    }
+
+    /**
+     * Create the threads of esREST as virtual threads from now on, or as
+     * platform threads again.
+     *
+     * @param enabled
+     *            true for virtual threads
+     * @throws UnsupportedOperationException
+     *             if enabled and this JVM has no virtual threads
+     */
+    public static void useVirtualThreads(boolean enabled) {
+        if (enabled && !isVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads need Java 21 or later");
+        }
+        virtualThreads = enabled;
+    }
+
+    /**
+     * @return true if this JVM has virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * @return true if new threads are virtual threads
+     */
+    public static boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public Thread newThread(Runnable r) {
+        String name = prefix + threadNumber.getAndIncrement();
+        if (mayBeVirtual && virtualThreads) {
+            return newVirtualThread(name, r);
+        }
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Virtual threads are always daemon threads.
+     */
+    private static Thread newVirtualThread(String name, Runnable r) {
+        try {
+            Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+            return (Thread) unstarted.invoke(builder, r);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
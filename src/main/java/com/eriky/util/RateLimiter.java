@@ -0,0 +1,49 @@
+package com.eriky.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads work evenly over time, e.g. to index no more than a given number of
+ * documents per second. Every call to {@link #acquire()} reserves the next
+ * free slot and sleeps until it comes. Idle time is not saved up, so a pause
+ * is not followed by a burst.
+ *
+ * @author eriky
+ */
+public class RateLimiter {
+    private final long intervalNanos;
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond
+     *            the number of permits handed out per second
+     */
+    public RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException(
+                    "permitsPerSecond must be positive");
+        }
+        intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+
+    /**
+     * Wait until one permit is available.
+     *
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFreeNanos - now < 0) {
+                nextFreeNanos = now;
+            }
+            wait = nextFreeNanos - now;
+            nextFreeNanos += intervalNanos;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
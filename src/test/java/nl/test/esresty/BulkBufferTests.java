@@ -0,0 +1,99 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.eriky.bulk.BufferPool;
+import com.eriky.bulk.BulkBuffer;
+
+public class BulkBufferTests {
+
+    @Test
+    public void testWriteAcrossChunks() throws Exception {
+        BufferPool pool = new BufferPool(8, 4);
+        BulkBuffer buffer = new BulkBuffer(pool);
+        buffer.append("{ \"index\" : {} }\n");
+        buffer.append(new JSONObject("{ \"name\": \"caf\u00e9\" }"));
+        buffer.write('\n');
+
+        String expected = "{ \"index\" : {} }\n{\"name\":\"caf\u00e9\"}\n";
+        assertEquals(expected.getBytes("UTF-8").length, buffer.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertEquals(expected, out.toString("UTF-8"));
+
+        InputStream in = buffer.getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            read.write(b);
+        }
+        assertEquals(expected, read.toString("UTF-8"));
+    }
+
+    @Test
+    public void testReleaseReturnsChunksToPool() {
+        BufferPool pool = new BufferPool(8, 2);
+        BulkBuffer buffer = new BulkBuffer(pool);
+        buffer.append("0123456789012345678901234");
+        buffer.release();
+        assertEquals(0, buffer.size());
+        assertEquals(2, pool.getIdleChunks());
+
+        buffer.append("abc");
+        assertEquals(1, pool.getIdleChunks());
+    }
+
+    @Test
+    public void testCopyItem() throws Exception {
+        BufferPool pool = new BufferPool(8, 4);
+        BulkBuffer buffer = new BulkBuffer(pool);
+        buffer.startItem();
+        buffer.append("first item\n");
+        buffer.startItem();
+        buffer.append("second item\n");
+        buffer.startItem();
+        buffer.append("third\n");
+        assertEquals(3, buffer.getItemCount());
+        assertEquals("second item\n", new String(buffer.getItem(1), "UTF-8"));
+
+        BulkBuffer retry = new BulkBuffer(pool);
+        buffer.copyItemTo(2, retry);
+        buffer.copyItemTo(0, retry);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        retry.writeTo(out);
+        assertEquals("third\nfirst item\n", out.toString("UTF-8"));
+        assertEquals(2, retry.getItemCount());
+        assertEquals("first item\n", new String(retry.getItem(1), "UTF-8"));
+    }
+
+    @Test
+    public void testDiscardItemAcrossChunks() throws Exception {
+        BufferPool pool = new BufferPool(8, 8);
+        BulkBuffer buffer = new BulkBuffer(pool);
+        buffer.startItem();
+        buffer.append("first\n");
+        buffer.startItem();
+        buffer.write(ByteBuffer.wrap("0123456789012345678".getBytes("UTF-8")));
+        buffer.discardItem();
+        assertEquals(1, buffer.getItemCount());
+        assertEquals(6, buffer.size());
+
+        buffer.startItem();
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put("second\n".getBytes("UTF-8")).flip();
+        buffer.write(direct);
+        assertEquals(0, direct.position());
+        assertEquals("second\n", new String(buffer.getItem(1), "UTF-8"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertEquals("first\nsecond\n", out.toString("UTF-8"));
+    }
+}
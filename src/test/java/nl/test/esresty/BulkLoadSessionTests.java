@@ -0,0 +1,124 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.EsRESTException;
+import com.eriky.bulk.BulkLoadSession;
+
+public class BulkLoadSessionTests {
+    StubServer server;
+    EsREST client;
+    final List<String> requests = new ArrayList<String>();
+    JSONObject testDocument = new JSONObject("{ \"name\": \"test\" }");
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                String method = request.method;
+                String path = request.path();
+                synchronized (requests) {
+                    requests.add(method + " " + path + " " + request.body);
+                }
+                String response = "{}";
+                if (path.equals("/testindex/_settings") && method.equals("GET")) {
+                    response = "{\"testindex\":{\"settings\":{"
+                            + "\"index.number_of_replicas\":\"2\"}}}";
+                } else if (path.equals("/_bulk")) {
+                    response = "{\"took\":1,\"errors\":false,\"items\":[]}";
+                } else if (path.equals("/_cluster/health")) {
+                    response = "{\"status\":\"green\",\"timed_out\":false}";
+                }
+                return StubServer.Reply.ok(response);
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testSettingsAreToggled() throws Exception {
+        BulkLoadSession session = client.startBulkLoad("testindex", 1);
+        try {
+            session.setBulkSize(2);
+            for (int i = 0; i < 5; i++) {
+                session.add("testtype", Integer.toString(i), testDocument);
+            }
+        } finally {
+            session.close();
+        }
+
+        List<String> paths = paths();
+        assertEquals("GET /testindex/_settings", paths.get(0));
+        assertTrue(requests.get(1).startsWith("PUT /testindex/_settings"));
+        assertTrue(requests.get(1).contains("\"refresh_interval\":\"-1\""));
+        assertTrue(requests.get(1).contains("\"number_of_replicas\":0"));
+        int restore = paths.lastIndexOf("PUT /testindex/_settings");
+        assertTrue(restore > paths.lastIndexOf("PUT /_bulk"));
+        assertTrue(requests.get(restore).contains("\"refresh_interval\":\"1s\""));
+        assertTrue(requests.get(restore).contains("\"number_of_replicas\":\"2\""));
+        assertEquals("POST /testindex/_refresh", paths.get(restore + 1));
+        assertEquals("GET /_cluster/health", paths.get(restore + 2));
+        assertEquals(3, count(paths, "PUT /_bulk"));
+    }
+
+    @Test
+    public void testSettingsAreRestoredWhenTheLoadFails() throws Exception {
+        BulkLoadSession session = client.startBulkLoad("testindex", 0);
+        try {
+            session.add("testtype", "1", testDocument);
+            throw new IllegalStateException("source failed");
+        } catch (IllegalStateException e) {
+            // the load stops partway
+        } finally {
+            session.close();
+        }
+        List<String> paths = paths();
+        assertEquals(1, count(paths, "PUT /_bulk"));
+        assertEquals(2, count(paths, "PUT /testindex/_settings"));
+        assertTrue(requests.get(paths.lastIndexOf("PUT /testindex/_settings"))
+                .contains("\"refresh_interval\":\"1s\""));
+        assertTrue(paths.contains("POST /testindex/_refresh"));
+    }
+
+    @Test(expected = EsRESTException.class)
+    public void testStartFailsWithoutCluster() throws Exception {
+        new EsREST("http://localhost:9201").startBulkLoad("testindex", 0);
+    }
+
+    private static int count(List<String> paths, String path) {
+        int count = 0;
+        for (String each : paths) {
+            if (each.equals(path)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<String> paths() {
+        List<String> paths = new ArrayList<String>();
+        synchronized (requests) {
+            for (String request : requests) {
+                String[] parts = request.split(" ");
+                paths.add(parts[0] + " " + parts[1]);
+            }
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,499 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.eriky.bulk.BulkAction;
+import com.eriky.bulk.BulkFailureHandler;
+import com.eriky.bulk.BulkItemFailure;
+import com.eriky.bulk.BulkListener;
+import com.eriky.bulk.BulkProcessor;
+import com.eriky.bulk.FlushPolicy;
+import com.eriky.json.JsonEncoder;
+import com.eriky.transport.Transport;
+import com.eriky.transport.TransportConfig;
+
+public class BulkProcessorTests {
+    String invalidUrl = "http://localhost:9201";
+    String testIndexName = "testindex";
+    String testType = "testtype";
+    JSONObject testDocument = new JSONObject("{ \"name\": \"test\" }");
+
+    @Test
+    public void testInlineFailureKeepsDocuments() throws Exception {
+        final AtomicInteger failedItems = new AtomicInteger();
+        BulkProcessor processor = new BulkProcessor(invalidUrl);
+        processor.setBulkSize(2);
+        processor.setFailureHandler(new BulkFailureHandler() {
+            public void onFailure(BulkItemFailure failure) {
+                failedItems.incrementAndGet();
+            }
+        });
+        processor.add(testIndexName, testType, "1", testDocument);
+        Future<Boolean> batch = processor.add(testIndexName, testType, "2",
+                testDocument);
+        assertTrue(batch.isDone());
+        assertFalse(batch.get());
+        assertEquals(2, processor.getCurrentBulkSize());
+        assertEquals(0, failedItems.get());
+    }
+
+    @Test
+    public void testInlineBatchIsSentLater() throws Exception {
+        final List<String> bodies = new ArrayList<String>();
+        StubServer.Route route = new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                synchronized (bodies) {
+                    bodies.add(request.body);
+                }
+                return StubServer.Reply
+                        .ok("{\"took\":1,\"errors\":false,\"items\":[]}");
+            }
+        };
+        // the node is down while the first batch fills up
+        StubServer server = new StubServer(route);
+        int port = server.getPort();
+        BulkProcessor processor = new BulkProcessor(server.getUrl());
+        server.stop();
+        processor.setBulkSize(2);
+        processor.add(testIndexName, testType, "1", testDocument);
+        Future<Boolean> first = processor.add(testIndexName, testType, "2",
+                testDocument);
+        // not sent yet, the documents are still queued
+        assertFalse(first.get());
+        assertEquals(2, processor.getCurrentBulkSize());
+
+        server = new StubServer(port, route);
+        try {
+            Future<Boolean> second = processor.add(testIndexName, testType,
+                    "3", testDocument);
+            assertTrue(second.get());
+            assertEquals(1, bodies.size());
+            assertEquals(6, bodies.get(0).split("\n").length);
+            assertEquals(0, processor.getCurrentBulkSize());
+        } finally {
+            processor.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSerializedDocuments() throws Exception {
+        BulkProcessor processor = new BulkProcessor(invalidUrl);
+        processor.setBulkSize(10);
+        processor.add(testIndexName, testType, "1",
+                "{\"name\":\"bytes\"}".getBytes("UTF-8"));
+        processor.add(testIndexName, testType, "2",
+                ByteBuffer.wrap("{\"name\":\"buffer\"}".getBytes("UTF-8")));
+        processor.add(testIndexName, testType, "3", "encoded",
+                new JsonEncoder<String>() {
+                    public void encode(String document, OutputStream out)
+                            throws IOException {
+                        out.write(("{\"name\":\"" + document + "\"}")
+                                .getBytes("UTF-8"));
+                    }
+                });
+        assertEquals(3, processor.getCurrentBulkSize());
+
+        try {
+            processor.add(testIndexName, testType, "4", "{\n}".getBytes("UTF-8"));
+            fail("A document with a line break must be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            processor.add(testIndexName, testType, "5", "broken",
+                    new JsonEncoder<String>() {
+                        public void encode(String document, OutputStream out)
+                                throws IOException {
+                            out.write('{');
+                            throw new IOException(document);
+                        }
+                    });
+            fail("The encoder failure must be passed on");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(3, processor.getCurrentBulkSize());
+    }
+
+    @Test
+    public void testWorkersReportEveryBatch() throws Exception {
+        final AtomicInteger documents = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger failedItems = new AtomicInteger();
+        BulkProcessor processor = new BulkProcessor(invalidUrl, 2, 1);
+        processor.setBulkSize(5);
+        processor.setFailureHandler(new BulkFailureHandler() {
+            public void onFailure(BulkItemFailure failure) {
+                failedItems.incrementAndGet();
+            }
+        });
+        processor.setListener(new BulkListener() {
+            public void afterBulk(int numberOfDocuments, boolean success) {
+                documents.addAndGet(numberOfDocuments);
+                if (!success) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+
+        Future<Boolean> batch = null;
+        for (int i = 0; i < 23; i++) {
+            batch = processor.add(testIndexName, testType,
+                    Integer.toString(i), testDocument);
+        }
+        assertEquals(3, processor.getCurrentBulkSize());
+        processor.close();
+
+        assertFalse(batch.get());
+        assertEquals(23, documents.get());
+        assertEquals(5, failures.get());
+        // a worker cannot keep a batch that was not sent, so it reports it
+        assertEquals(23, failedItems.get());
+        assertEquals(0, processor.getCurrentBulkSize());
+    }
+
+    @Test
+    public void testFlushPolicy() {
+        FlushPolicy policy = new FlushPolicy().maxDocuments(10).maxBytes(100)
+                .maxAge(1, TimeUnit.SECONDS);
+        assertFalse(policy.isFull(9, 100));
+        assertTrue(policy.isFull(10, 0));
+        assertTrue(policy.isFull(1, 101));
+        assertFalse(policy.isExpired(TimeUnit.MILLISECONDS.toNanos(999)));
+        assertTrue(policy.isExpired(TimeUnit.SECONDS.toNanos(1)));
+        assertFalse(new FlushPolicy().isExpired(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testFlusherSendsOldBatch() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        BulkProcessor processor = new BulkProcessor(invalidUrl, 1, 0);
+        processor.setFlushPolicy(new FlushPolicy().maxAge(20,
+                TimeUnit.MILLISECONDS));
+        processor.setListener(new BulkListener() {
+            public void afterBulk(int numberOfDocuments, boolean success) {
+                sent.countDown();
+            }
+        });
+        processor.add(testIndexName, testType, "1", testDocument);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(0, processor.getCurrentBulkSize());
+        processor.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterClose() {
+        BulkProcessor processor = new BulkProcessor(invalidUrl, 1, 0);
+        processor.close();
+        processor.add(testIndexName, testType, "1", testDocument);
+    }
+
+    @Test
+    public void testOnlyRejectedItemsAreRetried() throws Exception {
+        final List<String> bodies = new ArrayList<String>();
+        final String[] responses = {
+                "{\"took\":1,\"errors\":true,\"items\":["
+                        + "{\"index\":{\"_id\":\"1\",\"status\":201}},"
+                        + "{\"index\":{\"_id\":\"2\",\"status\":429}},"
+                        + "{\"index\":{\"_id\":\"3\",\"status\":400,\"error\":\"bad\"}}]}",
+                "{\"took\":1,\"errors\":false,\"items\":["
+                        + "{\"index\":{\"_id\":\"2\",\"status\":201}}]}" };
+        StubServer server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                synchronized (bodies) {
+                    bodies.add(request.body);
+                    return StubServer.Reply.ok(responses[bodies.size() - 1]);
+                }
+            }
+        });
+        try {
+            final List<BulkItemFailure> failures = new ArrayList<BulkItemFailure>();
+            BulkProcessor processor = new BulkProcessor(server.getUrl());
+            processor.setBulkSize(3);
+            processor.setRetries(2, 1);
+            processor.setFailureHandler(new BulkFailureHandler() {
+                public void onFailure(BulkItemFailure failure) {
+                    failures.add(failure);
+                }
+            });
+            processor.add(testIndexName, testType, "1", testDocument);
+            processor.add(testIndexName, testType, "2", testDocument);
+            Future<Boolean> batch = processor.add(testIndexName, testType, "3",
+                    testDocument);
+
+            assertFalse(batch.get());
+            assertEquals(0, processor.getCurrentBulkSize());
+            assertEquals(2, bodies.size());
+            assertTrue(bodies.get(1).contains("\"_id\" : \"2\""));
+            assertEquals(2, bodies.get(1).split("\n").length);
+            assertEquals(1, failures.size());
+            assertEquals("3", failures.get(0).getId());
+            assertEquals(400, failures.get(0).getStatus());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTruncatedResponseFailsUnreadItemsOnce() throws Exception {
+        final List<String> bodies = new ArrayList<String>();
+        StubServer server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                synchronized (bodies) {
+                    bodies.add(request.body);
+                }
+                return StubServer.Reply.ok("{\"took\":1,\"errors\":true,\"items\":["
+                        + "{\"index\":{\"_id\":\"1\",\"status\":400,\"error\":\"bad\"}},"
+                        + "{\"index\":{\"_id\":\"2\",\"sta");
+            }
+        });
+        try {
+            BulkProcessor[] processors = {
+                    new BulkProcessor(server.getUrl()),
+                    new BulkProcessor(server.getUrl(), 1, 1) };
+            for (BulkProcessor processor : processors) {
+                bodies.clear();
+                final List<BulkItemFailure> failures = new ArrayList<BulkItemFailure>();
+                processor.setBulkSize(3);
+                processor.setFailureHandler(new BulkFailureHandler() {
+                    public void onFailure(BulkItemFailure failure) {
+                        synchronized (failures) {
+                            failures.add(failure);
+                        }
+                    }
+                });
+                processor.add(testIndexName, testType, "1", testDocument);
+                processor.add(testIndexName, testType, "2", testDocument);
+                Future<Boolean> batch = processor.add(testIndexName, testType,
+                        "3", testDocument);
+
+                assertFalse(batch.get(10, TimeUnit.SECONDS));
+                processor.close();
+                // the items were applied, so they are not sent again
+                assertEquals(0, processor.getCurrentBulkSize());
+                assertEquals(1, bodies.size());
+                assertEquals(3, failures.size());
+                assertEquals("1", failures.get(0).getId());
+                assertEquals(400, failures.get(0).getStatus());
+                assertEquals("2", failures.get(1).getId());
+                assertEquals(0, failures.get(1).getStatus());
+                assertEquals("3", failures.get(2).getId());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMixedActions() throws Exception {
+        final List<String> bodies = new ArrayList<String>();
+        StubServer server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                bodies.add(request.body);
+                return StubServer.Reply.ok("{\"took\":1,\"errors\":true,\"items\":["
+                        + "{\"create\":{\"_id\":\"1\",\"status\":409,\"error\":\"exists\"}},"
+                        + "{\"update\":{\"_id\":\"2\",\"status\":200}},"
+                        + "{\"delete\":{\"_id\":\"3\",\"status\":404,\"found\":false}}]}");
+            }
+        });
+        try {
+            final List<BulkItemFailure> failures = new ArrayList<BulkItemFailure>();
+            BulkProcessor processor = new BulkProcessor(server.getUrl());
+            processor.setBulkSize(3);
+            processor.setFailureHandler(new BulkFailureHandler() {
+                public void onFailure(BulkItemFailure failure) {
+                    failures.add(failure);
+                }
+            });
+            processor.add(BulkAction.create(testIndexName, testType, "1")
+                    .routing("user\"1"), testDocument);
+            processor.add(BulkAction.update(testIndexName, testType, "2")
+                    .retryOnConflict(3), BulkAction.doc(testDocument, true));
+            Future<Boolean> batch = processor.add(BulkAction.delete(
+                    testIndexName, testType, "3").version(7).versionType(
+                    "external"));
+
+            assertFalse(batch.get());
+            String[] lines = bodies.get(0).split("\n");
+            assertEquals(5, lines.length);
+            assertEquals("user\"1", new JSONObject(lines[0])
+                    .getJSONObject("create").getString("_routing"));
+            assertEquals(3, new JSONObject(lines[2]).getJSONObject("update")
+                    .getInt("_retry_on_conflict"));
+            assertTrue(new JSONObject(lines[3]).getBoolean("doc_as_upsert"));
+            JSONObject delete = new JSONObject(lines[4]).getJSONObject("delete");
+            assertEquals(7, delete.getLong("_version"));
+            assertEquals("external", delete.getString("_version_type"));
+            assertEquals(1, failures.size());
+            assertEquals("create", failures.get(0).getAction());
+            assertEquals("1", failures.get(0).getId());
+
+            try {
+                processor.add(BulkAction.update(testIndexName, testType, "4"));
+                fail("An update needs a body");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testShardPartitioning() throws Exception {
+        final List<String> bulks = new ArrayList<String>();
+        final AtomicInteger lookups = new AtomicInteger();
+        StubServer[] servers = new StubServer[2];
+        final int[] ports = new int[2];
+        for (int i = 0; i < servers.length; i++) {
+            final String node = i == 0 ? "a" : "b";
+            servers[i] = new StubServer(new StubServer.Route() {
+                public StubServer.Reply handle(StubServer.StubRequest request) {
+                    String path = request.path();
+                    String query = request.uri.getQuery();
+                    String response = "{\"took\":1,\"errors\":false,\"items\":[]}";
+                    if (path.equals("/_nodes/http")) {
+                        response = "{\"nodes\":{"
+                                + "\"a\":{\"http\":{\"publish_address\":\"127.0.0.1:" + ports[0] + "\"}},"
+                                + "\"b\":{\"http\":{\"publish_address\":\"127.0.0.1:" + ports[1] + "\"}}}}";
+                    } else if (path.endsWith("/_search_shards")) {
+                        lookups.incrementAndGet();
+                        if ("routing=r1".equals(query)) {
+                            response = "{\"shards\":[[" + shard(0, "a", true)
+                                    + "," + shard(0, "b", false) + "]]}";
+                        } else if ("routing=r2".equals(query)) {
+                            response = "{\"shards\":[[" + shard(1, "b", true)
+                                    + "]]}";
+                        } else {
+                            response = "{\"shards\":[[" + shard(0, "a", true)
+                                    + "],[" + shard(1, "b", true) + "],["
+                                    + shard(2, "b", true) + "]]}";
+                        }
+                    } else if (path.equals("/_bulk")) {
+                        synchronized (bulks) {
+                            bulks.add(node + " " + request.body);
+                        }
+                    }
+                    return StubServer.Reply.ok(response);
+                }
+            });
+            ports[i] = servers[i].getPort();
+        }
+        Transport transport = new Transport(Arrays.asList("http://127.0.0.1:"
+                + ports[0], "http://127.0.0.1:" + ports[1]),
+                new TransportConfig());
+        try {
+            BulkProcessor processor = new BulkProcessor(transport);
+            processor.setBulkSize(100);
+            processor.setPartitioning(BulkProcessor.Partitioning.SHARD);
+            processor.getShardLocator().refresh(testIndexName, "r1", "r2");
+            assertEquals(3, lookups.get());
+            for (int i = 0; i < 3; i++) {
+                processor.add(BulkAction.index(testIndexName, testType, "r1-"
+                        + i).routing("r1"), testDocument);
+            }
+            for (int i = 0; i < 2; i++) {
+                processor.add(BulkAction.index(testIndexName, testType, "r2-"
+                        + i).routing("r2"), testDocument);
+                processor.add(testIndexName, testType, "n-" + i, testDocument);
+                // not known yet, goes with the index while it is looked up
+                processor.add(BulkAction.index(testIndexName, testType, "r3-"
+                        + i).routing("r3"), testDocument);
+            }
+            assertEquals(9, processor.getCurrentBulkSize());
+            assertTrue(processor.flush().get());
+            // known shards are not looked up again for every action
+            assertTrue(lookups.get() <= 4);
+
+            assertEquals(3, bulks.size());
+            for (String bulk : bulks) {
+                if (bulk.contains("r1-")) {
+                    assertTrue(bulk.startsWith("a "));
+                    assertEquals(6, bulk.split("\n").length);
+                } else if (bulk.contains("r2-")) {
+                    assertTrue(bulk.startsWith("b "));
+                    assertFalse(bulk.contains("n-"));
+                } else {
+                    assertTrue(bulk.startsWith("b "));
+                    assertTrue(bulk.contains("r3-"));
+                    assertEquals(8, bulk.split("\n").length);
+                }
+            }
+        } finally {
+            transport.close();
+            for (StubServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger malformed = new AtomicInteger();
+        StubServer server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                String[] lines = request.body.split("\n");
+                for (int i = 0; i < lines.length; i += 2) {
+                    try {
+                        new JSONObject(lines[i]).getJSONObject("index");
+                        new JSONObject(lines[i + 1]);
+                    } catch (RuntimeException e) {
+                        malformed.incrementAndGet();
+                    }
+                }
+                received.addAndGet(lines.length / 2);
+                return StubServer.Reply
+                        .ok("{\"took\":1,\"errors\":false,\"items\":[]}");
+            }
+        });
+        try {
+            final BulkProcessor processor = new BulkProcessor(
+                    server.getUrl(), 2, 2, 4);
+            processor.setBulkSize(50);
+            Thread[] producers = new Thread[8];
+            for (int t = 0; t < producers.length; t++) {
+                final int thread = t;
+                producers[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 200; i++) {
+                            processor.add(testIndexName, testType, thread + "-"
+                                    + i, testDocument);
+                        }
+                    }
+                };
+                producers[t].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            processor.close();
+            assertEquals(0, processor.getCurrentBulkSize());
+            assertEquals(1600, received.get());
+            assertEquals(0, malformed.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String shard(int shard, String node, boolean primary) {
+        return "{\"index\":\"testindex\",\"shard\":" + shard + ",\"node\":\""
+                + node + "\",\"primary\":" + primary
+                + ",\"state\":\"STARTED\"}";
+    }
+}
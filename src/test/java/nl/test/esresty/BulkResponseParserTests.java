@@ -0,0 +1,86 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.eriky.bulk.BulkItemFailure;
+import com.eriky.bulk.BulkResponseParser;
+
+public class BulkResponseParserTests {
+
+    private static class Collector implements BulkResponseParser.ItemHandler {
+        List<Integer> statuses = new ArrayList<Integer>();
+
+        List<String> errors = new ArrayList<String>();
+
+        public void onItem(int position, String action, int status,
+                String error) {
+            assertEquals(statuses.size(), position);
+            assertEquals("index", action);
+            statuses.add(status);
+            errors.add(error);
+        }
+    }
+
+    private static boolean parse(String response, Collector collector)
+            throws IOException {
+        return BulkResponseParser.parse(
+                new ByteArrayInputStream(response.getBytes("UTF-8")), collector);
+    }
+
+    @Test
+    public void testItemsAreNotReadWithoutErrors() throws IOException {
+        Collector collector = new Collector();
+        assertTrue(parse("{\"took\":3,\"errors\":false,\"items\":["
+                + "{\"index\":{\"_id\":\"1\",\"status\":201}}]}", collector));
+        assertTrue(collector.statuses.isEmpty());
+    }
+
+    @Test
+    public void testEveryItemIsReported() throws IOException {
+        Collector collector = new Collector();
+        assertFalse(parse("{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_id\":\"1\",\"status\":201}},"
+                + "{\"index\":{\"_id\":\"2\",\"status\":429,"
+                + "\"error\":\"EsRejectedExecutionException\"}},"
+                + "{\"index\":{\"_id\":\"3\",\"status\":400,"
+                + "\"error\":{\"type\":\"mapper_parsing_exception\"}}}]}",
+                collector));
+        assertEquals(3, collector.statuses.size());
+        assertEquals(Integer.valueOf(429), collector.statuses.get(1));
+        assertNull(collector.errors.get(0));
+        assertEquals("EsRejectedExecutionException", collector.errors.get(1));
+        assertEquals("mapper_parsing_exception", new JSONObject(
+                collector.errors.get(2)).getString("type"));
+    }
+
+    @Test
+    public void testResponseWithoutErrorsFlag() throws IOException {
+        Collector collector = new Collector();
+        assertTrue(parse("{\"took\":3,\"items\":["
+                + "{\"index\":{\"_id\":\"1\",\"status\":201}}]}", collector));
+        assertEquals(1, collector.statuses.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidResponse() throws IOException {
+        parse("<html></html>", new Collector());
+    }
+
+    @Test
+    public void testFailureReadsMetadataFromItem() throws Exception {
+        byte[] item = ("{ \"index\" : { \"_index\" : \"i\", \"_type\" : \"t\", "
+                + "\"_id\" : \"7\" } }\n{\"a\":1}\n").getBytes("UTF-8");
+        BulkItemFailure failure = new BulkItemFailure(item, 400, "error");
+        assertEquals("i", failure.getIndex());
+        assertEquals("t", failure.getType());
+        assertEquals("7", failure.getId());
+    }
+}
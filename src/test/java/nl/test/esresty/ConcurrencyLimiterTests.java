@@ -0,0 +1,88 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.eriky.transport.ConcurrencyLimiter;
+
+public class ConcurrencyLimiterTests {
+    static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long ROUND = 50 * MILLI;
+
+    @Test
+    public void testGrowsWhileUsedAndShrinksOnOverload() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < limiter.getLimit(); i++) {
+                assertTrue(limiter.tryAcquire());
+            }
+            assertFalse(limiter.tryAcquire());
+            while (limiter.getInFlight() > 0) {
+                limiter.release(ROUND, false);
+            }
+        }
+        assertEquals(8, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire());
+        limiter.release(ROUND, true);
+        assertEquals(6, limiter.getLimit());
+        // a burst of failures in the same round counts once
+        assertTrue(limiter.tryAcquire());
+        limiter.release(ROUND, true);
+        assertEquals(6, limiter.getLimit());
+        Thread.sleep(60);
+        limiter.overloaded();
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testIdleLimitDoesNotGrow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(MILLI, false);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    public void testShrinksWhenLatencyRises() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 10);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+            limiter.release(MILLI, false);
+        }
+        for (int i = 0; i < 50 && limiter.getLimit() > 2; i++) {
+            limiter.tryAcquire();
+            limiter.release(200 * MILLI, false);
+            Thread.sleep(1);
+        }
+        assertTrue(limiter.toString(), limiter.getLimit() < 10);
+    }
+
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+        limiter.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    limiter.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // test fails on the latch
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(MILLI, false);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+}
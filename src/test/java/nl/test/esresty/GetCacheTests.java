@@ -0,0 +1,137 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.requests.GetCache;
+
+public class GetCacheTests {
+    String testIndexName = "testindex";
+    String testType = "testtype";
+    StubServer server;
+    EsREST client;
+    final List<String> requests = new ArrayList<String>();
+    volatile int version = 1;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                String uri = request.uri.toString();
+                synchronized (requests) {
+                    requests.add(request.method + " " + uri);
+                }
+                int status = 200;
+                String[] path = request.path().split("/");
+                JSONObject body = new JSONObject();
+                if (uri.endsWith("/_bulk")) {
+                    version++;
+                    body.put("errors", false).put(
+                            "items",
+                            new JSONArray().put(new JSONObject().put("index",
+                                    new JSONObject().put("status", 201))));
+                } else if ("PUT".equals(request.method)) {
+                    version++;
+                    status = 201;
+                } else if (uri.contains("version=")
+                        && !uri.contains("version=" + version)) {
+                    status = 409;
+                } else {
+                    body.put("_id", path[3]).put("_version", version)
+                            .put("found", true);
+                }
+                return new StubServer.Reply(status, body.toString());
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    private JSONObject get(String id) throws Exception {
+        return client.getDocument().withIndex(testIndexName).withType(testType)
+                .id(id).execute();
+    }
+
+    @Test
+    public void testHitAndInvalidate() throws Exception {
+        GetCache cache = new GetCache(100, 1, TimeUnit.MINUTES);
+        client.setGetCache(cache);
+
+        assertEquals(1, get("1").getInt("_version"));
+        assertEquals(1, get("1").getInt("_version"));
+        assertEquals(1, requests.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRate(), 0.0001);
+
+        assertTrue(client.index(testIndexName, testType, "1", new JSONObject()));
+        assertEquals(2, get("1").getInt("_version"));
+        assertEquals(3, requests.size());
+        assertEquals(1, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void testBulkInvalidatesAfterBatch() throws Exception {
+        GetCache cache = new GetCache(100, 1, TimeUnit.MINUTES);
+        client.setGetCache(cache);
+        client.setBulkSize(10);
+
+        get("1");
+        assertTrue(client.bulkIndex(testIndexName, testType, "1",
+                new JSONObject()));
+        // read before the batch is sent, caches the old document again
+        assertEquals(1, get("1").getInt("_version"));
+        assertTrue(client.doBulkRequest());
+        assertEquals(2, get("1").getInt("_version"));
+    }
+
+    @Test
+    public void testRevalidateByVersion() throws Exception {
+        GetCache cache = new GetCache(100, 1, TimeUnit.MILLISECONDS);
+        client.setGetCache(cache);
+
+        JSONObject first = get("1");
+        Thread.sleep(5);
+        assertSame(first, get("1"));
+        assertTrue(requests.get(1).contains("version=1"));
+        assertEquals(1, cache.getRevalidationCount());
+
+        version++;
+        Thread.sleep(5);
+        assertEquals(2, get("1").getInt("_version"));
+        assertEquals(4, requests.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        GetCache cache = new GetCache(2, 1, TimeUnit.MINUTES);
+        client.setGetCache(cache);
+
+        get("1");
+        get("2");
+        get("1");
+        get("3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        get("1");
+        assertEquals(3, requests.size());
+        get("2");
+        assertEquals(4, requests.size());
+    }
+}
@@ -0,0 +1,78 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonDecoders;
+import com.eriky.json.JsonReader;
+import com.eriky.requests.Response;
+
+public class JsonReaderTests {
+
+    private static JsonReader reader(String json) {
+        return new JsonReader(new StringReader(json));
+    }
+
+    @Test
+    public void testTokens() throws IOException {
+        JsonReader reader = reader(" {\"a\" : [1, -2.5e3, \"x\\ty\\u00e9\"],"
+                + " \"b\":true, \"c\":null, \"d\":{}} ");
+        reader.beginObject();
+        assertEquals("a", reader.nextName());
+        reader.beginArray();
+        assertEquals(1, reader.nextInt());
+        assertEquals(-2500.0, reader.nextDouble(), 0);
+        assertEquals("x\ty\u00e9", reader.nextString());
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("b", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("c", reader.nextName());
+        assertEquals(JsonReader.Token.NULL, reader.peek());
+        reader.nextNull();
+        assertEquals("d", reader.nextName());
+        reader.skipValue();
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void testReadValueMatchesOrgJson() throws IOException {
+        String json = "{\"s\":\"t\",\"n\":12345678901,\"f\":1.5,"
+                + "\"a\":[1,{\"x\":null}],\"b\":false}";
+        Object value = reader(json).readValue();
+        assertEquals(new JSONObject(json).toString(), value.toString());
+        assertTrue(((JSONObject) value).get("a") instanceof JSONArray);
+    }
+
+    @Test
+    public void testFieldDecoder() throws IOException {
+        JsonDecoder<Long> version = new JsonDecoder<Long>() {
+            public Long decode(JsonReader reader) throws IOException {
+                return reader.nextLong();
+            }
+        };
+        Response response = new Response(200, null,
+                ("{\"_id\":\"1\",\"_source\":{\"big\":[1,2,3]},\"_version\":4}")
+                        .getBytes("UTF-8"));
+        assertEquals(Long.valueOf(4),
+                response.getBody(JsonDecoders.field("_version", version)));
+        assertEquals(3, response.getBodyAsJson().getJSONObject("_source")
+                .getJSONArray("big").length());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidJson() throws IOException {
+        JsonReader reader = reader("{\"a\" 1}");
+        reader.beginObject();
+        reader.nextName();
+        reader.nextInt();
+    }
+}
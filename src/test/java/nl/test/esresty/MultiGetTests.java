@@ -0,0 +1,131 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.requests.Get;
+import com.eriky.requests.MultiGet;
+
+public class MultiGetTests {
+    String testIndexName = "testindex";
+    String testType = "testtype";
+    StubServer server;
+    String url;
+    final List<JSONObject> requests = new ArrayList<JSONObject>();
+    final List<String> queries = new ArrayList<String>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                JSONObject mget = new JSONObject(request.body);
+                synchronized (requests) {
+                    requests.add(mget);
+                    queries.add(request.query());
+                }
+                JSONArray docs = new JSONArray();
+                JSONArray asked = mget.getJSONArray("docs");
+                for (int i = 0; i < asked.length(); i++) {
+                    String id = asked.getJSONObject(i).getString("_id");
+                    JSONObject doc = new JSONObject().put("_id", id);
+                    if (id.startsWith("missing")) {
+                        doc.put("found", false);
+                    } else {
+                        doc.put("found", true).put("_source",
+                                new JSONObject().put("id", id));
+                    }
+                    docs.put(doc);
+                }
+                return StubServer.Reply.ok(new JSONObject().put("docs", docs)
+                        .toString());
+            }
+        });
+        url = server.getUrl();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testResultsInOrder() throws Exception {
+        List<JSONObject> results = new MultiGet(url).withIndex(testIndexName)
+                .withType(testType).add("1").add("missing")
+                .add(new Get(url).withIndex("other").id("2").routing("r2")
+                        .fields("a,b").sourceOnly(true))
+                .preference("_local").execute();
+
+        assertEquals(3, results.size());
+        assertEquals("1", results.get(0).getString("_id"));
+        assertNull(results.get(1));
+        assertEquals("2", results.get(2).getString("id"));
+
+        JSONObject doc = requests.get(0).getJSONArray("docs").getJSONObject(2);
+        assertEquals("other", doc.getString("_index"));
+        assertEquals("r2", doc.getString("_routing"));
+        assertEquals(2, doc.getJSONArray("fields").length());
+        assertEquals("preference=_local", queries.get(0));
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        Future<List<JSONObject>> future = new MultiGet(url)
+                .withIndex(testIndexName).add("1").add("missing")
+                .executeAsync(null);
+        List<JSONObject> results = future.get(10, TimeUnit.SECONDS);
+        assertEquals(2, results.size());
+        assertEquals("1", results.get(0).getString("_id"));
+        assertNull(results.get(1));
+    }
+
+    @Test
+    public void testCoalescedGets() throws Exception {
+        final EsREST client = new EsREST(url);
+        client.setGetCoalescing(200, TimeUnit.MILLISECONDS, 100);
+        final AtomicInteger correct = new AtomicInteger();
+        Thread[] readers = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            final String id = Integer.toString(t);
+            readers[t] = new Thread() {
+                public void run() {
+                    try {
+                        JSONObject doc = client.getDocument()
+                                .withIndex(testIndexName).id(id).execute();
+                        if (id.equals(doc.getString("_id"))) {
+                            correct.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // counted as incorrect
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        client.close();
+
+        assertEquals(8, correct.get());
+        assertTrue(requests.size() < 8);
+        int documents = 0;
+        for (JSONObject request : requests) {
+            documents += request.getJSONArray("docs").length();
+        }
+        assertEquals(8, documents);
+    }
+}
@@ -0,0 +1,142 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.EsRESTException;
+import com.eriky.requests.MultiSearch;
+import com.eriky.requests.SearchResult;
+
+public class MultiSearchTests {
+    StubServer server;
+    EsREST client;
+    final List<String> requests = new ArrayList<String>();
+    int status = 200;
+    String response = "{\"took\":5,\"responses\":["
+            + "{\"took\":1,\"hits\":{\"total\":2,\"hits\":["
+            + "{\"_id\":\"a\",\"_source\":{\"text\":\"]}\\\"{\"}},"
+            + "{\"_id\":\"b\",\"_source\":{}}]},\"status\":200},"
+            + "{\"error\":{\"type\":\"index_not_found_exception\"},\"status\":404},"
+            + "{\"took\":2,\"hits\":{\"total\":{\"value\":9},\"hits\":[]},"
+            + "\"aggregations\":{\"n\":{\"value\":3}},\"status\":200}]}";
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                synchronized (requests) {
+                    requests.add(request.method + " " + request.uri + "\n"
+                            + request.body);
+                }
+                return new StubServer.Reply(status, response);
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testDemultiplexedResults() throws Exception {
+        MultiSearch searches = client.multiSearch().maxConcurrentSearches(4);
+        Future<SearchResult<JSONObject>> first = searches.add(client.search()
+                .withIndex("orders").routing("r1").size(2));
+        Future<SearchResult<JSONObject>> missing = searches.add(client
+                .search().withIndex("nope"));
+        Future<SearchResult<JSONObject>> counted = searches.add(client
+                .search().withIndex("users").preference("_local").size(0));
+        assertFalse(first.isDone());
+        searches.execute();
+
+        assertEquals(1, requests.size());
+        String[] lines = requests.get(0).split("\n");
+        assertTrue(lines[0], lines[0].startsWith("POST /_msearch?"));
+        assertTrue(lines[0], lines[0].contains("max_concurrent_searches=4"));
+        assertEquals(7, lines.length);
+        JSONObject header = new JSONObject(lines[1]);
+        assertEquals("orders", header.getString("index"));
+        assertEquals("r1", header.getString("routing"));
+        assertEquals(2, new JSONObject(lines[2]).getInt("size"));
+        assertEquals("_local", new JSONObject(lines[5]).getString("preference"));
+
+        SearchResult<JSONObject> result = first.get();
+        assertEquals(2, result.getTotalHits());
+        assertEquals("]}\"{", result.next().getJSONObject("_source")
+                .getString("text"));
+        assertEquals("b", result.next().getString("_id"));
+        assertFalse(result.hasNext());
+
+        try {
+            missing.get();
+            fail("the search of a missing index should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EsRESTException);
+            assertTrue(e.getCause().getMessage().contains("404"));
+        }
+
+        SearchResult<JSONObject> count = counted.get();
+        assertEquals(9, count.getTotalHits());
+        assertEquals(3, count.getAggregations().getJSONObject("n")
+                .getInt("value"));
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        MultiSearch searches = client.multiSearch();
+        Future<SearchResult<JSONObject>> first = searches.add(client.search()
+                .withIndex("orders").size(2));
+        Future<Void> done = searches.executeAsync(null);
+        done.get(10, TimeUnit.SECONDS);
+        assertTrue(first.isDone());
+        assertEquals(2, first.get().getTotalHits());
+        assertEquals(1, requests.size());
+
+        status = 500;
+        searches = client.multiSearch();
+        Future<SearchResult<JSONObject>> failing = searches.add(client
+                .search());
+        try {
+            searches.executeAsync(null).get(10, TimeUnit.SECONDS);
+            fail("a failed multi search should fail its Future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EsRESTException);
+        }
+        assertTrue(failing.isDone());
+    }
+
+    @Test
+    public void testFailedRequestFailsAllFutures() throws Exception {
+        status = 500;
+        MultiSearch searches = client.multiSearch();
+        Future<SearchResult<JSONObject>> search = searches.add(client.search());
+        try {
+            searches.execute();
+            fail("a failed multi search should throw");
+        } catch (EsRESTException e) {
+            // expected
+        }
+        assertTrue(search.isDone());
+        try {
+            search.get();
+            fail("the Future should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EsRESTException);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.eriky.util.NamedThreadFactory;
+
+public class NamedThreadFactoryTests {
+    final boolean wasVirtual = NamedThreadFactory.isUsingVirtualThreads();
+
+    @After
+    public void restore() {
+        NamedThreadFactory.useVirtualThreads(wasVirtual);
+    }
+
+    @Test
+    public void testPlatformThreads() {
+        NamedThreadFactory.useVirtualThreads(false);
+        Thread thread = new NamedThreadFactory("test").newThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertTrue(thread.isDaemon());
+        assertTrue(thread.getName(), thread.getName().startsWith("esrest-test-"));
+        assertTrue(thread.getName().endsWith("-1"));
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        Assume.assumeTrue(NamedThreadFactory.isVirtualThreadsSupported());
+        NamedThreadFactory.useVirtualThreads(true);
+        Runnable task = new Runnable() {
+            public void run() {
+            }
+        };
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        Thread virtual = new NamedThreadFactory("test").newThread(task);
+        assertTrue((Boolean) isVirtual.invoke(virtual));
+        assertTrue(virtual.getName().startsWith("esrest-test-"));
+        Thread reactor = new NamedThreadFactory("io", false).newThread(task);
+        assertFalse((Boolean) isVirtual.invoke(reactor));
+    }
+
+    @Test
+    public void testUnsupportedVirtualThreads() {
+        Assume.assumeFalse(NamedThreadFactory.isVirtualThreadsSupported());
+        try {
+            NamedThreadFactory.useVirtualThreads(true);
+            fail("virtual threads should need Java 21");
+        } catch (UnsupportedOperationException e) {
+            assertFalse(NamedThreadFactory.isUsingVirtualThreads());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.EsRESTException;
+import com.eriky.bulk.Reindex;
+
+public class ReindexTests {
+    StubServer server;
+    EsREST client;
+    final List<String> requests = new ArrayList<String>();
+    volatile int bulkStatus = 200;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                String method = request.method;
+                String path = request.path();
+                synchronized (requests) {
+                    requests.add(method + " " + path + " " + request.body);
+                }
+                int status = 200;
+                String response = "{}";
+                if (path.equals("/source/_search")) {
+                    response = "{\"_scroll_id\":\"s1\",\"hits\":{\"total\":3,\"hits\":["
+                            + hit("1") + "," + hit("2") + "," + hit("3") + "]}}";
+                } else if (path.equals("/_search/scroll")) {
+                    response = "{\"_scroll_id\":\"s2\",\"hits\":{\"total\":3,\"hits\":[]}}";
+                } else if (path.equals("/target/_settings")
+                        && method.equals("GET")) {
+                    response = "{\"target\":{\"settings\":{"
+                            + "\"index.refresh_interval\":\"30s\","
+                            + "\"index.number_of_replicas\":\"2\"}}}";
+                } else if (path.equals("/_bulk")) {
+                    status = bulkStatus;
+                    response = "{\"took\":1,\"errors\":false,\"items\":[]}";
+                } else if (path.equals("/_alias/docs")) {
+                    response = "{\"old\":{\"aliases\":{\"docs\":{}}}}";
+                }
+                return new StubServer.Reply(status, response);
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testReindexWithTransformAndAlias() throws Exception {
+        long indexed = client.reindex("source", "target")
+                .transform(new Reindex.Transform() {
+                    public JSONObject transform(JSONObject hit) {
+                        if (hit.getString("_id").equals("2")) {
+                            return null;
+                        }
+                        return hit.getJSONObject("_source").put("copied", true);
+                    }
+                }).alias("docs").throttle(1000).execute();
+
+        assertEquals(2, indexed);
+        String bulk = find("PUT /_bulk");
+        assertTrue(bulk.contains("\"_id\" : \"1\""));
+        assertTrue(bulk.contains("\"_id\" : \"3\""));
+        assertFalse(bulk.contains("\"_id\" : \"2\""));
+        assertTrue(bulk.contains("\"copied\":true"));
+        assertTrue(bulk.contains("\"_type\" : \"doc\""));
+
+        List<String> settings = findAll("PUT /target/_settings");
+        assertEquals(2, settings.size());
+        assertTrue(settings.get(0).contains("\"refresh_interval\":\"-1\""));
+        assertTrue(settings.get(1).contains("\"refresh_interval\":\"30s\""));
+        assertTrue(settings.get(1).contains("\"number_of_replicas\":\"2\""));
+        assertNotNull(find("POST /target/_refresh"));
+
+        String aliases = find("POST /_aliases");
+        assertTrue(aliases.contains("{\"remove\":{\"alias\":\"docs\",\"index\":\"old\"}}")
+                || aliases.contains("{\"remove\":{\"index\":\"old\",\"alias\":\"docs\"}}"));
+        assertTrue(aliases.contains("\"add\""));
+        assertTrue(aliases.contains("\"target\""));
+    }
+
+    @Test
+    public void testFailedLoadRestoresSettingsAndKeepsAlias() throws Exception {
+        bulkStatus = 500;
+        try {
+            client.reindex("source", "target").alias("docs").execute();
+            fail("A failed bulk request must fail the reindex");
+        } catch (EsRESTException e) {
+            // expected
+        }
+        List<String> settings = findAll("PUT /target/_settings");
+        assertEquals(2, settings.size());
+        assertTrue(settings.get(1).contains("\"refresh_interval\":\"30s\""));
+        assertNull(find("POST /_aliases"));
+    }
+
+    private static String hit(String id) {
+        return "{\"_index\":\"source\",\"_type\":\"doc\",\"_id\":\"" + id
+                + "\",\"_source\":{\"n\":" + id + "}}";
+    }
+
+    private String find(String prefix) {
+        List<String> found = findAll(prefix);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private List<String> findAll(String prefix) {
+        List<String> found = new ArrayList<String>();
+        synchronized (requests) {
+            for (String request : requests) {
+                if (request.startsWith(prefix)) {
+                    found.add(request);
+                }
+            }
+        }
+        return found;
+    }
+}
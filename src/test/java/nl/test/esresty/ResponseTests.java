@@ -0,0 +1,43 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.eriky.requests.Response;
+
+public class ResponseTests {
+
+    @Test
+    public void testReadBody() throws Exception {
+        byte[] body = "{ \"_id\": \"1\", \"found\": true }".getBytes("UTF-8");
+        Response response = Response.read(200, null, new ByteArrayInputStream(
+                body));
+        assertTrue(response.hasStatus(200));
+        assertEquals("1", response.getBodyAsJson().getString("_id"));
+        assertSame(response.getBodyAsJson(), response.getBodyAsJson());
+    }
+
+    @Test
+    public void testEmptyBody() throws Exception {
+        Response response = Response.read(404, null, null);
+        assertFalse(response.hasStatus(200));
+        assertNull(response.getBodyAsJson());
+        assertEquals("", response.getBodyAsString());
+    }
+
+    @Test
+    public void testHeaderIsCaseInsensitive() {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put("content-type", Arrays.asList("application/json"));
+        Response response = new Response(200, headers, new byte[0]);
+        assertEquals("application/json", response.getHeader("Content-Type"));
+        assertNull(response.getHeader("Content-Encoding"));
+    }
+}
@@ -0,0 +1,124 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.requests.ScrollIterator;
+
+public class ScrollTests {
+    StubServer server;
+    EsREST client;
+    final List<String> requests = new ArrayList<String>();
+    int pages = 3;
+    String scrollIdPrefix = "s";
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                int page;
+                synchronized (requests) {
+                    String query = request.query();
+                    requests.add(request.method + " " + request.path()
+                            + (query == null ? "" : "?" + query) + " "
+                            + request.headers.getFirst("Content-Type") + " "
+                            + request.body);
+                    page = requests.size();
+                }
+                StringBuilder hits = new StringBuilder();
+                if (page <= pages) {
+                    for (int i = 0; i < 2; i++) {
+                        hits.append(hits.length() == 0 ? "" : ",").append(
+                                "{\"_id\":\"" + page + "-" + i
+                                        + "\",\"_source\":{\"n\":" + i + "}}");
+                    }
+                }
+                return StubServer.Reply.ok("{\"_scroll_id\":\""
+                        + scrollIdPrefix + page + "\",\"took\":1,\"hits\":{\"total\":"
+                        + (pages * 2) + ",\"hits\":[" + hits + "]}}");
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testAllHitsAndClear() throws Exception {
+        ScrollIterator<JSONObject> hits = client.scroll()
+                .withIndex("testindex").size(2).execute();
+        List<String> ids = new ArrayList<String>();
+        while (hits.hasNext()) {
+            ids.add(hits.next().getString("_id"));
+        }
+        hits.close();
+
+        assertEquals(6, hits.getTotalHits());
+        assertEquals(6, ids.size());
+        assertEquals("3-1", ids.get(5));
+        assertTrue(requests.get(0).startsWith("POST /testindex/_search?"));
+        assertEquals("POST /_search/scroll?scroll=1m&scroll_id=s1 null ",
+                requests.get(1));
+        assertEquals("POST /_search/scroll?scroll=1m&scroll_id=s3 null ",
+                requests.get(3));
+        assertEquals("DELETE /_search/scroll?scroll_id=s4 null ",
+                requests.get(4));
+        assertEquals(5, requests.size());
+    }
+
+    @Test
+    public void testCloseEarlyClearsScroll() throws Exception {
+        pages = 100;
+        ScrollIterator<JSONObject> hits = client.scroll().execute();
+        assertTrue(hits.hasNext());
+        hits.next();
+        hits.close();
+        assertFalse(hits.hasNext());
+        assertEquals(3, requests.size());
+        assertEquals("DELETE /_search/scroll?scroll_id=s2 null ",
+                requests.get(2));
+    }
+
+    @Test
+    public void testLongScrollIdInJsonBody() throws Exception {
+        StringBuilder prefix = new StringBuilder();
+        while (prefix.length() < 5000) {
+            prefix.append("DnF1ZXJ5VGhlbkZldGNo");
+        }
+        scrollIdPrefix = prefix.toString();
+        pages = 1;
+        ScrollIterator<JSONObject> hits = client.scroll().keepAlive("5m")
+                .execute();
+        while (hits.hasNext()) {
+            hits.next();
+        }
+
+        assertEquals(3, requests.size());
+        assertEquals("POST /_search/scroll application/json; charset=UTF-8 "
+                + new JSONObject().put("scroll_id", scrollIdPrefix + "1")
+                        .put("scroll", "5m"), requests.get(1));
+        assertEquals("DELETE /_search/scroll application/json; charset=UTF-8 "
+                + "{\"scroll_id\":[\"" + scrollIdPrefix + "2\"]}",
+                requests.get(2));
+    }
+
+    @Test
+    public void testRoutingIsEncoded() throws Exception {
+        pages = 0;
+        client.scroll().routing("a&b c").execute().close();
+        assertTrue(requests.get(0), requests.get(0).contains("routing=a%26b+c"));
+    }
+}
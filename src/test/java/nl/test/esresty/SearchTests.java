@@ -0,0 +1,152 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.EsRESTException;
+import com.eriky.json.JsonDecoder;
+import com.eriky.json.JsonReader;
+import com.eriky.requests.SearchResult;
+
+public class SearchTests {
+    StubServer server;
+    EsREST client;
+    final List<String> requests = new ArrayList<String>();
+    int status = 200;
+    String response = "{\"took\":3,\"timed_out\":false,"
+            + "\"_shards\":{\"total\":1,\"successful\":1},"
+            + "\"hits\":{\"total\":{\"value\":42,\"relation\":\"eq\"},"
+            + "\"max_score\":1.5,\"hits\":["
+            + "{\"_id\":\"1\",\"_source\":{\"name\":\"a\"}},"
+            + "{\"_id\":\"2\",\"_source\":{\"name\":\"b\"}},"
+            + "{\"_id\":\"3\",\"_source\":{\"name\":\"c\"}}]},"
+            + "\"aggregations\":{\"names\":{\"buckets\":[]}}}";
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                synchronized (requests) {
+                    requests.add(request.method + " " + request.uri + " "
+                            + request.body);
+                }
+                return new StubServer.Reply(status, response);
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testRequestAndLazyHits() throws Exception {
+        final List<String> decoded = new ArrayList<String>();
+        SearchResult<String> hits = client
+                .search()
+                .withIndex("users")
+                .query(new JSONObject().put("term",
+                        new JSONObject().put("name", "a")))
+                .body(new JSONObject().put("sort", "name")).size(3).from(6)
+                .source("name").filterPath("hits.hits", "aggregations")
+                .routing("r1").preference("_local")
+                .execute(new JsonDecoder<String>() {
+                    public String decode(JsonReader reader) throws IOException {
+                        String id = ((JSONObject) reader.readValue())
+                                .getString("_id");
+                        decoded.add(id);
+                        return id;
+                    }
+                });
+
+        assertEquals(1, requests.size());
+        String request = requests.get(0);
+        assertTrue(request, request.startsWith("POST /users/_search?"));
+        assertTrue(request, request.contains("routing=r1"));
+        assertTrue(request, request.contains("preference=_local"));
+        assertTrue(request, request.contains("filter_path=hits.hits%2Caggregations")
+                || request.contains("filter_path=hits.hits,aggregations"));
+        JSONObject body = new JSONObject(request.substring(request
+                .indexOf('{')));
+        assertEquals("a", body.getJSONObject("query").getJSONObject("term")
+                .getString("name"));
+        assertEquals("name", body.getString("sort"));
+        assertEquals(3, body.getInt("size"));
+        assertEquals(6, body.getInt("from"));
+        assertEquals("name", body.getJSONArray("_source").getString(0));
+
+        assertEquals(3, hits.getTook());
+        assertFalse(hits.isTimedOut());
+        assertEquals(42, hits.getTotalHits());
+        assertEquals(1.5, hits.getMaxScore(), 0.0);
+        assertEquals(1, ((JSONObject) hits.getField("_shards")).getInt("total"));
+        assertTrue(decoded.isEmpty());
+
+        assertEquals("1", hits.next());
+        assertEquals(1, decoded.size());
+        assertNotNull(hits.getAggregations().getJSONObject("names"));
+        assertEquals(1, decoded.size());
+        assertFalse(hits.hasNext());
+        hits.close();
+    }
+
+    @Test
+    public void testIterateAllHits() throws Exception {
+        SearchResult<JSONObject> hits = client.search().execute();
+        List<String> ids = new ArrayList<String>();
+        while (hits.hasNext()) {
+            ids.add(hits.next().getString("_id"));
+        }
+        assertEquals(3, ids.size());
+        assertEquals("3", ids.get(2));
+        assertNotNull(hits.getAggregations());
+        assertTrue(requests.get(0).startsWith("POST /_search "));
+        assertTrue(requests.get(0).contains("match_all"));
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        Future<SearchResult<JSONObject>> future = client.search()
+                .withIndex("users").executeAsync(null);
+        SearchResult<JSONObject> hits = future.get(10, TimeUnit.SECONDS);
+        int count = 0;
+        while (hits.hasNext()) {
+            hits.next();
+            count++;
+        }
+        assertEquals(3, count);
+        assertTrue(requests.get(0).startsWith("POST /users/_search "));
+    }
+
+    @Test
+    public void testNoHitsArray() throws Exception {
+        response = "{\"aggregations\":{\"count\":{\"value\":7}}}";
+        SearchResult<JSONObject> hits = client.search().withIndex("users")
+                .size(0).filterPath("aggregations").execute();
+        assertFalse(hits.hasNext());
+        assertEquals(-1, hits.getTotalHits());
+        assertEquals(7, hits.getAggregations().getJSONObject("count")
+                .getInt("value"));
+    }
+
+    @Test(expected = EsRESTException.class)
+    public void testFailedSearch() throws Exception {
+        status = 400;
+        response = "{\"error\":\"bad query\"}";
+        client.search().withIndex("users").execute();
+    }
+}
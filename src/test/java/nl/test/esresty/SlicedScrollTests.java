@@ -0,0 +1,92 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.json.JsonDecoders;
+import com.eriky.requests.SlicedScroll;
+
+public class SlicedScrollTests {
+    StubServer server;
+    EsREST client;
+
+    /*
+     * Every slice has three hits on its first page and none on the next; the
+     * scroll id tells the slices apart.
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                String response = "{}";
+                if (request.path().endsWith("/_search")) {
+                    int slice = new JSONObject(request.body).getJSONObject(
+                            "slice").getInt("id");
+                    StringBuilder hits = new StringBuilder();
+                    for (int i = 0; i < 3; i++) {
+                        hits.append(i == 0 ? "" : ",").append(
+                                "{\"_id\":\"" + slice + "-" + i + "\"}");
+                    }
+                    response = "{\"_scroll_id\":\"slice" + slice
+                            + "\",\"hits\":{\"total\":3,\"hits\":[" + hits
+                            + "]}}";
+                } else if ("POST".equals(request.method)) {
+                    String scrollId = request.query().replaceAll(
+                            ".*scroll_id=([^&]*).*", "$1");
+                    response = "{\"_scroll_id\":\"" + scrollId
+                            + "\",\"hits\":{\"total\":3,\"hits\":[]}}";
+                }
+                return StubServer.Reply.ok(response);
+            }
+        });
+        client = new EsREST(server.getUrl());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testForEachReadsAllSlices() throws Exception {
+        final Set<String> ids = Collections
+                .synchronizedSet(new HashSet<String>());
+        long count = client.scroll().withIndex("testindex").sliced(4)
+                .threads(2)
+                .forEach(JsonDecoders.JSON_OBJECT,
+                        new SlicedScroll.HitHandler<JSONObject>() {
+                            public void onHit(JSONObject hit) {
+                                ids.add(hit.getString("_id"));
+                            }
+                        });
+        assertEquals(12, count);
+        assertEquals(12, ids.size());
+        assertTrue(ids.contains("3-2"));
+    }
+
+    @Test
+    public void testMergedIterator() throws Exception {
+        SlicedScroll.SlicedIterator<JSONObject> hits = client.scroll()
+                .withIndex("testindex").sliced(3).queueSize(2).execute();
+        Set<String> ids = new HashSet<String>();
+        try {
+            while (hits.hasNext()) {
+                ids.add(hits.next().getString("_id"));
+            }
+        } finally {
+            hits.close();
+        }
+        assertEquals(9, ids.size());
+    }
+}
@@ -0,0 +1,162 @@
+package nl.test.esresty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A fake Elasticsearch node for the tests. Every request is read completely
+ * and answered with the {@link Reply} of the {@link Route} of the test.
+ */
+class StubServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    /**
+     * Answers the requests of one test.
+     */
+    interface Route {
+        Reply handle(StubRequest request) throws IOException;
+    }
+
+    /**
+     * A request as the server received it, with the body already read and,
+     * if it was gzip compressed, decompressed.
+     */
+    static class StubRequest {
+        final String method;
+        final URI uri;
+        final Headers headers;
+        final String body;
+
+        StubRequest(String method, URI uri, Headers headers, String body) {
+            this.method = method;
+            this.uri = uri;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String path() {
+            return uri.getPath();
+        }
+
+        String query() {
+            return uri.getRawQuery();
+        }
+    }
+
+    /**
+     * The status and body to answer with. A null body is sent as an empty
+     * body with Content-Length: 0.
+     */
+    static class Reply {
+        final int status;
+        final String body;
+        final boolean gzip;
+
+        Reply(int status, String body) {
+            this(status, body, false);
+        }
+
+        private Reply(int status, String body, boolean gzip) {
+            this.status = status;
+            this.body = body;
+            this.gzip = gzip;
+        }
+
+        static Reply ok(String body) {
+            return new Reply(200, body);
+        }
+
+        /**
+         * @return the same reply, gzip compressed
+         */
+        Reply gzipped() {
+            return new Reply(status, body, true);
+        }
+    }
+
+    StubServer(Route route) throws IOException {
+        this(0, route);
+    }
+
+    /**
+     * @param port
+     *            the port to listen on, 0 for any free port
+     */
+    StubServer(int port, final Route route) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 50);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst(
+                        "Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                Reply reply = route.handle(new StubRequest(exchange
+                        .getRequestMethod(), exchange.getRequestURI(),
+                        exchange.getRequestHeaders(), read(in)));
+                respond(exchange, reply);
+            }
+        });
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + getPort();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, Reply reply)
+            throws IOException {
+        if (reply.body == null || "HEAD".equals(exchange.getRequestMethod())) {
+            // -1 sends Content-Length: 0 and ends the exchange, which keeps
+            // the connection open for the next request
+            exchange.sendResponseHeaders(reply.status, -1);
+            return;
+        }
+        byte[] bytes = reply.body.getBytes("UTF-8");
+        OutputStream out;
+        if (reply.gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(reply.status, 0);
+            out = new GZIPOutputStream(exchange.getResponseBody());
+        } else {
+            exchange.sendResponseHeaders(reply.status, bytes.length);
+            out = exchange.getResponseBody();
+        }
+        out.write(bytes);
+        out.close();
+    }
+}
@@ -0,0 +1,372 @@
+package nl.test.esresty;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.eriky.EsREST;
+import com.eriky.requests.Get;
+import com.eriky.requests.Response;
+import com.eriky.transport.CompressionStats;
+import com.eriky.transport.Node;
+import com.eriky.transport.Transport;
+import com.eriky.transport.TransportConfig;
+
+public class TransportTests {
+    StubServer server;
+    String url;
+
+    @Before
+    public void startServer() throws IOException {
+        server = startServer("node1");
+        url = server.getUrl();
+    }
+
+    private static StubServer startServer(String name) throws IOException {
+        return startServer(name, 0);
+    }
+
+    private static StubServer startServer(final String name, int port)
+            throws IOException {
+        return new StubServer(port, new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                JSONObject echo = new JSONObject();
+                echo.put("name", name);
+                echo.put("method", request.method);
+                echo.put("uri", request.uri.toString());
+                return StubServer.Reply.ok(echo.toString());
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testRelativeRequestsUsePathPrefix() throws IOException {
+        Transport transport = new Transport(url + "/es/", new TransportConfig()
+                .maxConnections(2).socketTimeout(5, TimeUnit.SECONDS));
+        try {
+            assertEquals(url + "/es", transport.getUrl());
+            Response response = transport.execute(new HttpGet(
+                    "/_cluster/health?level=indices"));
+            assertTrue(response.hasStatus(200));
+            assertEquals("/es/_cluster/health?level=indices", response
+                    .getBodyAsJson().getString("uri"));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testGetUsesTransportOfClient() throws Exception {
+        EsREST client = new EsREST(url);
+        try {
+            Get get = client.getDocument().withIndex("testindex")
+                    .withType("testtype").id("1").routing("r1");
+            assertEquals(url + "/testindex/testtype/1", get.getUrl());
+            JSONObject result = get.execute();
+            assertEquals("GET", result.getString("method"));
+            assertEquals("/testindex/testtype/1?routing=r1",
+                    result.getString("uri"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedTransportRefusesRequests() throws IOException {
+        Transport transport = new Transport(url);
+        transport.close();
+        transport.execute(new HttpGet("/"));
+    }
+
+    @Test
+    public void testRoundRobinOverNodes() throws Exception {
+        StubServer second = startServer("node2");
+        Transport transport = new Transport(Arrays.asList(url,
+                second.getUrl()),
+                new TransportConfig());
+        try {
+            Set<String> names = new HashSet<String>();
+            for (int i = 0; i < 4; i++) {
+                names.add(transport.execute(new HttpGet("/")).getBodyAsJson()
+                        .getString("name"));
+            }
+            assertEquals(2, names.size());
+        } finally {
+            transport.close();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testDeadNodeIsSkipped() throws Exception {
+        Transport transport = new Transport(Arrays.asList(
+                "http://localhost:9201", url), new TransportConfig()
+                .deadNodeBackoff(1, 1, TimeUnit.MINUTES));
+        try {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(transport.execute(new HttpGet("/")).hasStatus(200));
+            }
+            Node dead = transport.getNodes().get(0);
+            assertTrue(dead.isDead());
+            assertFalse(dead.isAlive());
+            assertTrue(transport.getNodes().get(1).isAlive());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testAsyncRequestsSkipDeadNode() throws Exception {
+        Transport transport = new Transport(Arrays.asList(
+                "http://localhost:9201", url), new TransportConfig()
+                .deadNodeBackoff(1, 1, TimeUnit.MINUTES).ioThreads(1));
+        try {
+            final CountDownLatch done = new CountDownLatch(20);
+            final List<Integer> statuses = new ArrayList<Integer>();
+            List<Future<Response>> futures = new ArrayList<Future<Response>>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(transport.executeAsync(new HttpGet("/"),
+                        new FutureCallback<Response>() {
+                            public void completed(Response response) {
+                                synchronized (statuses) {
+                                    statuses.add(response.getStatus());
+                                }
+                                done.countDown();
+                            }
+
+                            public void failed(Exception e) {
+                                done.countDown();
+                            }
+
+                            public void cancelled() {
+                                done.countDown();
+                            }
+                        }));
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(20, statuses.size());
+            for (Future<Response> future : futures) {
+                assertEquals("node1", future.get().getBodyAsJson()
+                        .getString("name"));
+            }
+            assertTrue(transport.getNodes().get(0).isDead());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testAsyncClientMethods() throws Exception {
+        EsREST client = new EsREST(url);
+        try {
+            Future<Boolean> exists = client.indexExistsAsync("testindex", null);
+            Future<JSONObject> health = client.getHealthAsync(null);
+            Future<JSONObject> document = client.getDocument()
+                    .withIndex("testindex").withType("testtype").id("1")
+                    .executeAsync(null);
+            assertTrue(exists.get());
+            assertEquals("/_cluster/health", health.get().getString("uri"));
+            assertEquals("/testindex/testtype/1", document.get().getString(
+                    "uri"));
+        } finally {
+            client.close();
+        }
+        try {
+            client.createIndexAsync("closed", null);
+            fail("a closed client should refuse async requests");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAdaptiveConcurrency() throws Exception {
+        final int[] status = { 429 };
+        StubServer busy = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                return new StubServer.Reply(status[0], null);
+            }
+        });
+        Transport transport = new Transport(busy.getUrl(),
+                new TransportConfig().adaptiveConcurrency(8, 1, 8));
+        try {
+            assertEquals(8, transport.getConcurrencyLimiter().getLimit());
+            assertTrue(transport.execute(new HttpGet("/")).hasStatus(429));
+            assertEquals(6, transport.getConcurrencyLimiter().getLimit());
+
+            status[0] = 200;
+            List<Future<Response>> futures = new ArrayList<Future<Response>>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(transport.executeAsync(new HttpGet("/"), null));
+            }
+            for (Future<Response> future : futures) {
+                assertTrue(future.get(10, TimeUnit.SECONDS).hasStatus(200));
+            }
+            assertEquals(0, transport.getConcurrencyLimiter().getInFlight());
+        } finally {
+            transport.close();
+            busy.stop();
+        }
+    }
+
+    @Test
+    public void testAsyncRetriesResetConnection() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread fakeNode = new Thread() {
+            public void run() {
+                try {
+                    // reset the first connection, answer on the second
+                    Socket first = serverSocket.accept();
+                    first.getInputStream().read();
+                    first.setSoLinger(true, 0);
+                    first.close();
+                    Socket second = serverSocket.accept();
+                    second.getInputStream().read();
+                    OutputStream out = second.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                            .getBytes("US-ASCII"));
+                    out.flush();
+                    second.close();
+                } catch (IOException e) {
+                    // the test fails on the missing response
+                }
+            }
+        };
+        fakeNode.start();
+        Transport transport = new Transport("http://localhost:"
+                + serverSocket.getLocalPort(), new TransportConfig()
+                .adaptiveConcurrency(8, 1, 8));
+        try {
+            Response response = transport.executeAsync(new HttpGet("/"), null)
+                    .get(10, TimeUnit.SECONDS);
+            assertTrue(response.hasStatus(200));
+            assertFalse(transport.getNodes().get(0).isDead());
+            assertEquals(8, transport.getConcurrencyLimiter().getLimit());
+            assertEquals(0, transport.getConcurrencyLimiter().getInFlight());
+        } finally {
+            transport.close();
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testHealthCheckRevivesNode() throws Exception {
+        Transport transport = new Transport(Arrays.asList(url),
+                new TransportConfig().deadNodeBackoff(1, 1, TimeUnit.HOURS)
+                        .healthCheckInterval(10, TimeUnit.MILLISECONDS));
+        try {
+            server.stop();
+            Node node = transport.getNodes().get(0);
+            for (int i = 0; i < 500 && !node.isDead(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(node.isDead());
+            server = startServer("node1", server.getPort());
+            for (int i = 0; i < 500 && node.isDead(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(node.isAlive());
+            assertFalse(node.isDead());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testSniffDataNodes() throws Exception {
+        final int port = server.getPort();
+        StubServer seed = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                String nodes = "{\"nodes\":{"
+                        + "\"a\":{\"http\":{\"publish_address\":\"inet[/127.0.0.1:"
+                        + port + "]\"}},"
+                        + "\"b\":{\"attributes\":{\"data\":\"false\"},"
+                        + "\"http\":{\"publish_address\":\"inet[/127.0.0.1:9300]\"}},"
+                        + "\"c\":{\"roles\":[\"master\",\"data_hot\"],"
+                        + "\"http\":{\"publish_address\":\"es3/10.0.0.3:9200\"}},"
+                        + "\"d\":{\"roles\":[\"master\"]}}}";
+                return StubServer.Reply.ok(nodes);
+            }
+        });
+        Transport transport = new Transport(seed.getUrl(),
+                new TransportConfig().sniffOnStart(true));
+        try {
+            assertEquals(Arrays.asList(new Node("http://127.0.0.1:" + port),
+                    new Node("http://10.0.0.3:9200")), new ArrayList<Node>(
+                    transport.getNodes()));
+        } finally {
+            transport.close();
+            seed.stop();
+        }
+    }
+
+    @Test
+    public void testGzipRequestsAndResponses() throws Exception {
+        final List<String> received = new ArrayList<String>();
+        StubServer gzipServer = new StubServer(new StubServer.Route() {
+            public StubServer.Reply handle(StubServer.StubRequest request) {
+                received.add(request.body);
+                return StubServer.Reply.ok(request.body).gzipped();
+            }
+        });
+        Transport transport = new Transport(gzipServer.getUrl(),
+                new TransportConfig().compressRequests(true)
+                        .compressionLevel(9));
+        try {
+            StringBuilder document = new StringBuilder("{\"items\":[");
+            for (int i = 0; i < 500; i++) {
+                document.append(i == 0 ? "" : ",").append(
+                        "{\"name\":\"repetitive\"}");
+            }
+            document.append("]}");
+            HttpPut put = new HttpPut("/test");
+            put.setEntity(new StringEntity(document.toString(),
+                    ContentType.APPLICATION_JSON));
+            Response response = transport.execute(put);
+
+            assertEquals(document.toString(), received.get(0));
+            assertEquals(document.toString(), response.getBodyAsString());
+            CompressionStats stats = transport.getCompressionStats();
+            assertEquals(document.length(), stats.getRequestBytes());
+            assertEquals(document.length(), stats.getResponseBytes());
+            assertTrue(stats.getRequestRatio() < 0.1);
+            assertTrue(stats.getCompressedResponseBytes() > 0);
+            assertTrue(stats.getResponseRatio() < 0.1);
+
+            HttpPut small = new HttpPut("/test");
+            small.setEntity(new StringEntity("{}", ContentType.APPLICATION_JSON));
+            transport.execute(small);
+            assertEquals("{}", received.get(1));
+            assertEquals(document.length(), stats.getRequestBytes());
+        } finally {
+            transport.close();
+            gzipServer.stop();
+        }
+    }
+}